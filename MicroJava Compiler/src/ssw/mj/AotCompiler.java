@@ -0,0 +1,130 @@
+package ssw.mj;
+
+import javassist.bytecode.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Ahead-of-time backend: translates a whole MicroJava program into a
+ * standalone JVM class and packs it into an executable jar together with the
+ * runtime classes it needs ({@link Machine}, {@link ConsoleMachine}).
+ * <p>
+ * Every method becomes a static method of the generated class (see
+ * {@link BytecodeTranslator}), the heap is an <code>int[]</code> with the
+ * same layout as in the {@link Interpreter}. It grows up to the default limit
+ * of the interpreter but is not garbage collected, so a program that
+ * {@link Run} completes with the collector may run out of heap in the jar.
+ */
+public final class AotCompiler {
+
+  private static final String CONSOLE_MACHINE = "ssw/mj/ConsoleMachine";
+
+  /**
+   * Runtime classes copied into the jar.
+   */
+  private static final String[] RUNTIME = {
+          "ssw/mj/Machine.class", "ssw/mj/Machine$Compiled.class", "ssw/mj/ConsoleMachine.class"
+  };
+
+  private AotCompiler() {
+  }
+
+  /**
+   * Writes an executable jar for the program to <code>out</code>.
+   *
+   * @param code      code buffer
+   * @param codeSize  number of valid bytes in <code>code</code>
+   * @param dataSize  number of global variables
+   * @param mainPC    address of main()
+   * @param className name of the generated main class
+   */
+  public static void writeJar(byte[] code, int codeSize, int dataSize, int mainPC, String className,
+                              OutputStream out) throws IOException {
+    byte[] clazz = generate(code, codeSize, dataSize, mainPC, className);
+
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+    try (JarOutputStream jar = new JarOutputStream(out, manifest)) {
+      jar.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+      jar.write(clazz);
+      jar.closeEntry();
+      for (String name : RUNTIME) {
+        try (InputStream in = AotCompiler.class.getClassLoader().getResourceAsStream(name)) {
+          if (in == null) {
+            throw new IOException("runtime class " + name + " not found");
+          }
+          jar.putNextEntry(new JarEntry(name));
+          in.transferTo(jar);
+          jar.closeEntry();
+        }
+      }
+    }
+  }
+
+  /**
+   * Generates the class file of the program.
+   */
+  static byte[] generate(byte[] code, int codeSize, int dataSize, int mainPC, String className)
+          throws IOException {
+    CodeAnalysis analysis = new CodeAnalysis(code, codeSize);
+    CodeAnalysis.Method main = analysis.methodAt(mainPC);
+    if (main == null) {
+      throw new IOException("main() not found at " + mainPC);
+    }
+    ClassFile cf = BytecodeTranslator.newClass(className);
+    String owner = className.replace('.', '/');
+    BytecodeTranslator translator = new BytecodeTranslator(analysis);
+    for (CodeAnalysis.Method m : analysis.methods) {
+      try {
+        translator.translate(m, cf, callee -> owner);
+      } catch (BytecodeTranslator.UnsupportedCodeException e) {
+        throw new IOException("cannot translate " + m + ": " + e.getMessage());
+      }
+    }
+    BytecodeTranslator.addConstructor(cf);
+    addMain(cf, owner, main, dataSize);
+    return Jit.toBytes(cf);
+  }
+
+  /**
+   * <code>public static void main(String[] args)</code> creates the machine
+   * and calls the MicroJava main method. If the JVM stack overflows before
+   * the method stack of the machine does, it fails like the interpreter.
+   */
+  private static void addMain(ClassFile cf, String owner, CodeAnalysis.Method main, int dataSize) {
+    ConstPool cp = cf.getConstPool();
+    Bytecode b = new Bytecode(cp, 3, 1);
+    b.addNew(CONSOLE_MACHINE);
+    b.addOpcode(Opcode.DUP);
+    b.addIconst(dataSize);
+    b.addInvokespecial(CONSOLE_MACHINE, MethodInfo.nameInit, "(I)V");
+    int start = b.currentPc();
+    b.addInvokestatic(owner, BytecodeTranslator.methodName(main), BytecodeTranslator.descriptor(main));
+    b.addOpcode(Opcode.POP);
+    int end = b.currentPc();
+    b.addOpcode(Opcode.RETURN);
+    b.addExceptionHandler(start, end, b.currentPc(), "java/lang/StackOverflowError");
+    b.growStack(1); // the caught error
+    b.addOpcode(Opcode.POP);
+    b.addNew("java/lang/IllegalStateException");
+    b.addOpcode(Opcode.DUP);
+    b.addLdc("method stack overflow");
+    b.addInvokespecial("java/lang/IllegalStateException", MethodInfo.nameInit, "(Ljava/lang/String;)V");
+    b.addOpcode(Opcode.ATHROW);
+    MethodInfo mi = new MethodInfo(cp, "main", "([Ljava/lang/String;)V");
+    mi.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+    mi.setCodeAttribute(b.toCodeAttribute());
+    try {
+      cf.addMethod(mi);
+    } catch (DuplicateMemberException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs one program against many input files (<code>-batch dir</code>).
+ * <p>
+ * The program is loaded once; every run gets an {@link Interpreter} with
+ * its own data, heap, stacks and I/O from an {@link InterpreterPool}, and
+ * all of them share the code. The runs are independent, so they are spread
+ * over the threads of an {@link ExecutorService}. The results are returned
+ * in the order of the inputs, whatever order the runs finish in.
+ * <p>
+ * Normally every run occupies a thread until it terminates. With a time
+ * slice (<code>-slice=n</code>), the runs are interleaved by a
+ * {@link Scheduler} instead, so that a few long runs do not hold up all
+ * others. A limited number of runs is in progress at a time.
+ */
+final class Batch {
+
+  /**
+   * Outcome of the run with one input.
+   */
+  static final class Result {
+    final Path input;
+    final String output;
+    final RuntimeException error; // null if the program terminated normally
+    final long nanos; // running time
+
+    private Result(Path input, String output, RuntimeException error, long nanos) {
+      this.input = input;
+      this.output = output;
+      this.error = error;
+      this.nanos = nanos;
+    }
+  }
+
+  private static final int RUNS_PER_THREAD = 4; // in progress when time-sliced
+
+  private final InterpreterPool interpreters;
+  private final int threads;
+  private final long slice; // fuel per time slice, 0 = no time slicing
+  private final long budget; // fuel per run, 0 = unlimited
+
+  // ----- statistics of the last run
+  private long wallNanos, cpuNanos;
+  private int failed;
+
+  /**
+   * The input and output of <code>opts</code> are ignored; every run reads
+   * its input file and collects its output in a string.
+   * <code>threads</code> is the number of threads that run the batch.
+   */
+  Batch(Run.Program program, Run.Options opts, int threads, long slice) {
+    Run.Options o = opts.copy();
+    o.debug = false; // the traces of parallel runs would be interleaved
+    this.threads = threads;
+    this.slice = slice;
+    budget = opts.fuel;
+    interpreters = new InterpreterPool(program, o, slice > 0 ? RUNS_PER_THREAD * threads : threads);
+  }
+
+  /**
+   * Runs the program once per input on <code>pool</code> and waits until
+   * all runs have finished.
+   */
+  List<Result> run(List<Path> inputs, ExecutorService pool) throws IOException {
+    long start = System.nanoTime();
+    List<Future<Result>> futures = new ArrayList<>(inputs.size());
+    List<Result> results = new ArrayList<>(inputs.size());
+    cpuNanos = 0;
+    failed = 0;
+    try {
+      if (slice > 0) {
+        Scheduler scheduler = new Scheduler(pool, slice, budget);
+        Semaphore inProgress = new Semaphore(RUNS_PER_THREAD * threads);
+        for (Path input : inputs) {
+          inProgress.acquire();
+          futures.add(startSliced(input, scheduler, inProgress));
+        }
+      } else {
+        for (Path input : inputs) {
+          futures.add(pool.submit((Callable<Result>) () -> runOne(input)));
+        }
+      }
+      for (Future<Result> f : futures) {
+        Result r = f.get();
+        results.add(r);
+        cpuNanos += r.nanos;
+        if (r.error != null) {
+          failed++;
+        }
+      }
+    } catch (InterruptedException e) {
+      futures.forEach(f -> f.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IOException("batch interrupted");
+    } catch (ExecutionException e) {
+      futures.forEach(f -> f.cancel(true));
+      if (e.getCause() instanceof IOException io) {
+        throw io;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    wallNanos = System.nanoTime() - start;
+    return results;
+  }
+
+  private Result runOne(Path input) throws IOException {
+    Interpreter.BufferIO output = new Interpreter.BufferIO("");
+    try (MappedIO io = new MappedIO(input, output)) {
+      long start = System.nanoTime();
+      Interpreter vm = interpreters.acquire(io);
+      RuntimeException error = null;
+      try {
+        vm.run();
+      } catch (RuntimeException e) {
+        error = e;
+      }
+      interpreters.release(vm);
+      return new Result(input, output.getOutput(), error, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Queues the run with <code>input</code> in <code>scheduler</code> and
+   * releases a permit of <code>inProgress</code> when it has finished.
+   */
+  private Future<Result> startSliced(Path input, Scheduler scheduler, Semaphore inProgress) throws IOException {
+    Interpreter.BufferIO output = new Interpreter.BufferIO("");
+    MappedIO io;
+    try {
+      io = new MappedIO(input, output);
+    } catch (IOException e) {
+      inProgress.release();
+      throw e;
+    }
+    return scheduler.submit(interpreters.acquire(io)).thenApply(job -> {
+      io.close();
+      interpreters.release(job.vm);
+      inProgress.release();
+      return new Result(input, output.getOutput(), job.error, job.nanos);
+    });
+  }
+
+  /**
+   * Throughput of the last {@link #run}.
+   */
+  String statistics(int runs, int threads) {
+    double wall = wallNanos / 1e9;
+    return String.format("Batch: %d runs (%d failed) on %d threads in %.3f s, %.1f runs/s,"
+                    + " %.3f ms per run, parallelism %.2f, %d interpreters",
+            runs, failed, threads, wall, runs / Math.max(wall, 1e-9), cpuNanos / 1e6 / Math.max(runs, 1),
+            cpuNanos / (double) Math.max(wallNanos, 1), interpreters.created());
+  }
+}
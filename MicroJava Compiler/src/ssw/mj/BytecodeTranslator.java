@@ -0,0 +1,490 @@
+package ssw.mj;
+
+import javassist.bytecode.*;
+import ssw.mj.impl.Code.OpCode;
+
+import java.io.Serial;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Translates MicroJava methods into static JVM methods (see {@link Machine}
+ * for the calling convention), and recorded loop traces into implementations
+ * of {@link Machine.Trace}. The MicroJava expression stack maps directly
+ * onto the JVM operand stack, locals onto JVM locals.
+ */
+final class BytecodeTranslator {
+
+  static final String MACHINE = "ssw/mj/Machine";
+  private static final String M = "L" + MACHINE + ";";
+
+  /**
+   * Decides how calls are bound.
+   */
+  interface Linker {
+    /**
+     * Name of the class holding the translated <code>callee</code>, or
+     * <code>null</code> if the call has to go through
+     * {@link Machine#invoke(int)}.
+     */
+    String classOf(CodeAnalysis.Method callee);
+  }
+
+  /**
+   * Thrown for methods that cannot be translated.
+   */
+  static class UnsupportedCodeException extends Exception {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedCodeException(String msg) {
+      super(msg);
+    }
+  }
+
+  private final CodeAnalysis analysis;
+
+  /**
+   * Every translated method charges its frame against the stacks of the
+   * machine as the {@link Interpreter} charges a call (see
+   * {@link Machine#enter}).
+   */
+  BytecodeTranslator(CodeAnalysis analysis) {
+    this.analysis = analysis;
+  }
+
+  static String methodName(CodeAnalysis.Method m) {
+    return "m" + m.adr;
+  }
+
+  static String descriptor(CodeAnalysis.Method m) {
+    return "(" + "I".repeat(m.nPars) + M + ")I";
+  }
+
+  /**
+   * Adds the translation of <code>m</code> to class <code>cf</code>.
+   */
+  void translate(CodeAnalysis.Method m, ClassFile cf, Linker linker) throws UnsupportedCodeException {
+    if (!m.isValid()) {
+      throw new UnsupportedCodeException(m.error);
+    }
+    if (m.nPars < 0 || m.nPars > m.nLocals) {
+      throw new UnsupportedCodeException("invalid enter operands");
+    }
+    ConstPool cp = cf.getConstPool();
+    int machine = m.nPars; // JVM slot of the machine argument
+    int temps = m.nLocals + 1; // first JVM slot for spilled call arguments
+    int maxTemps = 0;
+    Bytecode b = new Bytecode(cp);
+    int words = m.nLocals + 2;
+    b.addIconst(words);
+    b.addIconst(m.maxStack);
+    helper(b, machine, "enter", "(II" + M + ")V");
+
+    // locals that are not parameters start out as 0
+    for (int i = m.nPars; i < m.nLocals; i++) {
+      b.addIconst(0);
+      b.addIstore(i + 1);
+    }
+
+    int[] jvmPc = new int[m.end - m.adr];
+    List<int[]> fixups = new ArrayList<>(); // {jvm position, mj target}
+    int[] depth = analysis.depth;
+
+    for (int pc = m.adr; pc < m.end; pc += analysis.sizeAt(pc)) {
+      if (depth[pc] < 0) {
+        continue; // unreachable
+      }
+      jvmPc[pc - m.adr] = b.currentPc();
+      OpCode op = analysis.opAt(pc);
+      switch (op) {
+        case jmp, jeq, jne, jlt, jle, jgt, jge -> {
+          fixups.add(new int[]{b.currentPc(), analysis.target(pc)});
+          b.addOpcode(op == OpCode.jmp ? Opcode.GOTO : branch(op));
+          b.addIndex(0);
+        }
+        case call -> maxTemps = Math.max(maxTemps, call(b, pc, machine, temps, linker));
+        case return_ -> {
+          if (depth[pc] == 0) {
+            b.addIconst(0);
+          }
+          b.addIconst(words);
+          helper(b, machine, "leave", "(I" + M + ")V");
+          b.addOpcode(Opcode.IRETURN);
+        }
+        case enter, exit, nop -> {
+          // frames are managed by the JVM
+        }
+        case trap -> {
+          b.addIconst(analysis.get1(pc + 1));
+          b.addInvokestatic(MACHINE, "trap", "(I)Ljava/lang/IllegalStateException;");
+          b.addOpcode(Opcode.ATHROW);
+        }
+        default -> simple(b, op, pc, n -> local(m, n), machine);
+      }
+    }
+
+    for (int[] f : fixups) {
+      int dist = jvmPc[f[1] - m.adr] - f[0];
+      if (dist != (short) dist) {
+        throw new UnsupportedCodeException("method too large");
+      }
+      b.write16bit(f[0] + 1, dist);
+    }
+    b.setMaxStack(m.maxStack + 3);
+    b.setMaxLocals(temps + maxTemps);
+
+    MethodInfo mi = new MethodInfo(cp, methodName(m), descriptor(m));
+    mi.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+    mi.setCodeAttribute(b.toCodeAttribute());
+    addMethod(cf, mi);
+  }
+
+  /**
+   * Adds {@link Machine.Trace#run} to class <code>cf</code>. <code>path</code>
+   * holds the addresses of the instructions of method <code>m</code> that one
+   * iteration of the loop starting at <code>path[0]</code> executed, in this
+   * order. Unconditional jumps are dropped, and every conditional jump becomes
+   * a guard that leaves the trace if it does not go the recorded way. The
+   * loop header and the guards must not have operands left on the stack.
+   */
+  void translateTrace(CodeAnalysis.Method m, int[] path, ClassFile cf, Linker linker)
+          throws UnsupportedCodeException {
+    int[] depth = analysis.depth;
+    if (depth[path[0]] != 0) {
+      throw new UnsupportedCodeException("operands at loop header " + path[0]);
+    }
+    final int regs = 1, machine = 2, base = 3; // JVM slots, 0 is this
+    int temps = base + m.nLocals;
+    int maxTemps = 0;
+    Slots locals = n -> {
+      if (n < 0 || n >= m.nLocals) {
+        throw new UnsupportedCodeException("local " + n + " out of range");
+      }
+      return base + n;
+    };
+    boolean[] used = new boolean[m.nLocals], written = new boolean[m.nLocals];
+    for (int pc : path) {
+      OpCode op = analysis.opAt(pc);
+      boolean store = false;
+      int n;
+      switch (op) {
+        case load -> n = analysis.get1(pc + 1);
+        case load_0, load_1, load_2, load_3 -> n = op.ordinal() - OpCode.load_0.ordinal();
+        case store, inc -> {
+          n = analysis.get1(pc + 1);
+          store = true;
+        }
+        case store_0, store_1, store_2, store_3 -> {
+          n = op.ordinal() - OpCode.store_0.ordinal();
+          store = true;
+        }
+        default -> n = -1;
+      }
+      if (n >= 0) {
+        used[locals.slot(n) - base] = true;
+        written[n] |= store;
+      }
+    }
+    ConstPool cp = cf.getConstPool();
+    Bytecode b = new Bytecode(cp);
+    for (int i = 0; i < m.nLocals; i++) {
+      if (used[i]) {
+        b.addAload(regs);
+        b.addIconst(i);
+        b.addOpcode(Opcode.IALOAD);
+        b.addIstore(base + i);
+      }
+    }
+
+    int top = b.currentPc();
+    List<int[]> exits = new ArrayList<>(); // {jvm position, mj address to continue at}
+    for (int k = 0; k < path.length; k++) {
+      int pc = path[k];
+      int next = k + 1 < path.length ? path[k + 1] : path[0];
+      OpCode op = analysis.opAt(pc);
+      switch (op) {
+        case jmp, nop -> {
+          // the path continues at the target
+        }
+        case jeq, jne, jlt, jle, jgt, jge -> {
+          int target = analysis.target(pc), fall = pc + analysis.sizeAt(pc);
+          if (target == fall) {
+            b.addOpcode(Opcode.POP2);
+          } else if (depth[pc] != 2) {
+            throw new UnsupportedCodeException("operands at guard " + pc);
+          } else {
+            boolean taken = next == target;
+            exits.add(new int[]{b.currentPc(), taken ? fall : target});
+            b.addOpcode(branch(taken ? negate(op) : op));
+            b.addIndex(0);
+          }
+        }
+        case call -> maxTemps = Math.max(maxTemps, call(b, pc, machine, temps, linker));
+        default -> simple(b, op, pc, locals, machine);
+      }
+    }
+    int back = top - b.currentPc();
+    if (back != (short) back) {
+      throw new UnsupportedCodeException("trace too large");
+    }
+    b.addOpcode(Opcode.GOTO);
+    b.addIndex(back);
+
+    // side exits: write the changed locals back and return the address
+    for (int[] e : exits) {
+      int dist = b.currentPc() - e[0];
+      if (dist != (short) dist) {
+        throw new UnsupportedCodeException("trace too large");
+      }
+      b.write16bit(e[0] + 1, dist);
+      for (int i = 0; i < m.nLocals; i++) {
+        if (written[i]) {
+          b.addAload(regs);
+          b.addIconst(i);
+          b.addIload(base + i);
+          b.addOpcode(Opcode.IASTORE);
+        }
+      }
+      b.addIconst(e[1]);
+      b.addOpcode(Opcode.IRETURN);
+    }
+    b.setMaxStack(m.maxStack + 3);
+    b.setMaxLocals(temps + maxTemps);
+
+    MethodInfo mi = new MethodInfo(cp, "run", "([I" + M + ")I");
+    mi.setAccessFlags(AccessFlag.PUBLIC);
+    mi.setCodeAttribute(b.toCodeAttribute());
+    addMethod(cf, mi);
+  }
+
+  /**
+   * Maps MicroJava locals to JVM slots.
+   */
+  private interface Slots {
+    int slot(int n) throws UnsupportedCodeException;
+  }
+
+  /**
+   * Emits an instruction that neither jumps nor calls nor leaves the method.
+   */
+  private void simple(Bytecode b, OpCode op, int pc, Slots locals, int machine) throws UnsupportedCodeException {
+    switch (op) {
+      case load -> b.addIload(locals.slot(analysis.get1(pc + 1)));
+      case load_0, load_1, load_2, load_3 -> b.addIload(locals.slot(op.ordinal() - OpCode.load_0.ordinal()));
+      case store -> b.addIstore(locals.slot(analysis.get1(pc + 1)));
+      case store_0, store_1, store_2, store_3 -> b.addIstore(locals.slot(op.ordinal() - OpCode.store_0.ordinal()));
+      case getstatic -> {
+        b.addIconst(analysis.get2(pc + 1));
+        helper(b, machine, "getstatic", "(I" + M + ")I");
+      }
+      case putstatic -> {
+        b.addIconst(analysis.get2(pc + 1));
+        helper(b, machine, "putstatic", "(II" + M + ")V");
+      }
+      case getfield -> {
+        b.addIconst(analysis.get2(pc + 1));
+        helper(b, machine, "getfield", "(II" + M + ")I");
+      }
+      case putfield -> {
+        b.addIconst(analysis.get2(pc + 1));
+        helper(b, machine, "putfield", "(III" + M + ")V");
+      }
+      case const_0, const_1, const_2, const_3, const_4, const_5 ->
+              b.addIconst(op.ordinal() - OpCode.const_0.ordinal());
+      case const_m1 -> b.addIconst(-1);
+      case const_ -> b.addIconst(analysis.get4(pc + 1));
+      case add -> b.addOpcode(Opcode.IADD);
+      case sub -> b.addOpcode(Opcode.ISUB);
+      case mul -> b.addOpcode(Opcode.IMUL);
+      case div -> b.addInvokestatic(MACHINE, "div", "(II)I");
+      case rem -> b.addInvokestatic(MACHINE, "rem", "(II)I");
+      case neg -> b.addOpcode(Opcode.INEG);
+      case shl -> b.addOpcode(Opcode.ISHL);
+      case shr -> b.addOpcode(Opcode.ISHR);
+      case inc -> {
+        b.addOpcode(Opcode.IINC);
+        b.add(locals.slot(analysis.get1(pc + 1)));
+        b.add(analysis.get1(pc + 2));
+      }
+      case new_ -> {
+        b.addIconst(analysis.get2(pc + 1) * 4);
+        helper(b, machine, "newObject", "(I" + M + ")I");
+      }
+      case newarray -> {
+        b.addIconst(analysis.get1(pc + 1));
+        helper(b, machine, "newArray", "(II" + M + ")I");
+      }
+      case aload -> helper(b, machine, "aload", "(II" + M + ")I");
+      case astore -> helper(b, machine, "astore", "(III" + M + ")V");
+      case baload -> helper(b, machine, "baload", "(II" + M + ")I");
+      case bastore -> helper(b, machine, "bastore", "(III" + M + ")V");
+      case arraylength -> helper(b, machine, "arraylength", "(I" + M + ")I");
+      case pop -> b.addOpcode(Opcode.POP);
+      case dup -> b.addOpcode(Opcode.DUP);
+      case dup2 -> b.addOpcode(Opcode.DUP2);
+      case read -> helper(b, machine, "read", "(" + M + ")I");
+      case print -> helper(b, machine, "print", "(II" + M + ")V");
+      case bread -> helper(b, machine, "bread", "(" + M + ")I");
+      case bprint -> helper(b, machine, "bprint", "(II" + M + ")V");
+      default -> throw new UnsupportedCodeException("unexpected " + op + " at " + pc);
+    }
+  }
+
+  /**
+   * Emits the call at <code>pc</code>, which leaves the result on the JVM
+   * stack only if the callee returns one. Returns the number of slots from
+   * <code>temps</code> on that it needs for the arguments.
+   */
+  private int call(Bytecode b, int pc, int machine, int temps, Linker linker) {
+    CodeAnalysis.Method callee = analysis.methodAt(analysis.target(pc));
+    String owner = linker.classOf(callee);
+    int used = 0;
+    int pending = analysis.depth[pc] - callee.nPars; // operands kept below the arguments
+    if (pending != 0) {
+      b.addIconst(pending);
+      helper(b, machine, "pending", "(I" + M + ")V");
+    }
+    if (owner != null) {
+      b.addAload(machine);
+      b.addInvokestatic(owner, methodName(callee), descriptor(callee));
+    } else {
+      for (int i = callee.nPars - 1; i >= 0; i--) {
+        b.addIstore(temps + i);
+      }
+      for (int i = 0; i < callee.nPars; i++) {
+        b.addIload(temps + i);
+        helper(b, machine, "push", "(I" + M + ")V");
+      }
+      used = callee.nPars;
+      b.addIconst(callee.adr);
+      helper(b, machine, "invoke", "(I" + M + ")I");
+    }
+    if (pending != 0) {
+      b.addIconst(-pending);
+      helper(b, machine, "pending", "(I" + M + ")V");
+    }
+    if (!callee.returnsValue) {
+      b.addOpcode(Opcode.POP);
+    }
+    return used;
+  }
+
+  /**
+   * The conditional jump that is taken exactly when <code>op</code> is not.
+   */
+  private static OpCode negate(OpCode op) {
+    return switch (op) {
+      case jeq -> OpCode.jne;
+      case jne -> OpCode.jeq;
+      case jlt -> OpCode.jge;
+      case jle -> OpCode.jgt;
+      case jgt -> OpCode.jle;
+      default -> OpCode.jlt;
+    };
+  }
+
+  /**
+   * JVM opcode of the conditional jump <code>op</code>.
+   */
+  private static int branch(OpCode op) {
+    return switch (op) {
+      case jeq -> Opcode.IF_ICMPEQ;
+      case jne -> Opcode.IF_ICMPNE;
+      case jlt -> Opcode.IF_ICMPLT;
+      case jle -> Opcode.IF_ICMPLE;
+      case jgt -> Opcode.IF_ICMPGT;
+      default -> Opcode.IF_ICMPGE;
+    };
+  }
+
+  /**
+   * Creates an empty public class. Version 49 class files do not need stack
+   * map frames, which keeps the generated code simple.
+   */
+  static ClassFile newClass(String name) {
+    ClassFile cf = new ClassFile(false, name, null);
+    cf.setVersionToJava5();
+    cf.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.SUPER);
+    return cf;
+  }
+
+  /**
+   * Adds a public no-arg constructor to <code>cf</code>.
+   */
+  static void addConstructor(ClassFile cf) {
+    ConstPool cp = cf.getConstPool();
+    Bytecode b = new Bytecode(cp, 1, 1);
+    b.addAload(0);
+    b.addInvokespecial("java/lang/Object", MethodInfo.nameInit, "()V");
+    b.addOpcode(Opcode.RETURN);
+    MethodInfo mi = new MethodInfo(cp, MethodInfo.nameInit, "()V");
+    mi.setAccessFlags(AccessFlag.PUBLIC);
+    mi.setCodeAttribute(b.toCodeAttribute());
+    addMethod(cf, mi);
+  }
+
+  /**
+   * Implements {@link Machine.Compiled#call} in <code>cf</code> by calling
+   * the translation of <code>m</code> in the same class.
+   */
+  static void addBridge(CodeAnalysis.Method m, ClassFile cf) {
+    ConstPool cp = cf.getConstPool();
+    Bytecode b = new Bytecode(cp, m.nPars + 4, 5);
+    for (int i = 0; i < m.nPars; i++) { // stack[esp - nPars + i]
+      b.addAload(1);
+      b.addIload(2);
+      b.addIconst(m.nPars - i);
+      b.addOpcode(Opcode.ISUB);
+      b.addOpcode(Opcode.IALOAD);
+    }
+    b.addAload(3);
+    b.addInvokestatic(cf.getName().replace('.', '/'), methodName(m), descriptor(m));
+    if (m.returnsValue) {
+      b.addIstore(4);
+      b.addAload(1);
+      b.addIload(2);
+      b.addIconst(m.nPars);
+      b.addOpcode(Opcode.ISUB);
+      b.addIload(4);
+      b.addOpcode(Opcode.IASTORE);
+      b.addIload(2);
+      b.addIconst(m.nPars - 1);
+    } else {
+      b.addOpcode(Opcode.POP);
+      b.addIload(2);
+      b.addIconst(m.nPars);
+    }
+    b.addOpcode(Opcode.ISUB);
+    b.addOpcode(Opcode.IRETURN);
+    MethodInfo mi = new MethodInfo(cp, "call", "([II" + M + ")I");
+    mi.setAccessFlags(AccessFlag.PUBLIC);
+    mi.setCodeAttribute(b.toCodeAttribute());
+    addMethod(cf, mi);
+  }
+
+  private static void addMethod(ClassFile cf, MethodInfo mi) {
+    try {
+      cf.addMethod(mi);
+    } catch (DuplicateMemberException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void helper(Bytecode b, int machine, String name, String desc) {
+    b.addAload(machine);
+    b.addInvokestatic(MACHINE, name, desc);
+  }
+
+  /**
+   * JVM slot of MicroJava local <code>n</code>. Parameters come first, then
+   * the machine, then the remaining locals.
+   */
+  private static int local(CodeAnalysis.Method m, int n) throws UnsupportedCodeException {
+    if (n < 0 || n >= m.nLocals) {
+      throw new UnsupportedCodeException("local " + n + " out of range");
+    }
+    return n < m.nPars ? n : n + 1;
+  }
+}
@@ -0,0 +1,180 @@
+package ssw.mj;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Buffered I/O for the {@link Interpreter}. Output is encoded into a byte
+ * buffer, and full buffers are written to a channel by a background thread
+ * while the program fills the next one. {@link #flush()} waits until
+ * everything has been written.
+ * <p>
+ * Every character is encoded on its own, as by
+ * <code>PrintStream.print(char)</code>, so the output is the same as with
+ * {@link Interpreter#ConsoleIO} if the charsets agree. Output is flushed
+ * before a read that would block, so prompts still appear in time.
+ */
+public final class ChannelIO implements Interpreter.IO, Closeable {
+
+  private static final int BUFFERS = 2;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final InputStream in;
+  private final WritableByteChannel out;
+  private final Charset charset;
+  private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(BUFFERS);
+  private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(BUFFERS);
+  private ByteBuffer buf; // being filled
+  private Thread writer; // started with the first drained buffer
+  private volatile IOException error; // first write error of the writer
+
+  public ChannelIO(InputStream in, WritableByteChannel out, Charset charset) {
+    this.in = in;
+    this.out = out;
+    this.charset = charset;
+    buf = ByteBuffer.allocate(BUFFER_SIZE);
+    for (int i = 1; i < BUFFERS; i++) {
+      empty.add(ByteBuffer.allocate(BUFFER_SIZE));
+    }
+  }
+
+  /**
+   * Reads from standard input and writes to standard output, bypassing
+   * <code>System.out</code>.
+   */
+  public static ChannelIO console() {
+    return new ChannelIO(System.in, new FileOutputStream(FileDescriptor.out).getChannel(),
+            Charset.defaultCharset());
+  }
+
+  @Override
+  public char read() {
+    try {
+      if (buf.position() > 0 && in.available() == 0) {
+        flush();
+      }
+      int i = in.read();
+      if (i == -1) {
+        return 0;
+      }
+      return (char) i;
+    } catch (IOException ex) {
+      return 0;
+    }
+  }
+
+  @Override
+  public void write(char c) {
+    if (c < 0x80) { // same byte in all ASCII compatible charsets
+      if (!buf.hasRemaining()) {
+        drain();
+      }
+      buf.put((byte) c);
+    } else {
+      byte[] b = String.valueOf(c).getBytes(charset);
+      if (buf.remaining() < b.length) {
+        drain();
+      }
+      buf.put(b);
+    }
+  }
+
+  @Override
+  public void write(char[] chars, int off, int len) {
+    for (int i = off; i < off + len; i++) {
+      char c = chars[i];
+      if (c < 0x80 && buf.hasRemaining()) {
+        buf.put((byte) c);
+      } else {
+        write(c);
+      }
+    }
+  }
+
+  /**
+   * Writes all buffered output and waits until it is written.
+   */
+  @Override
+  public void flush() {
+    if (buf.position() > 0) {
+      drain();
+    }
+    if (writer != null) {
+      ByteBuffer[] all = new ByteBuffer[BUFFERS - 1];
+      for (int i = 0; i < all.length; i++) {
+        all[i] = take(empty);
+      }
+      for (ByteBuffer b : all) {
+        empty.add(b);
+      }
+    }
+    if (error != null) {
+      throw new IllegalStateException("output error: " + error.getMessage());
+    }
+  }
+
+  /**
+   * Flushes the output and stops the writer. The channel is not closed.
+   */
+  @Override
+  public void close() {
+    try {
+      flush();
+    } finally {
+      if (writer != null) {
+        writer.interrupt();
+        writer = null;
+      }
+    }
+  }
+
+  /**
+   * Hands the current buffer to the writer and continues with an empty one.
+   */
+  private void drain() {
+    if (writer == null) {
+      writer = new Thread(this::writeLoop, "mj-writer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+    buf.flip();
+    filled.add(buf); // cannot be full, we hold one of the buffers
+    buf = take(empty);
+  }
+
+  private void writeLoop() {
+    try {
+      for (;;) {
+        ByteBuffer b = filled.take();
+        try {
+          while (b.hasRemaining() && error == null) {
+            out.write(b);
+          }
+        } catch (IOException e) {
+          error = e; // reported by the next flush, later output is dropped
+        }
+        b.clear();
+        empty.add(b);
+      }
+    } catch (InterruptedException e) {
+      // closed
+    }
+  }
+
+  private static ByteBuffer take(BlockingQueue<ByteBuffer> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while writing output");
+    }
+  }
+}
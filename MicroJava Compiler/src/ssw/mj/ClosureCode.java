@@ -0,0 +1,1105 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles MicroJava methods into trees of node objects that evaluate
+ * themselves ("closure compilation"). <code>y = x + 5</code> becomes
+ * <code>SetLocal(y, AddConst(Local(x), 5))</code>; running the method calls
+ * <code>exec</code> on its statements instead of dispatching on opcodes, and
+ * the JVM inlines and specializes the small <code>eval</code> methods per
+ * call site like any other Java code.
+ * <p>
+ * Each basic block is translated by simulating the expression stack with
+ * expression trees. Expressions are evaluated in the order in which their
+ * values were pushed, and all pending expressions are evaluated before any
+ * statement, so deferring them neither reorders side effects nor traps.
+ * Values that stay on the stack across a block boundary or that are
+ * duplicated are spilled into frame words behind the locals.
+ * <p>
+ * A frame is an <code>int[]</code> of its own (locals, spilled operands,
+ * result) and calls recurse on the Java stack, so a running method cannot be
+ * suspended and its references are invisible to the garbage collector (see
+ * {@link Interpreter.Engine#CLOSURE}). Globals, heap and I/O go through a
+ * {@link Machine}, whose helpers also report the run-time errors and charge
+ * the frames against the stacks as compiled methods do.
+ */
+final class ClosureCode {
+
+  private final Machine m;
+  private final Method[] methodAt; // indexed by the address of enter
+
+  ClosureCode(CodeAnalysis analysis, Machine m) {
+    this.m = m;
+    methodAt = new Method[analysis.depth.length];
+    List<Call> calls = new ArrayList<>();
+    for (CodeAnalysis.Method am : analysis.methods) {
+      if (am.isValid()) {
+        methodAt[am.adr] = new Method(am, this);
+      }
+    }
+    for (CodeAnalysis.Method am : analysis.methods) {
+      if (am.isValid()) {
+        new Translator(analysis, am, calls).translate(methodAt[am.adr]);
+      }
+    }
+    for (Call c : calls) {
+      c.callee = methodAt[c.adr];
+    }
+  }
+
+  /**
+   * Runs the method at <code>adr</code> (main) with frames of at most
+   * <code>stackSize</code> words in total.
+   */
+  void run(int adr, int stackSize) {
+    Method main = methodAt[adr];
+    m.stackUsed = -1; // main() has no return address
+    m.stackLimit = stackSize;
+    m.operands = 0;
+    try {
+      main.invoke(new int[main.size]);
+    } catch (StackOverflowError e) {
+      throw new IllegalStateException("method stack overflow");
+    }
+  }
+
+  /**
+   * Readable form of the node trees.
+   */
+  String decode() {
+    StringBuilder sb = new StringBuilder();
+    for (Method mt : methodAt) {
+      if (mt == null) {
+        continue;
+      }
+      sb.append("method ").append(mt.adr).append(" (").append(mt.size).append(" words)\n");
+      for (int i = 0; i < mt.blocks.length; i++) {
+        Block b = mt.blocks[i];
+        sb.append("  B").append(i).append(":\n");
+        for (Stat s : b.body) {
+          sb.append("    ").append(s).append('\n');
+        }
+        sb.append("    ").append(b.end).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  // ----- methods and blocks
+
+  static final class Method {
+    final int adr;
+    final int size; // locals, spilled operands, result
+    final int words, maxStack; // charged against the stacks of the machine, see Machine.enter
+    private final ClosureCode owner;
+    Block[] blocks;
+
+    Method(CodeAnalysis.Method am, ClosureCode owner) {
+      adr = am.adr;
+      size = am.nLocals + am.maxStack + 1;
+      words = am.nLocals + 2;
+      maxStack = am.maxStack;
+      this.owner = owner;
+    }
+
+    /**
+     * Runs the method on frame <code>f</code>, which holds the arguments,
+     * and returns its result (0 for void methods).
+     */
+    int invoke(int[] f) {
+      Machine m = owner.m;
+      Machine.enter(words, maxStack, m);
+      Block[] bs = blocks;
+      int b = 0;
+      do {
+        Block blk = bs[b];
+        for (Stat s : blk.body) {
+          s.exec(f);
+        }
+        b = blk.end.next(f);
+      } while (b >= 0);
+      Machine.leave(words, m);
+      return f[f.length - 1];
+    }
+  }
+
+  static final class Block {
+    final Stat[] body;
+    final Jump end;
+
+    Block(Stat[] body, Jump end) {
+      this.body = body;
+      this.end = end;
+    }
+  }
+
+  abstract static class Expr {
+    abstract int eval(int[] f);
+  }
+
+  abstract static class Stat {
+    abstract void exec(int[] f);
+  }
+
+  /**
+   * Ends a block, <code>next</code> returns the index of the following
+   * block or -1 after the result was stored.
+   */
+  abstract static class Jump {
+    abstract int next(int[] f);
+  }
+
+  // ----- expressions
+
+  static final class Const extends Expr {
+    final int val;
+
+    Const(int val) {
+      this.val = val;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return val;
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(val);
+    }
+  }
+
+  static final class Local extends Expr {
+    final int n;
+
+    Local(int n) {
+      this.n = n;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return f[n];
+    }
+
+    @Override
+    public String toString() {
+      return "Local(" + n + ")";
+    }
+  }
+
+  static final class GetStatic extends Expr {
+    final int adr;
+    final Machine m;
+
+    GetStatic(int adr, Machine m) {
+      this.adr = adr;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return m.data[adr];
+    }
+
+    @Override
+    public String toString() {
+      return "GetStatic(" + adr + ")";
+    }
+  }
+
+  static final class GetField extends Expr {
+    final Expr obj;
+    final int off;
+    final Machine m;
+
+    GetField(Expr obj, int off, Machine m) {
+      this.obj = obj;
+      this.off = off;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return Machine.getfield(obj.eval(f), off, m);
+    }
+
+    @Override
+    public String toString() {
+      return "GetField(" + obj + ", " + off + ")";
+    }
+  }
+
+  static final class Add extends Expr {
+    final Expr a, b;
+
+    Add(Expr a, Expr b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return a.eval(f) + b.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "Add(" + a + ", " + b + ")";
+    }
+  }
+
+  static final class AddConst extends Expr {
+    final Expr a;
+    final int k;
+
+    AddConst(Expr a, int k) {
+      this.a = a;
+      this.k = k;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return a.eval(f) + k;
+    }
+
+    @Override
+    public String toString() {
+      return "AddConst(" + a + ", " + k + ")";
+    }
+  }
+
+  static final class Sub extends Expr {
+    final Expr a, b;
+
+    Sub(Expr a, Expr b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return a.eval(f) - b.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "Sub(" + a + ", " + b + ")";
+    }
+  }
+
+  static final class Mul extends Expr {
+    final Expr a, b;
+
+    Mul(Expr a, Expr b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return a.eval(f) * b.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "Mul(" + a + ", " + b + ")";
+    }
+  }
+
+  static final class Div extends Expr {
+    final Expr a, b;
+
+    Div(Expr a, Expr b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int eval(int[] f) {
+      int x = a.eval(f);
+      return Machine.div(x, b.eval(f));
+    }
+
+    @Override
+    public String toString() {
+      return "Div(" + a + ", " + b + ")";
+    }
+  }
+
+  static final class Rem extends Expr {
+    final Expr a, b;
+
+    Rem(Expr a, Expr b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int eval(int[] f) {
+      int x = a.eval(f);
+      return Machine.rem(x, b.eval(f));
+    }
+
+    @Override
+    public String toString() {
+      return "Rem(" + a + ", " + b + ")";
+    }
+  }
+
+  static final class Shl extends Expr {
+    final Expr a, b;
+
+    Shl(Expr a, Expr b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return a.eval(f) << b.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "Shl(" + a + ", " + b + ")";
+    }
+  }
+
+  static final class Shr extends Expr {
+    final Expr a, b;
+
+    Shr(Expr a, Expr b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return a.eval(f) >> b.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "Shr(" + a + ", " + b + ")";
+    }
+  }
+
+  static final class Neg extends Expr {
+    final Expr a;
+
+    Neg(Expr a) {
+      this.a = a;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return -a.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "Neg(" + a + ")";
+    }
+  }
+
+  static final class New extends Expr {
+    final int size;
+    final Machine m;
+
+    New(int size, Machine m) {
+      this.size = size;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return m.alloc(size);
+    }
+
+    @Override
+    public String toString() {
+      return "New(" + size + ")";
+    }
+  }
+
+  static final class NewArray extends Expr {
+    final Expr len;
+    final int kind;
+    final Machine m;
+
+    NewArray(Expr len, int kind, Machine m) {
+      this.len = len;
+      this.kind = kind;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return Machine.newArray(len.eval(f), kind, m);
+    }
+
+    @Override
+    public String toString() {
+      return "NewArray(" + len + ", " + kind + ")";
+    }
+  }
+
+  static final class ALoad extends Expr {
+    final Expr arr, idx;
+    final Machine m;
+
+    ALoad(Expr arr, Expr idx, Machine m) {
+      this.arr = arr;
+      this.idx = idx;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      int a = arr.eval(f);
+      return Machine.aload(a, idx.eval(f), m);
+    }
+
+    @Override
+    public String toString() {
+      return "ALoad(" + arr + ", " + idx + ")";
+    }
+  }
+
+  static final class BALoad extends Expr {
+    final Expr arr, idx;
+    final Machine m;
+
+    BALoad(Expr arr, Expr idx, Machine m) {
+      this.arr = arr;
+      this.idx = idx;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      int a = arr.eval(f);
+      return Machine.baload(a, idx.eval(f), m);
+    }
+
+    @Override
+    public String toString() {
+      return "BALoad(" + arr + ", " + idx + ")";
+    }
+  }
+
+  static final class ArrayLength extends Expr {
+    final Expr arr;
+    final Machine m;
+
+    ArrayLength(Expr arr, Machine m) {
+      this.arr = arr;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return Machine.arraylength(arr.eval(f), m);
+    }
+
+    @Override
+    public String toString() {
+      return "ArrayLength(" + arr + ")";
+    }
+  }
+
+  static final class Read extends Expr {
+    final boolean chr;
+    final Machine m;
+
+    Read(boolean chr, Machine m) {
+      this.chr = chr;
+      this.m = m;
+    }
+
+    @Override
+    int eval(int[] f) {
+      return chr ? m.readChar() : m.readInt();
+    }
+
+    @Override
+    public String toString() {
+      return chr ? "BRead" : "Read";
+    }
+  }
+
+  static final class Call extends Expr {
+    final int adr;
+    final Expr[] args;
+    final int pending; // operands that the caller keeps below the arguments
+    Method callee; // linked after all methods were translated
+
+    Call(int adr, Expr[] args, int pending) {
+      this.adr = adr;
+      this.args = args;
+      this.pending = pending;
+    }
+
+    @Override
+    int eval(int[] f) {
+      Method c = callee;
+      int[] g = new int[c.size];
+      for (int i = 0; i < args.length; i++) {
+        g[i] = args[i].eval(f);
+      }
+      Machine m = c.owner.m;
+      m.operands += pending;
+      int result = c.invoke(g);
+      m.operands -= pending;
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("Call(").append(adr);
+      for (Expr a : args) {
+        sb.append(", ").append(a);
+      }
+      return sb.append(')').toString();
+    }
+  }
+
+  // ----- statements
+
+  static final class SetLocal extends Stat {
+    final int n;
+    final Expr val;
+
+    SetLocal(int n, Expr val) {
+      this.n = n;
+      this.val = val;
+    }
+
+    @Override
+    void exec(int[] f) {
+      f[n] = val.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "SetLocal(" + n + ", " + val + ")";
+    }
+  }
+
+  static final class Inc extends Stat {
+    final int n, k;
+
+    Inc(int n, int k) {
+      this.n = n;
+      this.k = k;
+    }
+
+    @Override
+    void exec(int[] f) {
+      f[n] += k;
+    }
+
+    @Override
+    public String toString() {
+      return "Inc(" + n + ", " + k + ")";
+    }
+  }
+
+  static final class PutStatic extends Stat {
+    final int adr;
+    final Expr val;
+    final Machine m;
+
+    PutStatic(int adr, Expr val, Machine m) {
+      this.adr = adr;
+      this.val = val;
+      this.m = m;
+    }
+
+    @Override
+    void exec(int[] f) {
+      m.data[adr] = val.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "PutStatic(" + adr + ", " + val + ")";
+    }
+  }
+
+  static final class PutField extends Stat {
+    final Expr obj, val;
+    final int off;
+    final Machine m;
+
+    PutField(Expr obj, int off, Expr val, Machine m) {
+      this.obj = obj;
+      this.off = off;
+      this.val = val;
+      this.m = m;
+    }
+
+    @Override
+    void exec(int[] f) {
+      int adr = obj.eval(f);
+      Machine.putfield(adr, val.eval(f), off, m);
+    }
+
+    @Override
+    public String toString() {
+      return "PutField(" + obj + ", " + off + ", " + val + ")";
+    }
+  }
+
+  static final class AStore extends Stat {
+    final Expr arr, idx, val;
+    final boolean bytes;
+    final Machine m;
+
+    AStore(Expr arr, Expr idx, Expr val, boolean bytes, Machine m) {
+      this.arr = arr;
+      this.idx = idx;
+      this.val = val;
+      this.bytes = bytes;
+      this.m = m;
+    }
+
+    @Override
+    void exec(int[] f) {
+      int a = arr.eval(f);
+      int i = idx.eval(f);
+      int v = val.eval(f);
+      if (bytes) {
+        Machine.bastore(a, i, v, m);
+      } else {
+        Machine.astore(a, i, v, m);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return (bytes ? "BAStore(" : "AStore(") + arr + ", " + idx + ", " + val + ")";
+    }
+  }
+
+  static final class Print extends Stat {
+    final Expr val, width;
+    final boolean chr;
+    final Machine m;
+
+    Print(Expr val, Expr width, boolean chr, Machine m) {
+      this.val = val;
+      this.width = width;
+      this.chr = chr;
+      this.m = m;
+    }
+
+    @Override
+    void exec(int[] f) {
+      int v = val.eval(f);
+      int w = width.eval(f);
+      if (chr) {
+        Machine.bprint(v, w, m);
+      } else {
+        m.print(v, w);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return (chr ? "BPrint(" : "Print(") + val + ", " + width + ")";
+    }
+  }
+
+  /**
+   * Evaluates an expression for its side effects, e.g. a call whose result
+   * is not used.
+   */
+  static final class Eval extends Stat {
+    final Expr e;
+
+    Eval(Expr e) {
+      this.e = e;
+    }
+
+    @Override
+    void exec(int[] f) {
+      e.eval(f);
+    }
+
+    @Override
+    public String toString() {
+      return "Eval(" + e + ")";
+    }
+  }
+
+  // ----- block ends
+
+  static final class Goto extends Jump {
+    final int target;
+
+    Goto(int target) {
+      this.target = target;
+    }
+
+    @Override
+    int next(int[] f) {
+      return target;
+    }
+
+    @Override
+    public String toString() {
+      return "Goto(B" + target + ")";
+    }
+  }
+
+  static final class If extends Jump {
+    final OpCode op;
+    final Expr a, b;
+    final int target, fallThrough;
+
+    If(OpCode op, Expr a, Expr b, int target, int fallThrough) {
+      this.op = op;
+      this.a = a;
+      this.b = b;
+      this.target = target;
+      this.fallThrough = fallThrough;
+    }
+
+    @Override
+    int next(int[] f) {
+      int x = a.eval(f), y = b.eval(f);
+      boolean taken = switch (op) {
+        case jeq -> x == y;
+        case jne -> x != y;
+        case jlt -> x < y;
+        case jle -> x <= y;
+        case jgt -> x > y;
+        default -> x >= y;
+      };
+      return taken ? target : fallThrough;
+    }
+
+    @Override
+    public String toString() {
+      return "If(" + op + ", " + a + ", " + b + ", B" + target + ", B" + fallThrough + ")";
+    }
+  }
+
+  static final class Return extends Jump {
+    final Expr val; // null for void methods
+
+    Return(Expr val) {
+      this.val = val;
+    }
+
+    @Override
+    int next(int[] f) {
+      f[f.length - 1] = val == null ? 0 : val.eval(f);
+      return -1;
+    }
+
+    @Override
+    public String toString() {
+      return "Return(" + (val == null ? "" : val) + ")";
+    }
+  }
+
+  static final class Trap extends Jump {
+    final int n;
+
+    Trap(int n) {
+      this.n = n;
+    }
+
+    @Override
+    int next(int[] f) {
+      throw Machine.trap(n);
+    }
+
+    @Override
+    public String toString() {
+      return "Trap(" + n + ")";
+    }
+  }
+
+  // ----- translation
+
+  private final class Translator {
+    private final CodeAnalysis a;
+    private final CodeAnalysis.Method am;
+    private final List<Call> calls;
+    private final int[] blockAt; // block index per pc - adr, -1 if no leader
+    private final Expr[] stack;
+    private int n; // number of simulated operands
+    private final List<Stat> body = new ArrayList<>();
+
+    Translator(CodeAnalysis a, CodeAnalysis.Method am, List<Call> calls) {
+      this.a = a;
+      this.am = am;
+      this.calls = calls;
+      blockAt = new int[am.end - am.adr];
+      stack = new Expr[am.maxStack + 1];
+    }
+
+    void translate(Method mt) {
+      int[] depth = a.depth;
+      boolean[] leader = new boolean[am.end - am.adr];
+      leader[0] = true;
+      for (int pc = am.adr; pc < am.end; pc += a.sizeAt(pc)) {
+        if (depth[pc] < 0) {
+          continue;
+        }
+        int next = pc + a.sizeAt(pc);
+        switch (a.opAt(pc)) {
+          case jmp, jeq, jne, jlt, jle, jgt, jge -> {
+            leader[a.target(pc) - am.adr] = true;
+            if (next < am.end) {
+              leader[next - am.adr] = true;
+            }
+          }
+          case return_, trap -> {
+            if (next < am.end) {
+              leader[next - am.adr] = true;
+            }
+          }
+          default -> {
+          }
+        }
+      }
+      int nBlocks = 0;
+      for (int pc = am.adr; pc < am.end; pc += a.sizeAt(pc)) {
+        blockAt[pc - am.adr] = leader[pc - am.adr] && depth[pc] >= 0 ? nBlocks++ : -1;
+      }
+      Block[] blocks = new Block[nBlocks];
+      for (int pc = am.adr; pc < am.end; pc += a.sizeAt(pc)) {
+        int b = blockAt[pc - am.adr];
+        if (b >= 0) {
+          blocks[b] = block(pc);
+        }
+      }
+      mt.blocks = blocks;
+    }
+
+    /**
+     * Translates the block starting at <code>start</code>.
+     */
+    private Block block(int start) {
+      body.clear();
+      n = a.depth[start];
+      for (int d = 0; d < n; d++) {
+        stack[d] = slot(d);
+      }
+      int pc = start;
+      while (true) {
+        OpCode op = a.opAt(pc);
+        int next = pc + a.sizeAt(pc);
+        switch (op) {
+          case load -> push(new Local(a.get1(pc + 1)));
+          case load_0, load_1, load_2, load_3 -> push(new Local(op.ordinal() - OpCode.load_0.ordinal()));
+          case store -> setLocal(a.get1(pc + 1));
+          case store_0, store_1, store_2, store_3 -> setLocal(op.ordinal() - OpCode.store_0.ordinal());
+          case getstatic -> push(new GetStatic(a.get2(pc + 1), m));
+          case putstatic -> {
+            Expr val = pop();
+            statement(new PutStatic(a.get2(pc + 1), val, m));
+          }
+          case getfield -> push(new GetField(pop(), a.get2(pc + 1), m));
+          case putfield -> {
+            Expr val = pop(), obj = pop();
+            statement(new PutField(obj, a.get2(pc + 1), val, m));
+          }
+          case const_0, const_1, const_2, const_3, const_4, const_5 ->
+                  push(new Const(op.ordinal() - OpCode.const_0.ordinal()));
+          case const_m1 -> push(new Const(-1));
+          case const_ -> push(new Const(a.get4(pc + 1)));
+          case add, sub, mul, div, rem, shl, shr -> {
+            Expr y = pop(), x = pop();
+            push(binary(op, x, y));
+          }
+          case neg -> {
+            Expr x = pop();
+            push(x instanceof Const c ? new Const(-c.val) : new Neg(x));
+          }
+          case inc -> statement(new Inc(a.get1(pc + 1), a.get1(pc + 2)));
+          case new_ -> push(new New(a.get2(pc + 1) * 4, m));
+          case newarray -> push(new NewArray(pop(), a.get1(pc + 1), m));
+          case aload, baload -> {
+            Expr idx = pop(), arr = pop();
+            push(op == OpCode.aload ? new ALoad(arr, idx, m) : new BALoad(arr, idx, m));
+          }
+          case astore, bastore -> {
+            Expr val = pop(), idx = pop(), arr = pop();
+            statement(new AStore(arr, idx, val, op == OpCode.bastore, m));
+          }
+          case arraylength -> push(new ArrayLength(pop(), m));
+          case pop -> {
+            Expr x = pop();
+            if (!(x instanceof Const || x instanceof Local)) {
+              statement(new Eval(x));
+            }
+          }
+          case dup -> {
+            spill();
+            push(stack[n - 1]);
+          }
+          case dup2 -> {
+            spill();
+            Expr x = stack[n - 2], y = stack[n - 1];
+            push(x);
+            push(y);
+          }
+          case jmp -> {
+            flush();
+            return end(new Goto(blockAt[a.target(pc) - am.adr]));
+          }
+          case jeq, jne, jlt, jle, jgt, jge -> {
+            Expr y = pop(), x = pop();
+            flush();
+            return end(new If(op, x, y, blockAt[a.target(pc) - am.adr], blockAt[next - am.adr]));
+          }
+          case call -> {
+            int adr = a.target(pc);
+            CodeAnalysis.Method callee = a.methodAt(adr);
+            Expr[] args = new Expr[callee.nPars];
+            for (int i = args.length - 1; i >= 0; i--) {
+              args[i] = pop();
+            }
+            Call c = new Call(adr, args, a.depth[pc] - callee.nPars);
+            calls.add(c);
+            if (callee.returnsValue) {
+              push(c);
+            } else {
+              statement(new Eval(c));
+            }
+          }
+          case return_ -> {
+            return end(new Return(n > 0 ? pop() : null));
+          }
+          case read -> push(new Read(false, m));
+          case bread -> push(new Read(true, m));
+          case print, bprint -> {
+            Expr width = pop(), val = pop();
+            statement(new Print(val, width, op == OpCode.bprint, m));
+          }
+          case trap -> {
+            spill();
+            return end(new Trap(a.get1(pc + 1)));
+          }
+          case enter -> n = 0; // the arguments are the first locals of the frame
+          case exit, nop -> {
+            // frames are Java arrays
+          }
+        }
+        pc = next;
+        if (pc < am.end && blockAt[pc - am.adr] >= 0) {
+          flush();
+          return end(new Goto(blockAt[pc - am.adr]));
+        }
+      }
+    }
+
+    private Block end(Jump j) {
+      return new Block(body.toArray(new Stat[0]), j);
+    }
+
+    private Local slot(int d) {
+      return new Local(am.nLocals + d);
+    }
+
+    private void push(Expr e) {
+      stack[n++] = e;
+    }
+
+    private Expr pop() {
+      return stack[--n];
+    }
+
+    private void setLocal(int x) {
+      Expr val = pop();
+      if (val instanceof AddConst ac && ac.a instanceof Local l && l.n == x) {
+        statement(new Inc(x, ac.k));
+      } else {
+        statement(new SetLocal(x, val));
+      }
+    }
+
+    /**
+     * Adds <code>s</code> after evaluating the pending operands, which were
+     * pushed before the operands of <code>s</code>.
+     */
+    private void statement(Stat s) {
+      spill();
+      body.add(s);
+    }
+
+    /**
+     * Evaluates all operands except constants into their spill slots.
+     */
+    private void spill() {
+      for (int d = 0; d < n; d++) {
+        Expr e = stack[d];
+        if (!(e instanceof Const) && !isSlot(e, d)) {
+          body.add(new SetLocal(am.nLocals + d, e));
+          stack[d] = slot(d);
+        }
+      }
+    }
+
+    /**
+     * Stores all operands into their spill slots, where the next block
+     * expects them.
+     */
+    private void flush() {
+      spill();
+      for (int d = 0; d < n; d++) {
+        if (!isSlot(stack[d], d)) {
+          body.add(new SetLocal(am.nLocals + d, stack[d]));
+        }
+      }
+    }
+
+    private boolean isSlot(Expr e, int d) {
+      return e instanceof Local l && l.n == am.nLocals + d;
+    }
+
+    private Expr binary(OpCode op, Expr x, Expr y) {
+      if (x instanceof Const cx && y instanceof Const cy) {
+        switch (op) {
+          case add -> {
+            return new Const(cx.val + cy.val);
+          }
+          case sub -> {
+            return new Const(cx.val - cy.val);
+          }
+          case mul -> {
+            return new Const(cx.val * cy.val);
+          }
+          case shl -> {
+            return new Const(cx.val << cy.val);
+          }
+          case shr -> {
+            return new Const(cx.val >> cy.val);
+          }
+          default -> {
+            // division by zero has to trap at run time
+          }
+        }
+      }
+      return switch (op) {
+        case add -> y instanceof Const c ? new AddConst(x, c.val)
+                : x instanceof Const c ? new AddConst(y, c.val) : new Add(x, y);
+        case sub -> y instanceof Const c ? new AddConst(x, -c.val) : new Sub(x, y);
+        case mul -> new Mul(x, y);
+        case div -> new Div(x, y);
+        case rem -> new Rem(x, y);
+        case shl -> new Shl(x, y);
+        default -> new Shr(x, y);
+      };
+    }
+  }
+}
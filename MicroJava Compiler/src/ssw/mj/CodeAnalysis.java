@@ -0,0 +1,339 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static analysis of a MicroJava code array. Splits the code into methods
+ * (every <code>enter</code> instruction starts a new one) and computes the
+ * expression stack depth before every reachable instruction.
+ * <p>
+ * The byte code does not tell whether a method returns a value. This is
+ * derived from the stack depth at its <code>return</code> instructions, which
+ * in turn depends on the methods it calls. The analysis therefore starts with
+ * the guess that methods ending in a <code>trap</code> (the code generated
+ * after the body of a function) return a value and iterates until the
+ * assumptions are stable.
+ */
+final class CodeAnalysis {
+
+  /**
+   * A method, i.e. the code from one <code>enter</code> up to the next.
+   */
+  static final class Method {
+    /**
+     * Address of the <code>enter</code> instruction.
+     */
+    final int adr;
+    /**
+     * First address after the method.
+     */
+    final int end;
+    /**
+     * Number of parameters and number of local variables (including
+     * parameters) as given by <code>enter</code>.
+     */
+    final int nPars, nLocals;
+    /**
+     * Whether <code>return</code> leaves a value on the expression stack.
+     */
+    boolean returnsValue;
+    /**
+     * Maximum expression stack depth within the method (including the
+     * arguments popped by <code>enter</code>).
+     */
+    int maxStack;
+    /**
+     * Reason why the method could not be analyzed, <code>null</code> if it
+     * is well-formed.
+     */
+    String error;
+
+    Method(int adr, int end, int nPars, int nLocals) {
+      this.adr = adr;
+      this.end = end;
+      this.nPars = nPars;
+      this.nLocals = nLocals;
+    }
+
+    boolean isValid() {
+      return error == null;
+    }
+
+    @Override
+    public String toString() {
+      return "method@" + adr + "(" + nPars + " pars, " + nLocals + " locals"
+              + (returnsValue ? ", value" : "") + ")";
+    }
+  }
+
+  /**
+   * Code array and number of valid bytes in it.
+   */
+  final byte[] code;
+  final int codeSize;
+
+  /**
+   * All methods sorted by address.
+   */
+  final List<Method> methods = new ArrayList<>();
+
+  /**
+   * Maps the address of an <code>enter</code> instruction to its method.
+   */
+  private final Method[] methodAt;
+
+  /**
+   * Stack depth before the instruction at each address (-1 if unreachable or
+   * not the start of an instruction).
+   */
+  final int[] depth;
+
+  /**
+   * Whether an instruction starts at the given address.
+   */
+  private final boolean[] instrStart;
+
+  CodeAnalysis(byte[] code, int codeSize) {
+    this.code = code;
+    this.codeSize = Math.min(codeSize, code.length);
+    methodAt = new Method[this.codeSize];
+    depth = new int[this.codeSize];
+    instrStart = new boolean[this.codeSize];
+    findMethods();
+    inferReturns();
+  }
+
+  /**
+   * Method containing address <code>pc</code>, or <code>null</code>.
+   */
+  Method methodContaining(int pc) {
+    int lo = 0, hi = methods.size() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      Method m = methods.get(mid);
+      if (pc < m.adr) {
+        hi = mid - 1;
+      } else if (pc >= m.end) {
+        lo = mid + 1;
+      } else {
+        return m;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Method starting at address <code>adr</code>, or <code>null</code>.
+   */
+  Method methodAt(int adr) {
+    return adr >= 0 && adr < methodAt.length ? methodAt[adr] : null;
+  }
+
+  // ----- decoding helpers
+
+  OpCode opAt(int pc) {
+    return OpCode.get(code[pc]);
+  }
+
+  /**
+   * Size of the instruction at <code>pc</code> in bytes (1 for unknown
+   * opcodes).
+   */
+  int sizeAt(int pc) {
+    OpCode op = opAt(pc);
+    return op == null ? 1 : 1 + ThreadedCode.operandSize(op);
+  }
+
+  int get1(int pos) {
+    return code[pos];
+  }
+
+  int get2(int pos) {
+    return (short) ((code[pos] << 8) + (code[pos + 1] & 0xff));
+  }
+
+  int get4(int pos) {
+    return (get2(pos) << 16) + (get2(pos + 2) & 0xffff);
+  }
+
+  /**
+   * Absolute target of the jump or call at <code>pc</code>.
+   */
+  int target(int pc) {
+    return pc + get2(pc + 1);
+  }
+
+  // ----- analysis
+
+  private void findMethods() {
+    List<Integer> starts = new ArrayList<>();
+    int pc = 0;
+    while (pc < codeSize) {
+      OpCode op = opAt(pc);
+      if (op == null) {
+        break; // end of generated code, e.g. unused part of the code buffer
+      }
+      if (op == OpCode.enter) {
+        starts.add(pc);
+      }
+      instrStart[pc] = true;
+      pc += sizeAt(pc);
+    }
+    int end = Math.min(pc, codeSize);
+    for (int i = 0; i < starts.size(); i++) {
+      int adr = starts.get(i);
+      int next = i + 1 < starts.size() ? starts.get(i + 1) : end;
+      if (adr + 3 > next) {
+        continue;
+      }
+      Method m = new Method(adr, next, get1(adr + 1), get1(adr + 2));
+      m.returnsValue = lastOp(m) == OpCode.trap;
+      methods.add(m);
+      methodAt[adr] = m;
+    }
+  }
+
+  private OpCode lastOp(Method m) {
+    OpCode last = null;
+    for (int pc = m.adr; pc < m.end; pc += sizeAt(pc)) {
+      last = opAt(pc);
+    }
+    return last;
+  }
+
+  private void inferReturns() {
+    for (int round = 0; round <= methods.size(); round++) {
+      boolean changed = false;
+      for (Method m : methods) {
+        int ret = analyze(m);
+        if (ret >= 0 && m.returnsValue != (ret == 1)) {
+          m.returnsValue = ret == 1;
+          changed = true;
+        }
+      }
+      if (!changed) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Computes the stack depths of method <code>m</code> and returns the depth
+   * at its <code>return</code> instructions (-1 if there is none or the
+   * method is malformed).
+   */
+  private int analyze(Method m) {
+    Arrays.fill(depth, m.adr, m.end, -1);
+    m.error = null;
+    m.maxStack = 0;
+    int retDepth = -1;
+    ArrayDeque<Integer> work = new ArrayDeque<>();
+    depth[m.adr] = m.nPars;
+    work.push(m.adr);
+    while (!work.isEmpty() && m.error == null) {
+      int pc = work.pop();
+      int d = depth[pc];
+      OpCode op = opAt(pc);
+      int size = sizeAt(pc);
+      if (op == null || pc + size > m.end) {
+        m.error = "invalid instruction at " + pc;
+        break;
+      }
+      int pops = pops(op, pc), pushes = pushes(op, pc);
+      if (pops < 0) {
+        m.error = "invalid call target at " + pc;
+        break;
+      }
+      if (op == OpCode.enter && pc != m.adr) {
+        m.error = "enter in the middle of a method at " + pc;
+        break;
+      }
+      if (d < pops) {
+        m.error = "expression stack underflow at " + pc;
+        break;
+      }
+      int after = d - pops + pushes;
+      m.maxStack = Math.max(m.maxStack, Math.max(d, after));
+      switch (op) {
+        case return_ -> {
+          if (d > 1 || retDepth >= 0 && retDepth != d) {
+            m.error = "inconsistent return at " + pc;
+          }
+          retDepth = d;
+        }
+        case trap -> {
+        }
+        case exit -> {
+          if (pc + 1 >= m.end || opAt(pc + 1) != OpCode.return_) {
+            m.error = "exit not followed by return at " + pc;
+          } else {
+            flow(m, pc + 1, after, work);
+          }
+        }
+        case jmp -> flow(m, target(pc), after, work);
+        case jeq, jne, jlt, jle, jgt, jge -> {
+          flow(m, target(pc), after, work);
+          flow(m, pc + size, after, work);
+        }
+        default -> flow(m, pc + size, after, work);
+      }
+    }
+    return m.error == null ? retDepth : -1;
+  }
+
+  private void flow(Method m, int to, int d, ArrayDeque<Integer> work) {
+    if (m.error != null) {
+      return;
+    }
+    if (to < m.adr || to >= m.end || !instrStart[to]) {
+      m.error = "invalid jump target " + to;
+    } else if (depth[to] < 0) {
+      depth[to] = d;
+      work.push(to);
+    } else if (depth[to] != d) {
+      m.error = "inconsistent stack depth at " + to;
+    }
+  }
+
+  /**
+   * Number of values popped by the instruction at <code>pc</code> (-1 for a
+   * call to something that is not a method).
+   */
+  int pops(OpCode op, int pc) {
+    return switch (op) {
+      case store, store_0, store_1, store_2, store_3, putstatic, getfield, neg, newarray, arraylength, pop, dup -> 1;
+      case putfield, add, sub, mul, div, rem, shl, shr, aload, baload, dup2, jeq, jne, jlt, jle, jgt, jge, print,
+           bprint -> 2;
+      case astore, bastore -> 3;
+      case enter -> get1(pc + 1);
+      case call -> {
+        Method callee = methodAt(target(pc));
+        yield callee == null ? -1 : callee.nPars;
+      }
+      default -> 0;
+    };
+  }
+
+  /**
+   * Number of values pushed by the instruction at <code>pc</code>.
+   */
+  int pushes(OpCode op, int pc) {
+    return switch (op) {
+      case load, load_0, load_1, load_2, load_3, getstatic, getfield, const_0, const_1, const_2, const_3, const_4,
+           const_5, const_m1, const_, add, sub, mul, div, rem, neg, shl, shr, new_, newarray, aload, baload,
+           arraylength, read, bread -> 1;
+      case dup -> 2;
+      case dup2 -> 4;
+      case call -> {
+        Method callee = methodAt(target(pc));
+        yield callee != null && callee.returnsValue ? 1 : 0;
+      }
+      default -> 0;
+    };
+  }
+}
@@ -9,8 +9,12 @@ import java.io.*;
  * <code>Compiler</code> is the driver for the MicroJava-Compiler.
  * <p>
  * Execute<br>
- * <code>java ssw.mj.Compiler &lt;<i>MJ-Source-Filename</i>&gt;</code><br>
- * to start compilation.
+ * <code>java ssw.mj.Compiler &lt;<i>MJ-Source-Filename</i>&gt; [-jar] [-O]</code><br>
+ * to start compilation. With <code>-jar</code>, an executable jar that runs
+ * the program on the JVM is written as well (see {@link AotCompiler}). With
+ * <code>-O</code>, objects that do not escape their method are replaced by
+ * locals (see {@link ssw.mj.codegen.EscapeAnalysis}) and self-recursive
+ * calls in <code>return</code> statements become jumps.
  */
 public class Compiler {
 
@@ -22,13 +26,48 @@ public class Compiler {
     return s.substring(0, i) + ".obj";
   }
 
+  private static String jarFileName(String s) {
+    return objFileName(s).replaceFirst("\\.obj$", ".jar");
+  }
+
+  /**
+   * Name of the main class of the jar: the base name of the source file,
+   * turned into a valid Java identifier.
+   */
+  private static String className(String s) {
+    String name = new File(s).getName();
+    int i = name.lastIndexOf('.');
+    if (i > 0) {
+      name = name.substring(0, i);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (char ch : name.toCharArray()) {
+      sb.append(Character.isJavaIdentifierPart(ch) ? ch : '_');
+    }
+    if (sb.isEmpty() || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+      sb.insert(0, '_');
+    }
+    return sb.toString();
+  }
+
   public static void main(String[] args) {
     // --- get the filename
-    if (args.length != 1) {
-      System.out.println("usage: java Compiler filename.mj");
+    String inFilename = null;
+    boolean jar = false;
+    boolean optimize = false;
+    for (String arg : args) {
+      if (arg.equals("-jar")) {
+        jar = true;
+      } else if (arg.equals("-O")) {
+        optimize = true;
+      } else {
+        inFilename = arg;
+      }
+    }
+    if (inFilename == null) {
+      System.out.println("usage: java Compiler filename.mj [-jar] [-O]");
       return;
     }
-    String inFilename = args[0];
     String outFilename = objFileName(inFilename);
 
     try {
@@ -38,9 +77,19 @@ public class Compiler {
       System.out.println("Parsing file " + inFilename);
 
       Parser parser = new Parser(scanner);
+      parser.scalarReplacement = optimize;
+      parser.tailCalls = optimize;
       parser.parse();
       if (scanner.errors.numErrors() == 0) {
         parser.code.write(new BufferedOutputStream(new FileOutputStream(outFilename)));
+        if (jar) {
+          try (OutputStream out = new BufferedOutputStream(new FileOutputStream(jarFileName(inFilename)))) {
+            AotCompiler.writeJar(parser.code.buf, parser.code.pc, parser.code.dataSize, parser.code.mainpc,
+                    className(inFilename), out);
+          }
+          System.err.println("-- warning: no garbage collection in " + jarFileName(inFilename)
+                  + ", the heap is never reclaimed");
+        }
       }
 
       if (scanner.errors.numErrors() > 0) {
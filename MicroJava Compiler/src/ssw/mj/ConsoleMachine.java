@@ -0,0 +1,97 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runtime of standalone programs generated by {@link AotCompiler}. Mirrors
+ * the heap layout, the default limits and the console I/O of the
+ * {@link Interpreter}. The heap is never garbage collected.
+ */
+public class ConsoleMachine extends Machine {
+
+  private static final int heapSize = 100000, // maximum size of the heap in words
+          initialHeapSize = 4096; // words allocated up front
+  private static final int stackSize = 4000; // size of the method stack in words
+
+  private int free; // next free heap address
+
+  public ConsoleMachine(int dataSize) {
+    data = new int[dataSize];
+    heap = new int[initialHeapSize];
+    stackUsed = -1; // main() has no return address
+    stackLimit = stackSize;
+    free = 1; // no block should start at address 0
+  }
+
+  @Override
+  public int alloc(int size) {
+    int adr = free;
+    free += ((size + 3) >> 2); // skip to next free adr
+    if (free > heap.length) {
+      if (free > heapSize) {
+        throw new IllegalStateException("heap overflow");
+      }
+      heap = Arrays.copyOf(heap, Math.max(free, Math.min(heapSize, 2 * heap.length)));
+    }
+    return adr;
+  }
+
+  @Override
+  public int readInt() {
+    int val = 0;
+    int prev = ' ';
+    int b = readChar();
+    while (b < '0' || b > '9') {
+      prev = b;
+      b = readChar();
+    }
+    while (b >= '0' && b <= '9') {
+      val = 10 * val + b - '0';
+      b = readChar();
+    }
+    if (prev == '-') {
+      val = -val;
+    }
+    return val;
+  }
+
+  @Override
+  public int readChar() {
+    try {
+      int i = System.in.read();
+      if (i == -1) {
+        return 0;
+      }
+      return (char) i;
+    } catch (IOException ex) {
+      return 0;
+    }
+  }
+
+  @Override
+  public void write(String s, int pad) {
+    for (int i = 0; i < pad; i++) {
+      System.out.print(' ');
+    }
+    for (int i = 0; i < s.length(); i++) {
+      System.out.print(s.charAt(i));
+    }
+  }
+
+  /**
+   * Not used, the generated program calls every method directly.
+   */
+  @Override
+  public void push(int val) {
+    throw new IllegalStateException("internal error: argument pushed for a method that was not compiled");
+  }
+
+  /**
+   * Not used, the generated program calls every method directly.
+   */
+  @Override
+  public int invoke(int adr) {
+    throw new IllegalStateException("internal error: method " + adr + " was not compiled");
+  }
+}
@@ -0,0 +1,84 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Trace of every executed instruction with its operands and the expression
+ * stack after it (<code>-debug</code>).
+ * <p>
+ * The trace is buffered. It is flushed before every I/O instruction, so that
+ * it stays in order with the output of the program on the same stream, and
+ * when the program ends.
+ */
+public final class DebugListener implements ExecutionListener {
+
+  private final PrintStream out;
+  private boolean started; // header written
+  private boolean pending; // stack after the last instruction not yet written
+
+  public DebugListener(OutputStream out) {
+    this.out = new PrintStream(new BufferedOutputStream(out, 1 << 16), false);
+  }
+
+  @Override
+  public void instruction(Interpreter vm, int pc, OpCode op) {
+    if (!started) {
+      out.println();
+      out.println("  pos: instruction operands");
+      out.println("     | expressionstack");
+      out.println("-----------------------------");
+      started = true;
+    }
+    if (pending) { // the stack after an instruction is the one before the next
+      out.println();
+      out.print("     | ");
+      for (int i = 0; i < vm.esp(); i++) {
+        out.print(vm.stackAt(i) + " ");
+      }
+      out.println();
+    }
+    pending = true;
+    out.printf("%5d: %s ", pc, op != null ? op.cleanName() : "???");
+    if (op == null) {
+      return;
+    }
+    byte[] code = vm.code();
+    switch (op) {
+      case load, store, newarray, trap -> out.print(code[pc + 1] + " ");
+      case inc, enter -> out.print(code[pc + 1] + " " + code[pc + 2] + " ");
+      case getstatic, putstatic, getfield, putfield, new_, jmp, jeq, jne, jlt, jle, jgt, jge, call ->
+              out.print((short) ((code[pc + 1] << 8) + (code[pc + 2] & 0xff)) + " ");
+      case const_ -> out.print(((code[pc + 1] & 0xff) << 24 | (code[pc + 2] & 0xff) << 16
+              | (code[pc + 3] & 0xff) << 8 | code[pc + 4] & 0xff) + " ");
+      case astore -> {
+        int esp = vm.esp();
+        if (esp >= 3 && vm.stackAt(esp - 3) != 0) {
+          int adr = vm.stackAt(esp - 3);
+          out.println("\nArraylength = " + vm.heapAt(adr - 1));
+          out.println("Address = " + adr);
+          out.println("Index = " + vm.stackAt(esp - 2));
+          out.println("Value = " + vm.stackAt(esp - 1));
+        }
+      }
+      case read, print, bread, bprint -> out.flush();
+      default -> {
+      }
+    }
+  }
+
+  @Override
+  public void returned(Interpreter vm, int pc, int adr) {
+    if (adr < 0) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void trap(Interpreter vm, int pc, RuntimeException e) {
+    out.flush();
+  }
+}
@@ -0,0 +1,51 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+/**
+ * Observer of a running {@link Interpreter} (see
+ * {@link Interpreter#addListener}). Listeners are only called by the
+ * instrumented interpreter loop; a program without listeners runs in a loop
+ * that has no hooks at all.
+ * <p>
+ * The state of the VM can be inspected through the accessors of
+ * {@link Interpreter}, but must not be changed.
+ */
+public interface ExecutionListener {
+
+  /**
+   * Called before the instruction <code>op</code> at <code>pc</code> is
+   * executed.
+   */
+  default void instruction(Interpreter vm, int pc, OpCode op) {
+  }
+
+  /**
+   * The <code>call</code> at <code>pc</code> entered the method at
+   * <code>adr</code>.
+   */
+  default void call(Interpreter vm, int pc, int adr) {
+  }
+
+  /**
+   * The <code>return</code> at <code>pc</code> went back to
+   * <code>adr</code>, or -1 if main() returned and the program ends.
+   */
+  default void returned(Interpreter vm, int pc, int adr) {
+  }
+
+  /**
+   * The <code>new</code> or <code>newarray</code> at <code>pc</code>
+   * allocated <code>size</code> bytes for the object or array
+   * <code>ref</code>.
+   */
+  default void allocation(Interpreter vm, int pc, int ref, int size) {
+  }
+
+  /**
+   * The instruction at <code>pc</code> stopped the program with
+   * <code>e</code>, either by a <code>trap</code> or by a runtime error.
+   */
+  default void trap(Interpreter vm, int pc, RuntimeException e) {
+  }
+}
@@ -0,0 +1,18 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.io.Serial;
+
+/**
+ * Thrown for object files and snapshots that are corrupted or rejected by
+ * the {@link Verifier}.
+ */
+class FormatException extends IOException {
+
+  @Serial
+  private static final long serialVersionUID = 1L;
+
+  FormatException(String s) {
+    super(s);
+  }
+}
@@ -0,0 +1,547 @@
+package ssw.mj;
+
+import ssw.mj.codegen.TypeDescriptors;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Precise, generational mark-compact collector for the heap of the
+ * {@link Interpreter}.
+ * <p>
+ * Only used if the object file contains {@link TypeDescriptors}. Every heap
+ * block then starts with a header word holding its type, so the heap can be
+ * parsed linearly:
+ * <pre>
+ *   object: header field0 ... fieldN        reference = address of field0
+ *   array:  header length elem0 ... elemN   reference = address of elem0
+ * </pre>
+ * The headers shift all heap addresses, so references (e.g. in the trace of
+ * a {@link DebugListener}) differ from those of a run without descriptors.
+ * {@link Interpreter.Engine#JIT}, {@link Interpreter.Engine#CLOSURE} and an
+ * {@link OffHeap} heap do not collect, and neither do they use headers.
+ * Globals and the locals of all frames are scanned precisely with the
+ * reference maps of the descriptors. The expression stack is not typed, so
+ * every value on it that looks like a reference keeps its object alive and
+ * pins it in place. Pinned blocks are not moved; the gaps in front of them
+ * become filler blocks and are used for allocation before the free space at
+ * the end of the heap.
+ * <p>
+ * The heap is split into an old space <code>[1, boundary)</code> and a
+ * nursery behind it. New blocks are allocated in the nursery. When it holds
+ * more than <code>nurserySize</code> words, a minor collection compacts only
+ * the nursery: its survivors are slid down to the end of the old space and
+ * thereby promoted (except for those behind the first pinned block, whose
+ * gaps stay part of the nursery). Old slots that point into the nursery are
+ * recorded by {@link #remember} (called by the write barrier of <code>putfield</code>
+ * and <code>astore</code>) and serve as additional roots. Globals are roots
+ * of every collection anyway, so <code>putstatic</code> needs no barrier.
+ * If a minor collection does not free enough space, the whole heap is
+ * collected.
+ * <p>
+ * The heap grows (up to the limit of the interpreter) if a block does not
+ * fit even after a full collection, or if more than half of it is still
+ * live afterwards. The nursery keeps its share of the heap.
+ */
+final class GarbageCollector {
+
+  /**
+   * Nursery size as a fraction of the heap.
+   */
+  static final int NURSERY_FRACTION = 8;
+
+  // ----- header word
+  static final int HEADER = 0x80000000; // never set in an array length
+  private static final int MARK = 0x40000000;
+  private static final int PIN = 0x20000000;
+  private static final int TYPE = 0x00ffffff;
+  private static final int FILLER = TYPE; // gap with its size in the next word
+  private static final int FILLER1 = TYPE - 1; // gap of a single word
+
+  private final Interpreter vm;
+  private final TypeDescriptors types;
+  private final boolean generational;
+  private int nurserySize; // in words, 0 if not generational
+
+  private int[] forward; // new address of every live block
+  private final BitSet starts = new BitSet(); // start addresses of all blocks
+  private final BitSet remembered = new BitSet(); // old slots pointing into the nursery
+  private int[] markStack = new int[256];
+  private int markTop;
+  private int[] gaps = new int[16]; // {start, length} pairs in front of pinned blocks
+  private int nGaps;
+  private int nextGap; // next gap used for allocation (index into gaps)
+  private int limit; // end of the region vm.free points into
+  private int tail; // start of the free space at the end of the heap
+  private int boundary; // start of the nursery
+
+  // ----- statistics
+  private int minor, major;
+  private long totalPause, maxPause; // nanoseconds
+  private long reclaimed; // words
+  private long promoted; // words
+  private int live; // words after the last major collection
+
+  GarbageCollector(Interpreter vm, TypeDescriptors types, boolean generational) {
+    this.vm = vm;
+    this.types = types;
+    this.generational = generational;
+    nurserySize = generational ? vm.heap.length / NURSERY_FRACTION : 0;
+    limit = vm.heap.length;
+    tail = vm.free;
+    setBoundary(vm.free);
+  }
+
+  /**
+   * End of the used part of the heap.
+   */
+  int top() {
+    return limit == vm.heap.length ? vm.free : tail;
+  }
+
+  /**
+   * Copy of the used part of the heap in which every block can be parsed,
+   * for a {@link Snapshot}.
+   */
+  int[] copyHeap() {
+    int[] copy = Arrays.copyOf(vm.heap, top());
+    if (limit != vm.heap.length && vm.free < limit) { // rest of the current gap
+      fill(copy, vm.free, limit - vm.free);
+    }
+    return copy;
+  }
+
+  /**
+   * Starts over with the blocks below vm.free as old space, which is empty
+   * after {@link Interpreter#reset} and the heap of a {@link Snapshot} in
+   * a forked interpreter.
+   */
+  void reset() {
+    nurserySize = generational ? vm.heap.length / NURSERY_FRACTION : 0;
+    limit = vm.heap.length;
+    tail = vm.free;
+    setBoundary(vm.free);
+    remembered.clear();
+    nGaps = 0;
+    nextGap = 0;
+    minor = 0;
+    major = 0;
+    totalPause = 0;
+    maxPause = 0;
+    reclaimed = 0;
+    promoted = 0;
+    live = 0;
+  }
+
+  private void setBoundary(int adr) {
+    boundary = adr;
+    vm.young = generational ? adr : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Allocates a block for <code>size</code> bytes of type <code>type</code>
+   * and returns the address behind its header.
+   */
+  int alloc(int type, int size) {
+    if (type < 0 || type >= types.types()) {
+      throw new IllegalStateException("no type descriptor for allocation at " + vm.pc);
+    }
+    if (size < 0) {
+      throw new IllegalStateException("negative array size");
+    }
+    int words = 1 + ((size + 3) >> 2);
+    if (!fits(words)) {
+      if (generational) {
+        collect(boundary);
+      }
+      if (!fits(words)) {
+        collect(1);
+        if (live * 2L > vm.heap.length) {
+          grow(vm.heap.length + 1);
+        }
+        if (!fits(words) && !(grow(tail + words) && fits(words))) {
+          throw new IllegalStateException("heap overflow");
+        }
+      }
+    }
+    int block = vm.free;
+    vm.free += words;
+    vm.heap[block] = HEADER | type;
+    return block + 1;
+  }
+
+  /**
+   * Checks whether <code>words</code> can be allocated at vm.free, switching
+   * to the next free region if necessary. An allocation that would overfill
+   * the nursery only fits into an empty one.
+   */
+  private boolean fits(int words) {
+    if (vm.free + words > limit && !nextRegion(words)) {
+      return false;
+    }
+    return !generational || limit != vm.heap.length
+            || vm.free + words - boundary <= nurserySize || vm.free == tail;
+  }
+
+  /**
+   * Grows the heap to at least <code>size</code> words (or up to the limit).
+   * Returns <code>false</code> if it cannot grow at all.
+   */
+  private boolean grow(int size) {
+    int old = vm.heap.length;
+    if (!vm.growHeap(Math.min(size, vm.heapLimit()))) {
+      return false;
+    }
+    if (limit == old) {
+      limit = vm.heap.length; // free space at the end grew
+    }
+    if (generational) {
+      nurserySize = vm.heap.length / NURSERY_FRACTION;
+    }
+    return vm.heap.length > old;
+  }
+
+  /**
+   * Continues allocation in the next free region that can hold
+   * <code>words</code>. Returns <code>false</code> if there is none.
+   */
+  private boolean nextRegion(int words) {
+    while (limit != vm.heap.length) {
+      closeRegion();
+      if (nextGap < nGaps) {
+        vm.free = gaps[nextGap];
+        limit = vm.free + gaps[nextGap + 1];
+        nextGap += 2;
+      } else {
+        vm.free = tail;
+        limit = vm.heap.length;
+      }
+      Arrays.fill(vm.heap, vm.free, limit, 0); // new blocks must start out as 0
+      if (vm.free + words <= limit) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Turns the unused rest of the current gap into a filler block.
+   */
+  private void closeRegion() {
+    if (limit != vm.heap.length && vm.free < limit) {
+      fill(vm.heap, vm.free, limit - vm.free);
+    }
+  }
+
+  private static void fill(int[] heap, int start, int len) {
+    if (len == 1) {
+      heap[start] = HEADER | FILLER1;
+    } else {
+      heap[start] = HEADER | FILLER;
+      heap[start + 1] = len;
+    }
+  }
+
+  // ----- write barrier
+
+  /**
+   * Called when a nursery address is stored into <code>slot</code> of the
+   * old object <code>ref</code>. Records the slot if it holds a reference.
+   */
+  void remember(int ref, int slot) {
+    int[] heap = vm.heap;
+    int h = heap[ref - 1];
+    if (h < 0) { // object header
+      if (Arrays.binarySearch(types.refs(h & TYPE), slot - ref) < 0) {
+        return;
+      }
+    } else if (types.kind(heap[ref - 2] & TYPE) != TypeDescriptors.REF_ARRAY) {
+      return;
+    }
+    remembered.set(slot);
+  }
+
+  // ----- collection
+
+  /**
+   * Collects the blocks in <code>[from, end of used heap)</code>. Blocks
+   * below <code>from</code> are not moved; those that point into the
+   * collected range must be in the remembered set.
+   */
+  void collect(int from) {
+    long start = System.nanoTime();
+    int[] heap = vm.heap;
+    closeRegion();
+    int oldTop = top();
+    if (forward == null || forward.length < heap.length) {
+      forward = new int[heap.length];
+    }
+    boolean full = from == 1;
+
+    // find all blocks
+    starts.clear();
+    int used = 0;
+    for (int s = from; s < oldTop; s += blockSize(heap, s)) {
+      starts.set(s);
+      if (!isFiller(heap[s])) {
+        used += blockSize(heap, s);
+      }
+    }
+
+    // mark
+    pin(heap, vm.stack, 0, vm.esp);
+    for (int adr : types.globalRefs()) {
+      markRef(heap, vm.data[adr]);
+    }
+    int pc = vm.pc;
+    int fp = vm.fp;
+    int top = vm.sp; // end of the operands in a frame of the threaded engines
+    for (; ; ) {
+      for (int i : types.frameRefs(pc)) {
+        markRef(heap, vm.local[fp + i]);
+      }
+      if (vm.unified) {
+        pin(heap, vm.local, vm.operandsAt(fp, pc), top);
+      }
+      int link = vm.linkAt(fp, pc);
+      if (link < 0) {
+        break; // frame of main()
+      }
+      top = fp;
+      pc = vm.returnAddress(vm.local[link]);
+      fp = vm.local[link + 1];
+    }
+    if (!full) {
+      for (int s = remembered.nextSetBit(0); s >= 0; s = remembered.nextSetBit(s + 1)) {
+        markRef(heap, heap[s]);
+      }
+    }
+    while (markTop > 0) {
+      scan(heap, markStack[--markTop], -1);
+    }
+
+    // compute new addresses
+    int dest = from;
+    int liveWords = 0;
+    nGaps = 0;
+    for (int s = from; s < oldTop; s += blockSize(heap, s)) {
+      if ((heap[s] & MARK) != 0) {
+        if ((heap[s] & PIN) != 0) {
+          if (dest < s) {
+            addGap(dest, s - dest);
+          }
+          dest = s;
+        }
+        forward[s] = dest;
+        dest += blockSize(heap, s);
+        liveWords += blockSize(heap, s);
+      }
+    }
+
+    // update references and remember old slots that still point into the
+    // nursery, which starts at the first gap
+    int young = generational && nGaps > 0 ? gaps[0] : dest;
+    for (int adr : types.globalRefs()) {
+      vm.data[adr] = relocate(heap, vm.data[adr]);
+    }
+    pc = vm.pc;
+    fp = vm.fp;
+    for (; ; ) {
+      for (int i : types.frameRefs(pc)) {
+        vm.local[fp + i] = relocate(heap, vm.local[fp + i]);
+      }
+      int link = vm.linkAt(fp, pc);
+      if (link < 0) {
+        break;
+      }
+      pc = vm.returnAddress(vm.local[link]);
+      fp = vm.local[link + 1];
+    }
+    if (full) {
+      remembered.clear();
+    } else {
+      for (int s = remembered.nextSetBit(0); s >= 0; s = remembered.nextSetBit(s + 1)) {
+        heap[s] = relocate(heap, heap[s]);
+        if (heap[s] < young) {
+          remembered.clear(s);
+        }
+      }
+    }
+    for (int s = from; s < oldTop; s += blockSize(heap, s)) {
+      if ((heap[s] & MARK) != 0) {
+        scan(heap, s, forward[s] < young ? young : Integer.MAX_VALUE);
+      }
+    }
+
+    // slide live blocks down
+    for (int s = from; s < oldTop; ) {
+      int size = blockSize(heap, s);
+      if ((heap[s] & MARK) != 0) {
+        int to = forward[s];
+        System.arraycopy(heap, s, heap, to, size);
+        heap[to] &= ~(MARK | PIN);
+      }
+      s += size;
+    }
+    for (int i = 0; i < nGaps; i += 2) {
+      fill(heap, gaps[i], gaps[i + 1]);
+    }
+    Arrays.fill(heap, dest, oldTop, 0); // new blocks must start out as 0
+    setBoundary(young);
+    tail = dest;
+    nextGap = 0;
+    vm.free = dest;
+    limit = heap.length;
+    if (nGaps > 0) { // allocate in the gaps first
+      vm.free = gaps[0];
+      limit = gaps[0] + gaps[1];
+      nextGap = 2;
+      Arrays.fill(heap, vm.free, limit, 0);
+    }
+
+    long pause = System.nanoTime() - start;
+    if (full) {
+      major++;
+      live = liveWords;
+    } else {
+      minor++;
+      promoted += young - from;
+    }
+    totalPause += pause;
+    maxPause = Math.max(maxPause, pause);
+    reclaimed += used - liveWords;
+  }
+
+  private void addGap(int start, int len) {
+    if (nGaps == gaps.length) {
+      gaps = Arrays.copyOf(gaps, gaps.length * 2);
+    }
+    gaps[nGaps++] = start;
+    gaps[nGaps++] = len;
+  }
+
+  /**
+   * Marks the blocks that the untyped words <code>a[from..to)</code> may
+   * point to (operands) and keeps them in place.
+   */
+  private void pin(int[] heap, int[] a, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int b = blockOf(heap, a[i]);
+      if (b > 0) {
+        heap[b] |= PIN;
+        mark(heap, b);
+      }
+    }
+  }
+
+  private void markRef(int[] heap, int ref) {
+    int b = blockOf(heap, ref);
+    if (b > 0) {
+      mark(heap, b);
+    }
+  }
+
+  private void mark(int[] heap, int b) {
+    if ((heap[b] & MARK) == 0) {
+      heap[b] |= MARK;
+      if (markTop == markStack.length) {
+        markStack = Arrays.copyOf(markStack, markStack.length * 2);
+      }
+      markStack[markTop++] = b;
+    }
+  }
+
+  private int relocate(int[] heap, int ref) {
+    int b = blockOf(heap, ref);
+    return b > 0 ? forward[b] + ref - b : ref;
+  }
+
+  /**
+   * Start of the collected block referenced by <code>ref</code>, or -1 if
+   * <code>ref</code> is not a reference into the collected range.
+   */
+  private int blockOf(int[] heap, int ref) {
+    if (ref >= 2 && starts.get(ref - 1) && isClass(heap[ref - 1])) {
+      return ref - 1;
+    }
+    if (ref >= 3 && starts.get(ref - 2) && !isClass(heap[ref - 2]) && !isFiller(heap[ref - 2])) {
+      return ref - 2;
+    }
+    return -1;
+  }
+
+  private boolean isClass(int header) {
+    return !isFiller(header) && types.kind(header & TYPE) == TypeDescriptors.CLASS;
+  }
+
+  private static boolean isFiller(int header) {
+    int t = header & TYPE;
+    return t == FILLER || t == FILLER1;
+  }
+
+  /**
+   * Marks (<code>young &lt; 0</code>) or relocates the references stored in
+   * block <code>b</code>. Relocated slots that point to or above
+   * <code>young</code> are remembered.
+   */
+  private void scan(int[] heap, int b, int young) {
+    int h = heap[b];
+    if (isFiller(h)) {
+      return;
+    }
+    int t = h & TYPE;
+    switch (types.kind(t)) {
+      case TypeDescriptors.CLASS -> {
+        for (int off : types.refs(t)) {
+          visit(heap, b, b + 1 + off, young);
+        }
+      }
+      case TypeDescriptors.REF_ARRAY -> {
+        for (int i = b + 2, end = i + heap[b + 1]; i < end; i++) {
+          visit(heap, b, i, young);
+        }
+      }
+      default -> {
+        // no references
+      }
+    }
+  }
+
+  private void visit(int[] heap, int b, int slot, int young) {
+    if (young < 0) {
+      markRef(heap, heap[slot]);
+    } else {
+      heap[slot] = relocate(heap, heap[slot]);
+      if (heap[slot] >= young) {
+        remembered.set(forward[b] + slot - b);
+      }
+    }
+  }
+
+  /**
+   * Size of the block starting at <code>s</code> in words.
+   */
+  private int blockSize(int[] heap, int s) {
+    int t = heap[s] & TYPE;
+    if (t == FILLER1) {
+      return 1;
+    }
+    if (t == FILLER) {
+      return heap[s + 1];
+    }
+    return switch (types.kind(t)) {
+      case TypeDescriptors.CLASS -> 1 + types.size(t);
+      case TypeDescriptors.CHAR_ARRAY -> 1 + ((heap[s + 1] + 7) >> 2);
+      default -> 2 + heap[s + 1];
+    };
+  }
+
+  // ----- statistics
+
+  @Override
+  public String toString() {
+    return String.format("GC: %d minor / %d major collections, pause total %.3f ms, max %.3f ms, "
+                    + "%d bytes reclaimed, %d bytes promoted, %d bytes live after last major collection",
+            minor, major, totalPause / 1e6, maxPause / 1e6, reclaimed * 4, promoted * 4, live * 4L);
+  }
+}
@@ -1,42 +1,137 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-threaded | -jit | -register | -closure]
+//                               [-gcstats] [-Xheap=size] [-Xstack=size] [-offheap] [-buffered]
+//                               [-in inputFile] [-profile] [-sample=interval]
+//                               [-batch inputDir [-jobs=n] [-slice=n]] [-snapshot=file]
+//                               [-fuel=n] [-nosuper] [-decode]
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
 package ssw.mj;
 
+import ssw.mj.codegen.TypeDescriptors;
 import ssw.mj.impl.Code;
 import ssw.mj.impl.Code.OpCode;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
 public class Interpreter {
 
-  private final boolean debug; // debug output on or off
+  /**
+   * Available execution engines.
+   */
+  public enum Engine {
+    /**
+     * Decodes every instruction from the byte code on each execution.
+     */
+    SWITCH,
+    /**
+     * Translates the byte code once into a pre-decoded instruction stream
+     * (see {@link ThreadedCode}) and executes that one.
+     */
+    THREADED,
+    /**
+     * Like {@link #THREADED}, but methods that get hot are compiled to JVM
+     * byte code, and so are the iterations of hot loops as traces (see
+     * {@link Jit}).
+     */
+    JIT,
+    /**
+     * Translates the byte code once into instructions that address the
+     * words of the frame as registers (see {@link RegisterCode}) and
+     * executes those.
+     */
+    REGISTER,
+    /**
+     * Compiles every method once into a tree of node objects that execute
+     * themselves (see {@link ClosureCode}). Like {@link #JIT}, it runs
+     * without garbage collection, and it continues on {@link #REGISTER}
+     * when the program is metered or suspended.
+     */
+    CLOSURE
+  }
+
+  private ExecutionListener[] listeners = new ExecutionListener[0];
+  private final Engine engine; // execution engine
+  private ThreadedCode threaded; // pre-decoded code (THREADED and JIT only)
+  private RegisterCode registers; // register code (REGISTER only)
+  private ClosureCode closures; // node trees (CLOSURE only)
+  private Jit jit; // method compiler (JIT only)
+  private CodeAnalysis analysis; // method table (JIT only)
+  private Verifier verifier; // result of verification, null if not yet verified
+  private Machine machine; // runtime of compiled methods (JIT and CLOSURE only)
+  private final TypeDescriptors types; // type information (null if not in object file)
+  private final GarbageCollector gc; // null if heap blocks have no headers
+  private final OffHeap offHeap; // replaces heap if not null (SWITCH only)
   private final byte[] code; // code array
-  private final int[] data; // global data
-  private final int[] heap; // dynamic heap
-  private final int[] stack; // expression stack
-  private final int[] local; // method stack
+  final int[] data; // global data
+  int[] heap; // dynamic heap (grows on demand)
+  int[] stack; // expression stack (SWITCH only, sized by the verifier)
+  int[] local; // method stack (grows on demand)
+  boolean unified; // local holds frames of the threaded engines (see execute), operands included
   private final int startPC; // address of main() method
-  private int pc; // program counter
-  private int fp, sp; // frame pointer, stack pointer on method stack
-  private int esp; // expression stack pointer
-  private int free; // next free heap address
-  private static final int heapSize = 100000, // size of the heap in words
-          mStackSize = 4000, // size of the method stack in words
-          eStackSize = 30; // size of the expression stack in words
+  int pc = -1; // program counter, -1 if not running
+  private int resume = -1; // where run() continues a suspended program, -1 to start with main()
+  private long fuel = Long.MAX_VALUE; // backward jumps and calls left
+  private boolean metered; // fuel was set, compiled methods cannot be preempted
+  private boolean suspendOnEmpty; // suspend instead of aborting when the fuel is used up
+  boolean publishRegisters; // THREADED keeps pc and fp up to date for a SamplingProfiler
+  boolean superinstructions = true; // the threaded engines fuse frequent sequences (see ThreadedCode)
+  boolean eagerJit; // compile at the first call or loop iteration (see Jit)
+  int fp, sp; // frame pointer, stack pointer on method stack
+  int esp; // expression stack pointer
+  private int words, wordLimit; // method stack charged to the frames of the threaded engines and its limit
+  int free; // next free heap address
+  int young = Integer.MAX_VALUE; // start of the nursery (see GarbageCollector)
+  public static final int DEFAULT_HEAP_SIZE = 100000, // maximum size of the heap in words
+          DEFAULT_STACK_SIZE = 4000; // maximum size of the method stack in words
+  private static final int initialHeapSize = 4096, // words allocated up front
+          initialStackSize = 256;
+  private static final int eStackSize = Machine.EXPRESSION_STACK_SIZE; // maximum size of the expression stack in words
+  private final int heapSize, mStackSize; // limits in words
+
+  private static final char[] blanks = "                                ".toCharArray();
+  private final char[] digits = new char[11]; // print buffer, fits "-2147483648"
 
   private void write(String s, int len) {
-    for (int i = 0; i < len; i++) {
-      io.write(' ');
-    }
+    pad(len);
     for (int i = 0; i < s.length(); i++) {
       io.write(s.charAt(i));
     }
   }
 
+  /**
+   * Writes <code>val</code> right-aligned in a field of <code>width</code>
+   * chars without creating a string
+   */
+  private void print(int val, int width) {
+    int i = digits.length;
+    int v = val > 0 ? -val : val; // negative, so that MIN_VALUE works too
+    do {
+      digits[--i] = (char) ('0' - v % 10);
+      v /= 10;
+    } while (v != 0);
+    if (val < 0) {
+      digits[--i] = '-';
+    }
+    pad(width - (digits.length - i));
+    io.write(digits, i, digits.length - i);
+  }
+
+  /**
+   * Writes <code>n</code> blanks
+   */
+  private void pad(int n) {
+    while (n > 0) {
+      int k = Math.min(n, blanks.length);
+      io.write(blanks, 0, k);
+      n -= k;
+    }
+  }
+
   public static class BufferIO implements IO {
 
     private final StringBuffer output;
@@ -63,6 +158,11 @@ public class Interpreter {
       output.append(c);
     }
 
+    @Override
+    public void write(char[] buf, int off, int len) {
+      output.append(buf, off, len);
+    }
+
     public String getOutput() {
       return output.toString();
     }
@@ -87,35 +187,196 @@ public class Interpreter {
     public void write(char c) {
       System.out.print(c);
     }
+
+    @Override
+    public void write(char[] buf, int off, int len) {
+      System.out.append(CharBuffer.wrap(buf, off, len)); // flushes once
+    }
   };
 
   public interface IO {
     char read();
 
     void write(char c);
+
+    /**
+     * Writes <code>len</code> chars of <code>buf</code> starting at
+     * <code>off</code>. Used by <code>print</code> for numbers and padding.
+     */
+    default void write(char[] buf, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        write(buf[i]);
+      }
+    }
+
+    /**
+     * Reads a decimal number, skipping everything before it. A '-' right
+     * before the digits makes it negative.
+     */
+    default int readInt() {
+      int val = 0;
+      int prev = ' ';
+      int b = read();
+      while (b < '0' || b > '9') {
+        prev = b;
+        b = read();
+      }
+      while (b >= '0' && b <= '9') {
+        val = 10 * val + b - '0';
+        b = read();
+      }
+      if (prev == '-') {
+        val = -val;
+      }
+      return val;
+    }
+
+    /**
+     * Writes buffered output. Called when the program terminates, normally
+     * or by a trap.
+     */
+    default void flush() {
+    }
   }
 
-  private final IO io;
+  private IO io;
 
   public Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug) {
+    this(code, startPC, dataSize, io, debug, Engine.SWITCH);
+  }
+
+  /**
+   * Creates an interpreter that executes with the given engine.
+   * <code>debug</code> adds a {@link DebugListener} that traces to
+   * <code>System.out</code>.
+   */
+  public Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug, Engine engine) {
+    this(code, startPC, dataSize, null, io, debug, engine);
+  }
+
+  /**
+   * Creates an interpreter whose heap is garbage collected with the help of
+   * <code>types</code> (see {@link GarbageCollector}). Compiled methods keep
+   * references where the collector cannot find them, so {@link Engine#JIT}
+   * and {@link Engine#CLOSURE} run without collection.
+   */
+  public Interpreter(byte[] code, int startPC, int dataSize, TypeDescriptors types, IO io, boolean debug,
+                     Engine engine) {
+    this(code, startPC, dataSize, types, io, debug, engine, DEFAULT_HEAP_SIZE, DEFAULT_STACK_SIZE);
+  }
+
+  /**
+   * Creates an interpreter with a heap of at most <code>heapSize</code> and a
+   * method stack of at most <code>stackSize</code> words. Both start small
+   * and grow on demand.
+   */
+  public Interpreter(byte[] code, int startPC, int dataSize, TypeDescriptors types, IO io, boolean debug,
+                     Engine engine, int heapSize, int stackSize) {
+    this(code, startPC, dataSize, types, io, debug, engine, heapSize, stackSize, null);
+  }
+
+  /**
+   * Creates an interpreter whose heap is kept in native memory (see
+   * {@link OffHeap}). The other engines index the <code>int[]</code> heap
+   * directly, so this one always runs with {@link Engine#SWITCH}.
+   */
+  public Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug, OffHeap heap, int stackSize) {
+    this(code, startPC, dataSize, null, io, debug, Engine.SWITCH, 2, stackSize, heap);
+  }
+
+  private Interpreter(byte[] code, int startPC, int dataSize, TypeDescriptors types, IO io, boolean debug,
+                      Engine engine, int heapSize, int stackSize, OffHeap offHeap) {
+    if (heapSize < 2 || stackSize < 1) {
+      throw new IllegalArgumentException("heap or stack too small");
+    }
     this.code = code;
     this.startPC = startPC;
     this.io = io;
-    this.debug = debug;
-    heap = new int[heapSize]; // fixed sized heap
+    this.engine = offHeap != null ? Engine.SWITCH : engine;
+    this.types = this.engine == Engine.JIT || this.engine == Engine.CLOSURE || offHeap != null ? null : types;
+    this.offHeap = offHeap;
+    this.heapSize = heapSize;
+    this.mStackSize = stackSize;
+    heap = new int[Math.min(heapSize, initialHeapSize)];
     data = new int[dataSize]; // global data as specified in
     // classfile
     stack = new int[eStackSize]; // expression stack
-    local = new int[mStackSize]; // method stack
+    local = new int[Math.min(stackSize, initialStackSize)]; // method stack
     fp = 0;
     sp = 0;
     esp = 0;
     free = 1; // no block should start at address 0
+    gc = this.types == null ? null
+            : new GarbageCollector(this, this.types, true);
+    if (debug) {
+      addListener(new DebugListener(System.out));
+    }
+  }
+
+  /**
+   * Adds a listener that observes the execution. Listeners are served by
+   * the instrumented loop of {@link Engine#SWITCH}, whatever engine was
+   * selected.
+   */
+  public void addListener(ExecutionListener l) {
+    listeners = Arrays.copyOf(listeners, listeners.length + 1);
+    listeners[listeners.length - 1] = l;
+  }
+
+  // ----- state access for listeners
+
+  public Engine engine() {
+    return engine;
+  }
+
+  public byte[] code() {
+    return code;
+  }
+
+  public int pc() {
+    return pc;
+  }
+
+  public int startPC() {
+    return startPC;
+  }
+
+  public int fp() {
+    return fp;
+  }
+
+  public int sp() {
+    return sp;
+  }
+
+  public int esp() {
+    return esp;
+  }
+
+  /**
+   * Word <code>i</code> of the expression stack
+   */
+  public int stackAt(int i) {
+    return stack[i];
+  }
+
+  /**
+   * Word <code>i</code> of the method stack
+   */
+  public int localAt(int i) {
+    return local[i];
+  }
+
+  /**
+   * Heap word at <code>adr</code>
+   */
+  public int heapAt(int adr) {
+    return load(adr);
   }
 
   // ----- expression stack
   private void push(int val) throws IllegalStateException {
-    if (esp == eStackSize) {
+    if (esp == stack.length) {
       throw new IllegalStateException("expression stack overflow");
     }
     stack[esp++] = val;
@@ -130,12 +391,42 @@ public class Interpreter {
 
   // ----- method stack
   private void PUSH(int val) throws IllegalStateException {
-    if (sp == mStackSize) {
-      throw new IllegalStateException("method stack overflow");
+    if (sp == local.length) {
+      growStack(sp + 1);
     }
     local[sp++] = val;
   }
 
+  /**
+   * Grows the method stack to at least <code>size</code> words
+   */
+  private void growStack(int size) throws IllegalStateException {
+    if (size > mStackSize) {
+      throw new IllegalStateException("method stack overflow");
+    }
+    local = Arrays.copyOf(local, Math.max(size, (int) Math.min(mStackSize, 2L * local.length)));
+  }
+
+  /**
+   * Checks a frame that the threaded or register engine enters, which
+   * reaches up to <code>top</code> in the method stack and has brought the
+   * words charged against it to <code>words</code>, and grows the
+   * method stack to hold it. Its operands and those of its callers are not
+   * charged against the method stack, so it may get up to one expression
+   * stack larger than the limit.
+   */
+  private void enterFrame(int top, int words, int wordLimit) throws IllegalStateException {
+    if (words > wordLimit) {
+      throw new IllegalStateException("method stack overflow");
+    }
+    if (top - words > eStackSize) {
+      throw new IllegalStateException("expression stack overflow");
+    }
+    if (top > local.length) {
+      local = Arrays.copyOf(local, Math.max(top, (int) Math.min(mStackSize + 2L * eStackSize, 2L * local.length)));
+    }
+  }
+
   private int POP() throws IllegalStateException {
     if (sp == 0) {
       throw new IllegalStateException("method stack underflow");
@@ -144,48 +435,128 @@ public class Interpreter {
   }
 
   // ----- instruction fetch
-  private byte next(boolean dbgPrint) {
-    byte b = code[pc++];
-    if (debug && dbgPrint) {
-      System.out.print(b + " ");
-    }
-    return b;
+  private byte next() {
+    return code[pc++];
   }
 
-  private short next2(boolean dbgPrint) {
-    short s = (short) (((next(false) << 8)
-            + (next(false) & 0xff)) << 16 >> 16);
-    if (debug && dbgPrint) {
-      System.out.print(s + " ");
-    }
-    return s;
+  private short next2() {
+    return (short) (((next() << 8)
+            + (next() & 0xff)) << 16 >> 16);
   }
 
   private int next4() {
-    return next4(true);
-  }
-
-  private int next4(boolean dbgPrint) {
-    int n = (next2(false) << 16) + (next2(false) & 0xffff);
-    if (debug && dbgPrint) {
-      System.out.print(n + " ");
-    }
-    return n;
+    return (next2() << 16) + (next2() & 0xffff);
   }
 
   /**
    * Allocate heap block of size bytes
    */
   private int alloc(int size) throws IllegalStateException {
+    if (offHeap != null) {
+      return offHeap.alloc(size);
+    }
     int adr = free;
     free += ((size + 3) >> 2); // skip to next free adr
     // (>> 2 to convert byte to word)
-    if (free > heapSize) {
+    if (free > heap.length && !growHeap(free)) {
       throw new IllegalStateException("heap overflow");
     }
     return adr;
   }
 
+  /**
+   * Grows the heap to at least <code>size</code> words. Returns false if that
+   * exceeds the limit
+   */
+  boolean growHeap(int size) {
+    if (size > heapSize) {
+      return false;
+    }
+    if (size > heap.length) {
+      heap = Arrays.copyOf(heap, Math.max(size, (int) Math.min(heapSize, 2L * heap.length)));
+      if (machine != null) {
+        machine.heap = heap;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Heap word at <code>adr</code>
+   */
+  private int load(int adr) {
+    return offHeap == null ? heap[adr] : offHeap.get(adr);
+  }
+
+  private void store(int adr, int val) {
+    if (offHeap == null) {
+      heap[adr] = val;
+    } else {
+      offHeap.put(adr, val);
+    }
+  }
+
+  /**
+   * Maximum size of the heap in words
+   */
+  int heapLimit() {
+    return heapSize;
+  }
+
+  /**
+   * Allocate an object or array of type <code>type</code> (see
+   * {@link TypeDescriptors}) with size bytes
+   */
+  private int alloc(int size, int type) throws IllegalStateException {
+    return gc == null ? alloc(size) : gc.alloc(type, size);
+  }
+
+  /**
+   * Type allocated by the instruction at <code>pc</code>
+   */
+  private int typeAt(int pc) {
+    return types == null ? -1 : types.typeAt(pc);
+  }
+
+  /**
+   * Byte address of a return address on the method stack
+   */
+  int returnAddress(int ret) {
+    return threaded == null && registers == null ? ret : bytePc(ret);
+  }
+
+  /**
+   * Byte address of the stream index <code>idx</code> of the threaded or
+   * register code
+   */
+  private int bytePc(int idx) {
+    return registers != null ? registers.bytePc(idx) : threaded.bytePc(idx);
+  }
+
+  /**
+   * Stream index of the threaded or register code at byte address
+   * <code>pc</code>, -1 if execution cannot continue there
+   */
+  private int streamPc(int pc) {
+    return registers != null ? registers.streamPc(pc) : threaded.streamPc(pc);
+  }
+
+  /**
+   * Condition of the threaded conditional jump <code>op</code>
+   * (<code>JEQ..JGE</code>) for the operands <code>val</code> and
+   * <code>val2</code>
+   */
+  private static boolean compare(int op, int val, int val2) {
+    return switch (op) {
+      case ThreadedCode.JEQ -> val == val2;
+      case ThreadedCode.JNE -> val != val2;
+      case ThreadedCode.JLT -> val < val2;
+      case ThreadedCode.JLE -> val <= val2;
+      case ThreadedCode.JGT -> val > val2;
+      default -> val >= val2;
+    };
+  }
+
   /**
    * Retrieve byte n from val. Byte 0 is MSB
    */
@@ -207,311 +578,1821 @@ public class Interpreter {
    * Read int from standard input stream
    */
   private int readInt() {
-    int val = 0;
-    int prev = ' ';
-    int b = io.read();
-    while (b < '0' || b > '9') {
-      prev = b;
-      b = io.read();
+    return io.readInt();
+  }
+
+  // ----- actual interpretation
+  public void run() throws IllegalStateException {
+    try {
+      switch (listeners.length > 0 || !verified() ? Engine.SWITCH : engine) {
+        case THREADED -> {
+          if (threaded == null) {
+            threaded = new ThreadedCode(code, startPC, types, verifier.analysis, superinstructions);
+          }
+          execute(threadedEntry(), true);
+        }
+        case JIT -> {
+          if (jit == null) { // compiled methods are kept by reset()
+            threaded = new ThreadedCode(code, startPC, types, verifier.analysis, superinstructions);
+            analysis = verifier.analysis;
+            jit = new Jit(analysis, eagerJit);
+            machine = new JitMachine();
+          }
+          execute(threadedEntry(), true);
+        }
+        case REGISTER -> {
+          if (registers == null) {
+            registers = new RegisterCode(code, startPC, types, verifier.analysis);
+          }
+          executeRegisters(threadedEntry());
+        }
+        case CLOSURE -> {
+          if (metered || resume >= 0) { // closures cannot be suspended
+            if (registers == null) {
+              registers = new RegisterCode(code, startPC, types, verifier.analysis);
+            }
+            executeRegisters(threadedEntry());
+          } else {
+            if (closures == null) {
+              machine = new JitMachine();
+              closures = new ClosureCode(verifier.analysis, machine);
+            }
+            pc = startPC;
+            closures.run(startPC, mStackSize);
+          }
+        }
+        default -> {
+          threaded = null; // return addresses are byte pcs again
+          registers = null;
+          if (listeners.length > 0) {
+            runInstrumented();
+          } else {
+            runSwitch();
+          }
+        }
+      }
+    } finally {
+      pc = -1;
+      io.flush();
     }
-    while (b >= '0' && b <= '9') {
-      val = 10 * val + b - '0';
-      b = io.read();
+  }
+
+  /**
+   * Verifies the code for the threaded engines, which do not check the
+   * stack pointers, and sizes the expression stack to the bound found by
+   * the verifier. Code that is rejected runs on {@link Engine#SWITCH}, which
+   * reports its errors when they happen.
+   */
+  private boolean verified() {
+    if (engine == Engine.SWITCH) {
+      return false;
     }
-    if (prev == '-') {
-      val = -val;
+    if (verifier == null) {
+      setVerifier(new Verifier(code, startPC, data.length));
     }
-    return val;
+    return verifier.error == null;
   }
 
-  private void printInstr() {
-    int op = code[pc - 1];
-    OpCode opCode = Code.OpCode.get(op);
-    String instr = (opCode != null) ? opCode.cleanName() : "???";
-    System.out.printf("%5d: %s ", pc - 1, instr);
+  /**
+   * Expression stack that the method with its <code>enter</code> at
+   * <code>adr</code> may need, including its arguments. 0 if the method is
+   * malformed, which then fails where it overflows the stack.
+   */
+  private int maxStackAt(int adr) {
+    if (verifier == null) {
+      setVerifier(new Verifier(code, startPC, data.length));
+    }
+    CodeAnalysis.Method m = verifier.analysis.methodAt(adr);
+    return m == null || m.error != null ? 0 : m.maxStack;
   }
 
-  private void printStack() {
-    for (int i = 0; i < esp; i++) {
-      System.out.print(stack[i] + " ");
+  /**
+   * Uses <code>v</code>, the verification of this interpreter's code (see
+   * {@link Run.Program}), instead of verifying the code again.
+   */
+  void setVerifier(Verifier v) {
+    verifier = v;
+    if (v.error == null) {
+      int size = v.maxStack == Verifier.UNBOUNDED ? eStackSize : Math.min(v.maxStack, eStackSize);
+      stack = Arrays.copyOf(stack, Math.max(size, esp));
     }
-    System.out.println();
   }
 
-  // ----- actual interpretation
-  public void run() throws IllegalStateException {
-    Code.OpCode op;
-    int adr, val, val2, off, idx, len, i;
-    pc = startPC;
-
-    if (debug) { // header for debug output
-      System.out.println();
-      System.out.println("  pos: instruction operands");
-      System.out.println("     | expressionstack");
-      System.out.println("-----------------------------");
+  /**
+   * Byte address at which the program starts or continues with
+   * {@link Engine#SWITCH}.
+   */
+  private int entry() {
+    if (unified && resume >= 0) {
+      toClassic();
     }
+    unified = false;
+    int at = resume >= 0 ? resume : startPC;
+    resume = -1;
+    return at;
+  }
 
-    for (; ; ) { // terminated by return instruction
-      op = Code.OpCode.get(next(false));
-      if (debug) {
-        printInstr();
+  /**
+   * Stream index at which the program starts or continues with the threaded
+   * or the register engine. The return addresses of a suspended program are
+   * byte addresses and are translated as well.
+   */
+  private int threadedEntry() {
+    wordLimit = mStackSize + 1; // main() is charged for a return address
+    words = 0;
+    if (resume < 0) {
+      unified = true;
+      return registers != null ? registers.start : threaded.start;
+    }
+    if (!unified) {
+      toUnified();
+    }
+    int at = resume;
+    resume = -1;
+    for (int f = fp, pc = at; ; ) {
+      words += operandsAt(f, pc) - f;
+      int link = linkAt(f, pc);
+      if (link < 0) {
+        break;
       }
+      pc = local[link];
+      local[link] = streamPc(pc);
+      f = local[link + 1];
+    }
+    return streamPc(at);
+  }
+
+  // ----- frames
+  // SWITCH keeps the return address and the caller's fp of a frame below
+  // its locals, at fp-2 and fp-1 (main() has only the fp at 0), and the
+  // operands of all methods on the expression stack. The threaded engines
+  // keep them above the locals, followed by the operands (see execute), and
+  // so does the register engine.
+  // Every engine charges a call alike, so that a program overflows at the
+  // same call everywhere: the locals, the return address and the caller's
+  // fp against the method stack (main() has no return address), then the
+  // operands that the method may need (CodeAnalysis.Method.maxStack) on top
+  // of those that its callers keep against the expression stack. SWITCH
+  // checks this at enter, the threaded engines count the charged words in
+  // execute, compiled methods and closures in Machine.
 
-      switch (op) {
-        // load/store local variables
-        case load -> push(local[fp + next(true)]);
-        case load_0, load_1, load_2, load_3 -> push(local[fp + op.code() - OpCode.load_0.code()]); // mapping
+  /**
+   * Index of the return address of the frame at <code>fp</code>, in which
+   * <code>pc</code> is executed. The caller's fp follows it. -1 if it is
+   * the frame of main(), or if <code>pc</code> is in no method.
+   */
+  int linkAt(int fp, int pc) {
+    if (!unified) {
+      return fp >= 2 ? fp - 2 : -1;
+    }
+    CodeAnalysis.Method m = fp > 0 ? verifier.analysis.methodContaining(pc) : null;
+    return m == null ? -1 : fp + m.nLocals;
+  }
 
-        // on
-        // range
-        // 0..3
-        case store -> local[fp + next(true)] = pop();
-        case store_0, store_1, store_2, store_3 -> local[fp + op.code() - OpCode.store_0.code()] = pop(); // mapping
+  /**
+   * Index of the first operand of the frame at <code>fp</code>, in which
+   * <code>pc</code> is executed (threaded engines only).
+   */
+  int operandsAt(int fp, int pc) {
+    CodeAnalysis.Method m = verifier.analysis.methodContaining(pc);
+    return fp + (m == null ? 0 : m.nLocals) + 2;
+  }
 
-        // on
-        // range
-        // 0..3
-        // load/store global variables
-        case getstatic -> push(data[next2(true)]);
-        case putstatic -> data[next2(true)] = pop();
+  /**
+   * Moves the operands of a suspended program from its frames to the
+   * expression stack.
+   */
+  private void toClassic() {
+    CodeAnalysis a = verifier.analysis;
+    int n = 0;
+    int[] fps = new int[16], pcs = new int[16]; // frames, top first
+    for (int f = fp, pc = resume; ; ) {
+      if (n == fps.length) {
+        fps = Arrays.copyOf(fps, 2 * n);
+        pcs = Arrays.copyOf(pcs, 2 * n);
+      }
+      fps[n] = f;
+      pcs[n++] = pc;
+      int link = linkAt(f, pc);
+      if (link < 0) {
+        break;
+      }
+      pc = local[link];
+      f = local[link + 1];
+    }
+    int[] l = new int[local.length];
+    int[] s = new int[Math.max(stack.length, sp)];
+    int top = sp, e = 0, pos = 0, callerFp = 0;
+    int[] tops = new int[n];
+    for (int k = 0; k < n; k++) {
+      tops[k] = top;
+      top = fps[k];
+    }
+    for (int k = n - 1; k >= 0; k--) {
+      int nLocals = a.methodContaining(pcs[k]).nLocals;
+      if (k == n - 1) {
+        l[pos++] = 0;
+      } else {
+        l[pos++] = local[linkAt(fps[k], pcs[k])];
+        l[pos++] = callerFp;
+      }
+      callerFp = pos;
+      System.arraycopy(local, fps[k], l, pos, nLocals);
+      pos += nLocals;
+      int ops = operandsAt(fps[k], pcs[k]);
+      System.arraycopy(local, ops, s, e, tops[k] - ops);
+      e += tops[k] - ops;
+    }
+    local = l;
+    stack = s;
+    sp = pos;
+    esp = e;
+    fp = callerFp;
+    unified = false;
+  }
 
+  /**
+   * Moves the operands of a suspended program from the expression stack to
+   * the frames of the threaded engines.
+   */
+  private void toUnified() {
+    CodeAnalysis a = verifier.analysis;
+    // suspended after a call, within a superinstruction or where the
+    // register code keeps operands elsewhere, go on to the next place where
+    // the threaded or register code can continue
+    if (OpCode.get(code[resume]) == OpCode.enter || streamPc(resume) < 0) {
+      pc = resume;
+      do {
+        step();
+      } while (streamPc(pc) < 0 || OpCode.get(code[pc]) == OpCode.enter);
+      resume = pc;
+      pc = -1;
+    }
+    int n = 0;
+    int[] fps = new int[16], pcs = new int[16], ops = new int[16]; // frames, top first
+    for (int f = fp, pc = resume, callee = -1; ; ) {
+      if (n == fps.length) {
+        fps = Arrays.copyOf(fps, 2 * n);
+        pcs = Arrays.copyOf(pcs, 2 * n);
+        ops = Arrays.copyOf(ops, 2 * n);
+      }
+      fps[n] = f;
+      pcs[n] = pc;
+      ops[n++] = callee < 0 ? a.depth[pc] : a.depth[pc - 3] - a.methodContaining(callee).nPars;
+      if (f < 2) {
+        break;
+      }
+      callee = pc;
+      pc = local[f - 2];
+      f = local[f - 1];
+    }
+    int size = 0;
+    for (int k = 0; k < n; k++) {
+      CodeAnalysis.Method m = a.methodContaining(pcs[k]);
+      size += m.nLocals + 2 + Math.max(m.maxStack, ops[k]);
+    }
+    int[] l = new int[Math.max(local.length, size)];
+    int pos = 0, e = 0, callerFp = 0;
+    for (int k = n - 1; k >= 0; k--) {
+      int nLocals = a.methodContaining(pcs[k]).nLocals;
+      int f = pos;
+      System.arraycopy(local, fps[k], l, pos, nLocals);
+      pos += nLocals;
+      l[pos++] = k == n - 1 ? -1 : local[fps[k] - 2];
+      l[pos++] = callerFp;
+      callerFp = f;
+      System.arraycopy(stack, e, l, pos, ops[k]);
+      pos += ops[k];
+      e += ops[k];
+    }
+    if (e != esp) {
+      throw new IllegalStateException("inconsistent expression stack");
+    }
+    local = l;
+    sp = pos;
+    esp = 0;
+    fp = callerFp;
+    unified = true;
+  }
 
-        // load/store object fields
-        case getfield -> {
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          push(heap[adr + next2(true)]);
+  /**
+   * Runs the program up to its first <code>read</code> or
+   * <code>bread</code>, that is, up to the end of its startup code, and
+   * returns a snapshot of it at this point. A later {@link #run()}
+   * continues the program there. Returns <code>null</code> if the program
+   * terminated without reading input.
+   * <p>
+   * The startup code is always run by the loop of {@link Engine#SWITCH},
+   * without listeners. If it runs out of fuel, the program is suspended or
+   * aborted as in {@link #run()}, and the result is <code>null</code>.
+   */
+  public Snapshot runToInput() throws IllegalStateException {
+    int at = -1;
+    try {
+      pc = entry();
+      for (; ; ) {
+        OpCode op = OpCode.get(code[pc]);
+        if (op == OpCode.read || op == OpCode.bread) {
+          at = pc;
+          return snapshot();
         }
-        case putfield -> {
-          val = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          heap[adr + next2(true)] = val;
+        if (!step()) {
+          return null;
         }
+      }
+    } finally {
+      if (at >= 0) {
+        resume = at;
+      }
+      pc = -1;
+      io.flush();
+    }
+  }
 
-        // load constants
-        case const_0, const_1, const_2, const_3, const_4, const_5 ->
-                push(op.code() - OpCode.const_0.code()); // map opcode to
+  /**
+   * Limits the execution to <code>fuel</code> more backward jumps and calls,
+   * which bounds the time of every program, including endless loops. When
+   * the fuel is used up, the program is aborted with an
+   * <code>IllegalStateException</code>, or, if <code>suspend</code> is set,
+   * {@link #run()} returns with the program suspended (see
+   * {@link #isSuspended()}); the next <code>run()</code> continues it.
+   * <p>
+   * The fuel is checked after a backward jump or call has been executed,
+   * so straight-line code costs nothing. Compiled methods could not be
+   * suspended, so {@link Engine#JIT} only interprets from now on and
+   * {@link Engine#CLOSURE} continues on {@link Engine#REGISTER}.
+   */
+  public void setFuel(long fuel, boolean suspend) {
+    this.fuel = Math.max(fuel, 0);
+    metered = true;
+    suspendOnEmpty = suspend;
+  }
 
-        // 0..5
-        case const_m1 -> push(-1);
-        case const_ -> push(next4());
+  /**
+   * Fuel left (see {@link #setFuel}).
+   */
+  public long fuel() {
+    return fuel;
+  }
 
+  /**
+   * Whether the program was suspended by {@link #setFuel running out of
+   * fuel} or by {@link #runToInput()} and continues with the next
+   * {@link #run()}.
+   */
+  public boolean isSuspended() {
+    return resume >= 0;
+  }
 
-        // arithmetic operations
-        case add -> push(pop() + pop());
-        case sub -> push(-pop() + pop());
-        case mul -> push(pop() * pop());
-        case div -> {
-          val = pop();
-          if (val == 0) {
-            throw new IllegalStateException("division by zero");
-          }
-          push(pop() / val);
-        }
-        case rem -> {
-          val = pop();
-          if (val == 0) {
-            throw new IllegalStateException("division by zero");
-          }
-          push(pop() % val);
-        }
-        case neg -> push(-pop());
-        case shl -> {
-          val = pop();
-          push(pop() << val);
-        }
-        case shr -> {
-          val = pop();
-          push(pop() >> val);
-        }
-        case inc -> {
-          off = fp + next(true);
-          local[off] += next(true);
-        }
+  /**
+   * Called when the fuel is used up. Aborts the program, or returns whether
+   * it can be suspended at this point.
+   */
+  private boolean outOfFuel(boolean canSuspend) {
+    fuel = 0;
+    if (!suspendOnEmpty) {
+      throw new IllegalStateException("out of fuel");
+    }
+    return canSuspend;
+  }
 
-        // object creation
-        case new_ -> push(alloc(next2(true) * 4));
-        case newarray -> {
-          val = next(true);
-          len = pop();
-          if (val == 0) {
-            adr = alloc(len + 4);
-          } else {
-            adr = alloc(len * 4 + 4);
-          }
-          heap[adr] = len;
-          push(adr + 1); // skip length field of array
-        }
+  /**
+   * Suspends the threaded or register engine before the stream index
+   * <code>ip</code>. Return addresses are converted to byte addresses, as in
+   * a suspended program of {@link Engine#SWITCH} (see
+   * {@link #threadedEntry()}).
+   */
+  private void suspendThreaded(int ip, int[] local, int fp) {
+    resume = bytePc(ip);
+    for (int f = fp, pc = resume, link = linkAt(f, pc); link >= 0; link = linkAt(f, pc)) {
+      pc = bytePc(local[link]);
+      local[link] = pc;
+      f = local[link + 1];
+    }
+  }
 
-        // array access
-        case aload -> {
-          idx = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          len = heap[adr - 1];
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
-          }
-          push(heap[adr + idx]);
-        }
-        case astore -> {
-          val = pop();
-          idx = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          len = heap[adr - 1];
-          if (debug) {
-            System.out.println("\nArraylength = " + len);
-            System.out.println("Address = " + adr);
-            System.out.println("Index = " + idx);
-            System.out.println("Value = " + val);
-          }
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
+  /**
+   * Takes a snapshot of the program. Can be called from an
+   * {@link ExecutionListener}, which sees the state before the current
+   * instruction, or after {@link #runToInput()}. The threaded and register
+   * engines keep their registers in local variables, so their state can only
+   * be taken between runs.
+   */
+  public Snapshot snapshot() {
+    int at = pc >= 0 ? pc : resume;
+    if (at < 0) {
+      throw new IllegalStateException("program is not suspended");
+    }
+    if ((threaded != null || registers != null) && pc >= 0) {
+      throw new IllegalStateException("cannot take a snapshot of a running threaded program");
+    }
+    if (unified) {
+      toClassic();
+    }
+    int[] h = null;
+    OffHeap o = null;
+    if (offHeap != null) {
+      o = offHeap.share();
+    } else {
+      h = gc == null ? Arrays.copyOf(heap, Math.min(free, heap.length)) : gc.copyHeap();
+    }
+    return new Snapshot(code, startPC, types, offHeap != null ? offHeap.limit() : heapSize, mStackSize,
+            data.clone(), Arrays.copyOf(stack, esp), Arrays.copyOf(local, sp), at, fp, h, o);
+  }
+
+  /**
+   * Creates an interpreter that continues the program of <code>s</code>
+   * (see {@link Snapshot#fork}).
+   */
+  Interpreter(Snapshot s, IO io, Engine engine) {
+    this(s.code, s.startPC, s.data.length, s.types, io, false, engine,
+            s.offHeap != null ? 2 : (int) s.heapLimit, s.stackLimit, s.offHeap != null ? s.offHeap.share() : null);
+    System.arraycopy(s.data, 0, data, 0, data.length);
+    stack = Arrays.copyOf(s.stack, Math.max(s.stack.length, stack.length));
+    esp = s.stack.length;
+    local = Arrays.copyOf(s.local, Math.max(s.local.length, local.length));
+    sp = s.local.length;
+    fp = s.fp;
+    if (offHeap == null) {
+      heap = Arrays.copyOf(s.heap, Math.max(s.heap.length, heap.length));
+      free = Math.max(s.heap.length, 1);
+      if (gc != null) {
+        gc.reset(); // everything is old
+      }
+    }
+    resume = s.pc;
+  }
+
+  /**
+   * Prepares the interpreter for another run of its program that reads and
+   * writes <code>io</code>. Only the used parts of the globals and the heap
+   * are cleared; the heap and the method stack keep their size, the
+   * translated code of {@link Engine#THREADED}, {@link Engine#REGISTER} and
+   * {@link Engine#CLOSURE} and the compiled methods of {@link Engine#JIT}
+   * are kept, and so are the listeners. The fuel is unlimited again.
+   */
+  public void reset(IO io) {
+    if (pc >= 0) {
+      throw new IllegalStateException("interpreter is running");
+    }
+    this.io = io;
+    Arrays.fill(data, 0);
+    if (offHeap != null) {
+      offHeap.clear();
+    } else {
+      Arrays.fill(heap, 0, Math.min(gc == null ? free : gc.top(), heap.length), 0);
+    }
+    free = 1;
+    fp = 0;
+    sp = 0; // frames are zeroed by enter
+    esp = 0;
+    unified = false;
+    resume = -1;
+    fuel = Long.MAX_VALUE;
+    metered = false;
+    suspendOnEmpty = false;
+    if (gc != null) {
+      gc.reset();
+    }
+  }
+
+  /**
+   * Statistics of the garbage collector, or <code>null</code> if the heap is
+   * not collected.
+   */
+  public String gcStatistics() {
+    return gc == null ? null : gc.toString();
+  }
+
+  /**
+   * Number of methods compiled by the JIT during {@link #run()}.
+   */
+  public int compiledMethods() {
+    return jit == null ? 0 : jit.compiledMethods();
+  }
+
+  /**
+   * Number of loop traces compiled by the JIT during {@link #run()}.
+   */
+  public int compiledTraces() {
+    return jit == null ? 0 : jit.compiledTraces();
+  }
+
+  /**
+   * Connects JIT-compiled methods and the closures of {@link Engine#CLOSURE}
+   * to this interpreter.
+   */
+  private final class JitMachine extends Machine {
+
+    JitMachine() {
+      data = Interpreter.this.data;
+      heap = Interpreter.this.heap;
+      stackLimit = mStackSize;
+    }
+
+    @Override
+    public int alloc(int size) {
+      return Interpreter.this.alloc(size);
+    }
+
+    @Override
+    public int readInt() {
+      return Interpreter.this.readInt();
+    }
+
+    @Override
+    public int readChar() {
+      return io.read();
+    }
+
+    @Override
+    public void write(String s, int pad) {
+      Interpreter.this.write(s, pad);
+    }
+
+    @Override
+    public void print(int val, int width) {
+      Interpreter.this.print(val, width);
+    }
+
+    @Override
+    public void push(int val) {
+      if (sp == local.length) { // the limit is checked by the enter of the callee
+        local = Arrays.copyOf(local, 2 * local.length);
+      }
+      local[sp++] = val;
+    }
+
+    @Override
+    public int invoke(int adr) {
+      // continue the count of the compiled methods, whose frames are not in local
+      words = sp - analysis.methodAt(adr).nPars - operands;
+      wordLimit = words + mStackSize - stackUsed;
+      execute(threaded.streamPc(adr), false);
+      return analysis.methodAt(adr).returnsValue ? local[--sp] : 0;
+    }
+  }
+
+  private void runSwitch() throws IllegalStateException {
+    pc = entry();
+    while (step()) {
+      // terminated by return instruction
+    }
+  }
+
+  /**
+   * Like {@link #runSwitch()}, but reports every step to the listeners.
+   */
+  private void runInstrumented() throws IllegalStateException {
+    final ExecutionListener[] ls = listeners;
+    pc = entry();
+    int at = pc;
+    try {
+      for (; ; ) {
+        at = pc;
+        OpCode op = OpCode.get(code[at]);
+        for (ExecutionListener l : ls) {
+          l.instruction(this, at, op);
+        }
+        boolean more = step();
+        if (!more && resume < 0) {
+          for (ExecutionListener l : ls) {
+            l.returned(this, at, -1);
           }
-          heap[adr + idx] = val;
+          return;
         }
-        case baload -> {
-          idx = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
+        switch (op) {
+          case call -> {
+            for (ExecutionListener l : ls) {
+              l.call(this, at, pc);
+            }
           }
-          len = heap[adr - 1];
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
+          case return_ -> {
+            for (ExecutionListener l : ls) {
+              l.returned(this, at, pc);
+            }
           }
-          push(getByte(heap[adr + idx / 4], idx % 4));
-        }
-        case bastore -> {
-          val = pop();
-          idx = pop();
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
+          case new_, newarray -> {
+            int ref = stack[esp - 1];
+            int size = op == OpCode.new_
+                    ? 4 * (short) ((code[at + 1] << 8) + (code[at + 2] & 0xff))
+                    : code[at + 1] == 0 ? load(ref - 1) + 4 : load(ref - 1) * 4 + 4;
+            for (ExecutionListener l : ls) {
+              l.allocation(this, at, ref, size);
+            }
           }
-          len = heap[adr - 1];
-          if (idx < 0 || idx >= len) {
-            throw new IllegalStateException("index out of bounds");
+          default -> {
           }
-          heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
-                  (byte) val);
         }
-        case arraylength -> {
-          adr = pop();
-          if (adr == 0) {
-            throw new IllegalStateException("null reference used");
-          }
-          push(heap[adr - 1]);
+        if (!more) { // suspended
+          return;
+        }
+      }
+    } catch (RuntimeException e) {
+      for (ExecutionListener l : ls) {
+        l.trap(this, at, e);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Executes the instruction at pc. Returns false if it was the return
+   * from main().
+   */
+  private boolean step() throws IllegalStateException {
+    Code.OpCode op;
+    int adr, val, val2, off, idx, len, i;
+
+    op = Code.OpCode.get(next());
+    switch (op) {
+      // load/store local variables
+      case load -> push(local[fp + next()]);
+      case load_0, load_1, load_2, load_3 -> push(local[fp + op.code() - OpCode.load_0.code()]); // mapping
+
+      // on
+      // range
+      // 0..3
+      case store -> local[fp + next()] = pop();
+      case store_0, store_1, store_2, store_3 -> local[fp + op.code() - OpCode.store_0.code()] = pop(); // mapping
+
+      // on
+      // range
+      // 0..3
+      // load/store global variables
+      case getstatic -> push(data[next2()]);
+      case putstatic -> data[next2()] = pop();
+
+
+      // load/store object fields
+      case getfield -> {
+        adr = pop();
+        if (adr == 0) {
+          throw new IllegalStateException("null reference used");
+        }
+        push(load(adr + next2()));
+      }
+      case putfield -> {
+        val = pop();
+        adr = pop();
+        if (adr == 0) {
+          throw new IllegalStateException("null reference used");
         }
+        off = adr + next2();
+        store(off, val);
+        if (val >= young && adr < young && gc != null) { // old object points into nursery
+          gc.remember(adr, off);
+        }
+      }
+
+      // load constants
+      case const_0, const_1, const_2, const_3, const_4, const_5 ->
+              push(op.code() - OpCode.const_0.code()); // map opcode to
+
+      // 0..5
+      case const_m1 -> push(-1);
+      case const_ -> push(next4());
+
 
-        // stack manipulation
-        case pop -> pop();
-        case dup -> {
-          val = pop();
-          push(val);
-          push(val);
+      // arithmetic operations
+      case add -> push(pop() + pop());
+      case sub -> push(-pop() + pop());
+      case mul -> push(pop() * pop());
+      case div -> {
+        val = pop();
+        if (val == 0) {
+          throw new IllegalStateException("division by zero");
+        }
+        push(pop() / val);
+      }
+      case rem -> {
+        val = pop();
+        if (val == 0) {
+          throw new IllegalStateException("division by zero");
+        }
+        push(pop() % val);
+      }
+      case neg -> push(-pop());
+      case shl -> {
+        val = pop();
+        push(pop() << val);
+      }
+      case shr -> {
+        val = pop();
+        push(pop() >> val);
+      }
+      case inc -> {
+        off = fp + next();
+        local[off] += next();
+      }
+
+      // object creation
+      case new_ -> {
+        off = pc - 1;
+        push(alloc(next2() * 4, typeAt(off)));
+      }
+      case newarray -> {
+        off = pc - 1;
+        val = next();
+        len = pop();
+        if (offHeap != null) { // arrays of more than 2 GB
+          adr = offHeap.alloc(val == 0 ? len + 4L : len * 4L + 4);
+        } else if (val == 0) {
+          adr = alloc(len + 4, typeAt(off));
+        } else {
+          adr = alloc(len * 4 + 4, typeAt(off));
+        }
+        store(adr, len);
+        push(adr + 1); // skip length field of array
+      }
+
+      // array access
+      case aload -> {
+        idx = pop();
+        adr = pop();
+        if (adr == 0) {
+          throw new IllegalStateException("null reference used");
+        }
+        len = load(adr - 1);
+        if (idx < 0 || idx >= len) {
+          throw new IllegalStateException("index out of bounds");
+        }
+        push(load(adr + idx));
+      }
+      case astore -> {
+        val = pop();
+        idx = pop();
+        adr = pop();
+        if (adr == 0) {
+          throw new IllegalStateException("null reference used");
+        }
+        len = load(adr - 1);
+        if (idx < 0 || idx >= len) {
+          throw new IllegalStateException("index out of bounds");
+        }
+        store(adr + idx, val);
+        if (val >= young && adr < young && gc != null) {
+          gc.remember(adr, adr + idx);
+        }
+      }
+      case baload -> {
+        idx = pop();
+        adr = pop();
+        if (adr == 0) {
+          throw new IllegalStateException("null reference used");
         }
-        case dup2 -> {
-          val = pop();
-          val2 = pop();
-          push(val2);
-          push(val);
-          push(val2);
-          push(val);
+        len = load(adr - 1);
+        if (idx < 0 || idx >= len) {
+          throw new IllegalStateException("index out of bounds");
         }
+        push(getByte(load(adr + idx / 4), idx % 4));
+      }
+      case bastore -> {
+        val = pop();
+        idx = pop();
+        adr = pop();
+        if (adr == 0) {
+          throw new IllegalStateException("null reference used");
+        }
+        len = load(adr - 1);
+        if (idx < 0 || idx >= len) {
+          throw new IllegalStateException("index out of bounds");
+        }
+        store(adr + idx / 4, setByte(load(adr + idx / 4), idx % 4,
+                (byte) val));
+      }
+      case arraylength -> {
+        adr = pop();
+        if (adr == 0) {
+          throw new IllegalStateException("null reference used");
+        }
+        push(load(adr - 1));
+      }
 
-        // jumps
-        case jmp -> {
-          off = next2(true);
+      // stack manipulation
+      case pop -> pop();
+      case dup -> {
+        val = pop();
+        push(val);
+        push(val);
+      }
+      case dup2 -> {
+        val = pop();
+        val2 = pop();
+        push(val2);
+        push(val);
+        push(val2);
+        push(val);
+      }
+
+      // jumps
+      case jmp -> {
+        off = next2();
+        pc += off - 3;
+        if (off < 0 && --fuel < 0 && outOfFuel(true)) {
+          resume = pc;
+          return false;
+        }
+      }
+      case jeq, jne, jlt, jle, jgt, jge -> {
+        off = next2();
+        val2 = pop();
+        val = pop();
+        boolean cond = false;
+        switch (op) {
+          case jeq -> cond = val == val2;
+          case jne -> cond = val != val2;
+          case jlt -> cond = val < val2;
+          case jle -> cond = val <= val2;
+          case jgt -> cond = val > val2;
+          case jge -> cond = val >= val2;
+          default -> {
+            assert false;
+          }
+        }
+        if (cond) {
           pc += off - 3;
+          if (off < 0 && --fuel < 0 && outOfFuel(true)) {
+            resume = pc;
+            return false;
+          }
+        }
+      }
+
+      // method calls
+      case call -> {
+        off = next2();
+        PUSH(pc);
+        pc += off - 3;
+        if (--fuel < 0 && outOfFuel(true)) {
+          resume = pc;
+          return false;
         }
-        case jeq, jne, jlt, jle, jgt, jge -> {
-          off = next2(true);
-          val2 = pop();
-          val = pop();
-          boolean cond = false;
-          switch (op) {
-            case jeq -> cond = val == val2;
-            case jne -> cond = val != val2;
-            case jlt -> cond = val < val2;
-            case jle -> cond = val <= val2;
-            case jgt -> cond = val > val2;
-            case jge -> cond = val >= val2;
-            default -> {
-              assert false;
+      }
+      case return_ -> {
+        if (sp == 0) {
+          return false;
+        }
+        pc = POP();
+      }
+      case enter -> {
+        int psize = next();
+        int lsize = next();
+        PUSH(fp);
+        fp = sp;
+        for (i = 0; i < lsize; i++) {
+          PUSH(0);
+        }
+        assert sp == (fp + lsize);
+        if (esp - psize + maxStackAt(pc - 3) > eStackSize) {
+          throw new IllegalStateException("expression stack overflow");
+        }
+        for (i = psize - 1; i >= 0; i--) {
+          local[fp + i] = pop();
+        }
+      }
+      case exit -> {
+        sp = fp;
+        fp = POP();
+      }
+
+      // I/O
+      case read -> push(readInt());
+      case print -> {
+        len = pop();
+        val = pop();
+        print(val, len);
+      }
+      case bread -> push(io.read());
+      case bprint -> {
+        len = pop() - 1;
+        val = pop();
+        pad(len);
+        io.write((char) val);
+      }
+      case nop -> {
+      }
+      // nothing to do
+      case trap -> throw new IllegalStateException("trap(" + next() + ")");
+      default -> throw new IllegalStateException("wrong opcode " + op);
+    }
+    return true;
+  }
+
+  /**
+   * Executes the pre-decoded instruction stream from <code>ip</code> until
+   * the method that was entered without a call (main() or a method called
+   * from compiled code) returns. Registers are kept in local variables and
+   * only written back when the loop is left or a compiled method is called.
+   * Only the outermost loop can be suspended when the fuel is used up.
+   * <p>
+   * The frames of the threaded engines hold the operands of their method:
+   * <pre>
+   *   fp: parameters and locals | return address, caller's fp | operands
+   * </pre>
+   * The arguments that the caller pushed become the first locals of the
+   * callee, and the result of a function replaces the first argument, so
+   * calls and returns copy nothing. A call does the work of the
+   * <code>enter</code> of the callee and continues behind it; a method
+   * that is not called from the stream starts at its enter.
+   * <p>
+   * The code has passed the {@link Verifier}, so the stack pointer is not
+   * checked: no instruction finds too few operands, and a frame has room
+   * for the operands of its method.
+   */
+  private void execute(int ip, boolean canSuspend) throws IllegalStateException {
+    final ThreadedCode tc = threaded;
+    final int[] c = tc.code;
+    final int[] data = this.data;
+    int[] local = this.local, heap = this.heap; // replaced when they grow
+    int sp = this.sp, fp = this.fp;
+    int words = this.words, wordLimit = this.wordLimit;
+    int adr, val, val2, idx, len;
+    final boolean publish = publishRegisters;
+
+    try {
+      for (; ; ) { // terminated by return instruction
+        switch (c[ip]) {
+          case ThreadedCode.LOAD -> {
+            local[sp++] = local[fp + c[ip + 1]];
+            ip += 2;
+          }
+          case ThreadedCode.STORE -> {
+            local[fp + c[ip + 1]] = local[--sp];
+            ip += 2;
+          }
+          case ThreadedCode.GETSTATIC -> {
+            local[sp++] = data[c[ip + 1]];
+            ip += 2;
+          }
+          case ThreadedCode.PUTSTATIC -> {
+            data[c[ip + 1]] = local[--sp];
+            ip += 2;
+          }
+          case ThreadedCode.GETFIELD -> {
+            adr = local[sp - 1];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
             }
+            local[sp - 1] = heap[adr + c[ip + 1]];
+            ip += 2;
           }
-          if (cond) {
-            pc += off - 3;
+          case ThreadedCode.PUTFIELD -> {
+            val = local[--sp];
+            adr = local[--sp];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            heap[adr + c[ip + 1]] = val;
+            if (val >= young && adr < young && gc != null) { // old object points into nursery
+              gc.remember(adr, adr + c[ip + 1]);
+            }
+            ip += 2;
+          }
+          case ThreadedCode.CONST -> {
+            local[sp++] = c[ip + 1];
+            ip += 2;
+          }
+          case ThreadedCode.ADD, ThreadedCode.SUB, ThreadedCode.MUL, ThreadedCode.SHL, ThreadedCode.SHR -> {
+            val2 = local[--sp];
+            val = local[sp - 1];
+            local[sp - 1] = switch (c[ip]) {
+              case ThreadedCode.ADD -> val + val2;
+              case ThreadedCode.SUB -> val - val2;
+              case ThreadedCode.MUL -> val * val2;
+              case ThreadedCode.SHL -> val << val2;
+              default -> val >> val2;
+            };
+            ip++;
+          }
+          case ThreadedCode.DIV, ThreadedCode.REM -> {
+            val2 = local[--sp];
+            if (val2 == 0) {
+              throw new IllegalStateException("division by zero");
+            }
+            val = local[sp - 1];
+            local[sp - 1] = c[ip] == ThreadedCode.DIV ? val / val2 : val % val2;
+            ip++;
+          }
+          case ThreadedCode.NEG -> {
+            local[sp - 1] = -local[sp - 1];
+            ip++;
+          }
+          case ThreadedCode.INC -> {
+            local[fp + c[ip + 1]] += c[ip + 2];
+            ip += 3;
+          }
+          case ThreadedCode.NEW -> {
+            if (gc != null) { // registers are roots of the collector
+              this.pc = tc.bytePc(ip);
+              this.sp = sp;
+              this.fp = fp;
+            }
+            local[sp++] = alloc(c[ip + 1], c[ip + 2]);
+            heap = this.heap;
+            ip += 3;
+          }
+          case ThreadedCode.NEWARRAY -> {
+            len = local[sp - 1];
+            if (gc != null) {
+              this.pc = tc.bytePc(ip);
+              this.sp = sp - 1;
+              this.fp = fp;
+            }
+            adr = c[ip + 1] == 0 ? alloc(len + 4, c[ip + 2]) : alloc(len * 4 + 4, c[ip + 2]);
+            heap = this.heap;
+            heap[adr] = len;
+            local[sp - 1] = adr + 1; // skip length field of array
+            ip += 3;
+          }
+          case ThreadedCode.ALOAD, ThreadedCode.BALOAD -> {
+            idx = local[--sp];
+            adr = local[sp - 1];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            if (idx < 0 || idx >= heap[adr - 1]) {
+              throw new IllegalStateException("index out of bounds");
+            }
+            local[sp - 1] = c[ip] == ThreadedCode.ALOAD
+                    ? heap[adr + idx]
+                    : getByte(heap[adr + idx / 4], idx % 4);
+            ip++;
+          }
+          case ThreadedCode.ASTORE, ThreadedCode.BASTORE -> {
+            val = local[--sp];
+            idx = local[--sp];
+            adr = local[--sp];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            if (idx < 0 || idx >= heap[adr - 1]) {
+              throw new IllegalStateException("index out of bounds");
+            }
+            if (c[ip] == ThreadedCode.ASTORE) {
+              heap[adr + idx] = val;
+              if (val >= young && adr < young && gc != null) {
+                gc.remember(adr, adr + idx);
+              }
+            } else {
+              heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4, (byte) val);
+            }
+            ip++;
+          }
+          case ThreadedCode.ARRAYLENGTH -> {
+            adr = local[sp - 1];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            local[sp - 1] = heap[adr - 1];
+            ip++;
+          }
+          case ThreadedCode.POP -> {
+            sp--;
+            ip++;
+          }
+          case ThreadedCode.DUP -> {
+            val = local[sp - 1];
+            local[sp++] = val;
+            ip++;
+          }
+          case ThreadedCode.DUP2 -> {
+            val = local[sp - 2];
+            val2 = local[sp - 1];
+            local[sp++] = val;
+            local[sp++] = val2;
+            ip++;
+          }
+          case ThreadedCode.JMP -> {
+            if (c[ip + 1] <= ip) {
+              if (jit != null) {
+                jit.backedge(tc.bytePc(ip));
+              }
+              if (publish) {
+                this.pc = tc.bytePc(c[ip + 1]);
+              }
+              ip = c[ip + 1];
+              if (--fuel < 0 && outOfFuel(canSuspend)) {
+                suspendThreaded(ip, local, fp);
+                return;
+              }
+              if (jit != null && !metered && jit.hotLoop(tc.bytePc(ip))) {
+                this.sp = sp;
+                this.fp = fp;
+                this.words = words;
+                this.wordLimit = wordLimit;
+                ip = tc.streamPc(runLoop(tc.bytePc(ip)));
+                local = this.local;
+                heap = this.heap;
+                sp = this.sp;
+              }
+            } else {
+              ip = c[ip + 1];
+            }
+          }
+          case ThreadedCode.JEQ, ThreadedCode.JNE, ThreadedCode.JLT,
+                  ThreadedCode.JLE, ThreadedCode.JGT, ThreadedCode.JGE -> {
+            val2 = local[--sp];
+            val = local[--sp];
+            if (!compare(c[ip], val, val2)) {
+              ip += 2;
+            } else if (c[ip + 1] > ip) {
+              ip = c[ip + 1];
+            } else {
+              ip = c[ip + 1];
+              if (--fuel < 0 && outOfFuel(canSuspend)) {
+                suspendThreaded(ip, local, fp);
+                return;
+              }
+            }
+          }
+          case ThreadedCode.CALL -> {
+            int callee = c[ip + 1]; // its enter instruction
+            if (jit != null && !metered) {
+              Machine.Compiled cm = jit.invoked(tc.bytePc(callee));
+              if (cm != null) {
+                this.sp = sp;
+                this.fp = fp;
+                machine.stackUsed = words + mStackSize - wordLimit;
+                machine.operands = sp - c[callee + 1] - words;
+                int[] before = local;
+                try {
+                  sp = cm.call(local, sp, machine);
+                } catch (StackOverflowError e) {
+                  throw new IllegalStateException("method stack overflow");
+                }
+                heap = this.heap;
+                local = this.local;
+                if (local != before && sp > 0) { // grown by an interpreted method, copy the result
+                  local[sp - 1] = before[sp - 1];
+                }
+                ip += 2;
+                break;
+              }
+            }
+            int lsize = c[callee + 2];
+            int nfp = sp - c[callee + 1]; // the arguments are the first locals
+            words += lsize + 2;
+            if (nfp + c[callee + 3] > local.length || words > wordLimit || nfp + c[callee + 3] - words > eStackSize) {
+              enterFrame(nfp + c[callee + 3], words, wordLimit);
+              local = this.local;
+            }
+            while (sp < nfp + lsize) {
+              local[sp++] = 0;
+            }
+            local[sp++] = ip + 2;
+            local[sp++] = fp;
+            fp = nfp;
+            ip = callee + 4;
+            if (publish) {
+              this.fp = fp;
+              this.pc = tc.bytePc(ip);
+            }
+            if (--fuel < 0 && outOfFuel(canSuspend)) {
+              suspendThreaded(ip, local, fp);
+              return;
+            }
+          }
+          case ThreadedCode.ENTER -> { // main() or a method called from compiled code, see CALL
+            int lsize = c[ip + 2];
+            int nfp = sp - c[ip + 1];
+            words += lsize + 2;
+            if (nfp + c[ip + 3] > local.length || words > wordLimit || nfp + c[ip + 3] - words > eStackSize) {
+              enterFrame(nfp + c[ip + 3], words, wordLimit);
+              local = this.local;
+            }
+            while (sp < nfp + lsize) {
+              local[sp++] = 0;
+            }
+            local[sp++] = -1; // leave execute() on return
+            local[sp++] = fp;
+            fp = nfp;
+            if (publish) {
+              this.fp = fp;
+              this.pc = tc.bytePc(ip);
+            }
+            ip += 4;
+          }
+          case ThreadedCode.EXIT -> { // and the return that follows
+            int link = fp + c[ip + 1];
+            words -= c[ip + 1] + 2;
+            int ret = local[link];
+            int callerFp = local[link + 1];
+            if (c[ip + 2] != 0) { // the value replaces the first argument
+              local[fp] = local[sp - 1];
+              sp = fp + 1;
+            } else {
+              sp = fp;
+            }
+            fp = callerFp;
+            if (ret < 0) {
+              return;
+            }
+            ip = ret;
+            if (publish) {
+              this.fp = fp;
+              this.pc = tc.bytePc(ip);
+            }
+          }
+          case ThreadedCode.RETURN -> throw new IllegalStateException("return without exit");
+          case ThreadedCode.READ -> {
+            local[sp++] = readInt();
+            ip++;
+          }
+          case ThreadedCode.PRINT -> {
+            len = local[--sp];
+            val = local[--sp];
+            print(val, len);
+            ip++;
+          }
+          case ThreadedCode.BREAD -> {
+            local[sp++] = io.read();
+            ip++;
+          }
+          case ThreadedCode.BPRINT -> {
+            len = local[--sp] - 1;
+            val = local[--sp];
+            pad(len);
+            io.write((char) val);
+            ip++;
+          }
+          case ThreadedCode.NOP -> ip++;
+          case ThreadedCode.TRAP -> throw new IllegalStateException("trap(" + c[ip + 1] + ")");
+
+          // superinstructions
+          case ThreadedCode.LOAD_LOAD -> {
+            local[sp++] = local[fp + c[ip + 1]];
+            local[sp++] = local[fp + c[ip + 2]];
+            ip += 3;
+          }
+          case ThreadedCode.LOAD_LOAD_ADD -> {
+            local[sp++] = local[fp + c[ip + 1]] + local[fp + c[ip + 2]];
+            ip += 3;
           }
+          case ThreadedCode.LOAD_LOAD_ALOAD -> {
+            adr = local[fp + c[ip + 1]];
+            idx = local[fp + c[ip + 2]];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            if (idx < 0 || idx >= heap[adr - 1]) {
+              throw new IllegalStateException("index out of bounds");
+            }
+            local[sp++] = heap[adr + idx];
+            ip += 3;
+          }
+          case ThreadedCode.LOAD_CONST -> {
+            local[sp++] = local[fp + c[ip + 1]];
+            local[sp++] = c[ip + 2];
+            ip += 3;
+          }
+          case ThreadedCode.LOAD_GETFIELD -> {
+            adr = local[fp + c[ip + 1]];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            local[sp++] = heap[adr + c[ip + 2]];
+            ip += 3;
+          }
+          case ThreadedCode.ADD_STORE -> {
+            val2 = local[--sp];
+            local[fp + c[ip + 1]] = local[--sp] + val2;
+            ip += 2;
+          }
+          case ThreadedCode.IF_LL, ThreadedCode.IF_LC -> {
+            val = local[fp + c[ip + 1]];
+            val2 = c[ip] == ThreadedCode.IF_LL ? local[fp + c[ip + 2]] : c[ip + 2];
+            if (!compare(c[ip + 3], val, val2)) {
+              ip += 5;
+            } else if (c[ip + 4] > ip) {
+              ip = c[ip + 4];
+            } else {
+              ip = c[ip + 4];
+              if (--fuel < 0 && outOfFuel(canSuspend)) {
+                suspendThreaded(ip, local, fp);
+                return;
+              }
+            }
+          }
+          case ThreadedCode.INC_JMP -> {
+            local[fp + c[ip + 1]] += c[ip + 2];
+            if (c[ip + 3] <= ip) {
+              if (jit != null) {
+                jit.backedge(tc.bytePc(ip) + 3); // the jmp behind the inc
+              }
+              if (publish) {
+                this.pc = tc.bytePc(c[ip + 3]);
+              }
+              ip = c[ip + 3];
+              if (--fuel < 0 && outOfFuel(canSuspend)) {
+                suspendThreaded(ip, local, fp);
+                return;
+              }
+              if (jit != null && !metered && jit.hotLoop(tc.bytePc(ip))) {
+                this.sp = sp;
+                this.fp = fp;
+                this.words = words;
+                this.wordLimit = wordLimit;
+                ip = tc.streamPc(runLoop(tc.bytePc(ip)));
+                local = this.local;
+                heap = this.heap;
+                sp = this.sp;
+              }
+            } else {
+              ip = c[ip + 3];
+            }
+          }
+          case ThreadedCode.INCSTATIC -> {
+            data[c[ip + 1]] += c[ip + 2];
+            ip += 3;
+          }
+          default -> throw new IllegalStateException("wrong opcode " + c[ip] + " at " + tc.bytePc(ip));
         }
+      }
+    } finally {
+      this.pc = tc.bytePc(ip);
+      this.sp = sp;
+      this.fp = fp;
+      this.words = words;
+      this.wordLimit = wordLimit;
+    }
+  }
 
-        // method calls
-        case call -> {
-          off = next2(true);
-          PUSH(pc);
-          pc += off - 3;
+  /**
+   * Runs the loop at <code>header</code> of the current frame, which has no
+   * operands there, with its trace (see {@link Jit}). A loop that has none
+   * yet is recorded first. Returns the address at which the threaded code
+   * continues.
+   */
+  private int runLoop(int header) {
+    Machine.Trace t = jit.traceAt(header);
+    if (t == null) {
+      int[] path = recordTrace(header);
+      t = jit.compileTrace(header, path);
+      if (t == null) {
+        return path == null ? pc : header;
+      }
+    }
+    int nLocals = analysis.methodContaining(header).nLocals;
+    int[] regs = Arrays.copyOfRange(local, fp, fp + nLocals);
+    machine.stackUsed = words + mStackSize - wordLimit;
+    machine.operands = fp + nLocals + 2 - words;
+    int at;
+    try {
+      at = t.run(regs, machine);
+    } catch (StackOverflowError e) {
+      throw new IllegalStateException("method stack overflow");
+    }
+    System.arraycopy(regs, 0, local, fp, nLocals);
+    return at;
+  }
+
+  /**
+   * Executes one iteration of the loop at <code>header</code> of the
+   * current frame on the byte code and returns the addresses of the
+   * instructions executed in its frame; calls run on the threaded code.
+   * Returns <code>null</code> if the iteration leaves the loop or the method,
+   * enters another loop or gets too long. The program is then continued up
+   * to an address that the threaded code can continue from, which is left
+   * in <code>pc</code>.
+   */
+  private int[] recordTrace(int header) {
+    final int maxLength = 1000;
+    int[] path = new int[32];
+    int n = 0;
+    boolean ok = analysis.depth[header] == 0;
+    int[] local = this.local;
+    int sp = this.sp, fp = this.fp;
+    int pc = header, val, val2;
+    try {
+      for (; ; ) {
+        if (ok ? pc == header && n > 0 : threaded.streamPc(pc) >= 0) {
+          this.pc = pc;
+          return ok ? Arrays.copyOf(path, n) : null;
+        }
+        OpCode op = OpCode.get(code[pc]);
+        if (op == OpCode.exit || op == OpCode.return_ || op == OpCode.trap || op == OpCode.enter) {
+          this.pc = pc; // never part of a superinstruction
+          return null;
         }
-        case return_ -> {
-          if (sp == 0) {
-            return;
+        if (ok) {
+          if (n == maxLength) {
+            ok = false;
+          } else {
+            if (n == path.length) {
+              path = Arrays.copyOf(path, 2 * n);
+            }
+            path[n++] = pc;
           }
-          pc = POP();
         }
-        case enter -> {
-          int psize = next(true);
-          int lsize = next(true);
-          PUSH(fp);
-          fp = sp;
-          for (i = 0; i < lsize; i++) {
-            PUSH(0);
+        int next = pc + analysis.sizeAt(pc);
+        switch (op) {
+          case load -> local[sp++] = local[fp + analysis.get1(pc + 1)];
+          case load_0, load_1, load_2, load_3 -> local[sp++] = local[fp + op.ordinal() - OpCode.load_0.ordinal()];
+          case store -> local[fp + analysis.get1(pc + 1)] = local[--sp];
+          case store_0, store_1, store_2, store_3 ->
+                  local[fp + op.ordinal() - OpCode.store_0.ordinal()] = local[--sp];
+          case getstatic -> local[sp++] = data[analysis.get2(pc + 1)];
+          case putstatic -> data[analysis.get2(pc + 1)] = local[--sp];
+          case getfield -> local[sp - 1] = Machine.getfield(local[sp - 1], analysis.get2(pc + 1), machine);
+          case putfield -> {
+            val = local[--sp];
+            Machine.putfield(local[--sp], val, analysis.get2(pc + 1), machine);
           }
-          assert sp == (fp + lsize);
-          for (i = psize - 1; i >= 0; i--) {
-            local[fp + i] = pop();
+          case const_0, const_1, const_2, const_3, const_4, const_5 ->
+                  local[sp++] = op.ordinal() - OpCode.const_0.ordinal();
+          case const_m1 -> local[sp++] = -1;
+          case const_ -> local[sp++] = analysis.get4(pc + 1);
+          case add, sub, mul, div, rem, shl, shr -> {
+            val2 = local[--sp];
+            val = local[sp - 1];
+            local[sp - 1] = switch (op) {
+              case add -> val + val2;
+              case sub -> val - val2;
+              case mul -> val * val2;
+              case div -> Machine.div(val, val2);
+              case rem -> Machine.rem(val, val2);
+              case shl -> val << val2;
+              default -> val >> val2;
+            };
+          }
+          case neg -> local[sp - 1] = -local[sp - 1];
+          case inc -> local[fp + analysis.get1(pc + 1)] += analysis.get1(pc + 2);
+          case new_ -> local[sp++] = Machine.newObject(analysis.get2(pc + 1) * 4, machine);
+          case newarray -> local[sp - 1] = Machine.newArray(local[sp - 1], analysis.get1(pc + 1), machine);
+          case aload, baload -> {
+            val2 = local[--sp];
+            local[sp - 1] = op == OpCode.aload
+                    ? Machine.aload(local[sp - 1], val2, machine)
+                    : Machine.baload(local[sp - 1], val2, machine);
+          }
+          case astore, bastore -> {
+            val = local[--sp];
+            val2 = local[--sp];
+            if (op == OpCode.astore) {
+              Machine.astore(local[--sp], val2, val, machine);
+            } else {
+              Machine.bastore(local[--sp], val2, val, machine);
+            }
+          }
+          case arraylength -> local[sp - 1] = Machine.arraylength(local[sp - 1], machine);
+          case pop -> sp--;
+          case dup -> {
+            local[sp] = local[sp - 1];
+            sp++;
+          }
+          case dup2 -> {
+            local[sp] = local[sp - 2];
+            local[sp + 1] = local[sp - 1];
+            sp += 2;
+          }
+          case jmp -> next = analysis.target(pc);
+          case jeq, jne, jlt, jle, jgt, jge -> {
+            val2 = local[--sp];
+            val = local[--sp];
+            if (compare(ThreadedCode.opcodeOf(op), val, val2)) {
+              next = analysis.target(pc);
+            }
+          }
+          case call -> {
+            this.sp = sp;
+            this.fp = fp;
+            execute(threaded.streamPc(analysis.target(pc)), false);
+            local = this.local;
+            sp = this.sp;
+          }
+          case read -> local[sp++] = Machine.read(machine);
+          case bread -> local[sp++] = Machine.bread(machine);
+          case print, bprint -> {
+            val2 = local[--sp];
+            val = local[--sp];
+            if (op == OpCode.print) {
+              Machine.print(val, val2, machine);
+            } else {
+              Machine.bprint(val, val2, machine);
+            }
+          }
+          default -> {
+            // nop
           }
         }
-        case exit -> {
-          sp = fp;
-          fp = POP();
+        if (next <= pc && next != header) {
+          ok = false; // an inner loop gets a trace of its own
         }
+        pc = next;
+      }
+    } finally {
+      this.sp = sp;
+      this.fp = fp;
+    }
+  }
 
-        // I/O
-        case read -> push(readInt());
-        case print -> {
-          len = pop();
-          val = pop();
-          String s = String.valueOf(val);
-          len = len - s.length();
-          write(s, len);
-        }
-        case bread -> push(io.read());
-        case bprint -> {
-          len = pop() - 1;
-          val = pop();
-          write(Character.toString((char) val), len);
-        }
-        case nop -> {
+  /**
+   * Executes the register code from <code>ip</code> until main() returns.
+   * The frames are those of {@link #execute}, and registers are offsets
+   * from fp (see {@link RegisterCode}). The stack pointer is not needed by
+   * the instructions; it is only computed where the collector or a
+   * suspended program needs it.
+   */
+  private void executeRegisters(int ip) throws IllegalStateException {
+    final RegisterCode rc = registers;
+    final int[] c = rc.code;
+    final int[] data = this.data;
+    int[] local = this.local, heap = this.heap; // replaced when they grow
+    int sp = this.sp, fp = this.fp;
+    int words = this.words, wordLimit = this.wordLimit;
+    int adr, val, idx, len;
+    final boolean publish = publishRegisters;
+
+    try {
+      for (; ; ) { // terminated by the exit of main()
+        switch (c[ip]) {
+          case RegisterCode.MOV -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]];
+            ip += 3;
+          }
+          case RegisterCode.MOVI -> {
+            local[fp + c[ip + 1]] = c[ip + 2];
+            ip += 3;
+          }
+          case RegisterCode.GETSTATIC -> {
+            local[fp + c[ip + 1]] = data[c[ip + 2]];
+            ip += 3;
+          }
+          case RegisterCode.PUTSTATIC -> {
+            data[c[ip + 1]] = local[fp + c[ip + 2]];
+            ip += 3;
+          }
+          case RegisterCode.GETFIELD -> {
+            adr = local[fp + c[ip + 2]];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            local[fp + c[ip + 1]] = heap[adr + c[ip + 3]];
+            ip += 4;
+          }
+          case RegisterCode.PUTFIELD -> {
+            adr = local[fp + c[ip + 1]];
+            val = local[fp + c[ip + 3]];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            heap[adr + c[ip + 2]] = val;
+            if (val >= young && adr < young && gc != null) { // old object points into nursery
+              gc.remember(adr, adr + c[ip + 2]);
+            }
+            ip += 4;
+          }
+          case RegisterCode.ADD -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] + local[fp + c[ip + 3]];
+            ip += 4;
+          }
+          case RegisterCode.SUB -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] - local[fp + c[ip + 3]];
+            ip += 4;
+          }
+          case RegisterCode.MUL -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] * local[fp + c[ip + 3]];
+            ip += 4;
+          }
+          case RegisterCode.DIV, RegisterCode.REM -> {
+            val = local[fp + c[ip + 3]];
+            if (val == 0) {
+              throw new IllegalStateException("division by zero");
+            }
+            local[fp + c[ip + 1]] = c[ip] == RegisterCode.DIV
+                    ? local[fp + c[ip + 2]] / val
+                    : local[fp + c[ip + 2]] % val;
+            ip += 4;
+          }
+          case RegisterCode.SHL -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] << local[fp + c[ip + 3]];
+            ip += 4;
+          }
+          case RegisterCode.SHR -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] >> local[fp + c[ip + 3]];
+            ip += 4;
+          }
+          case RegisterCode.ADDI -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] + c[ip + 3];
+            ip += 4;
+          }
+          case RegisterCode.MULI -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] * c[ip + 3];
+            ip += 4;
+          }
+          case RegisterCode.DIVI -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] / c[ip + 3];
+            ip += 4;
+          }
+          case RegisterCode.REMI -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] % c[ip + 3];
+            ip += 4;
+          }
+          case RegisterCode.SHLI -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] << c[ip + 3];
+            ip += 4;
+          }
+          case RegisterCode.SHRI -> {
+            local[fp + c[ip + 1]] = local[fp + c[ip + 2]] >> c[ip + 3];
+            ip += 4;
+          }
+          case RegisterCode.NEG -> {
+            local[fp + c[ip + 1]] = -local[fp + c[ip + 2]];
+            ip += 3;
+          }
+          case RegisterCode.INC -> {
+            local[fp + c[ip + 1]] += c[ip + 2];
+            ip += 3;
+          }
+          case RegisterCode.NEW -> {
+            if (gc != null) { // registers are roots of the collector, the operands end at the result
+              this.pc = rc.bytePc(ip);
+              this.sp = fp + c[ip + 1];
+              this.fp = fp;
+            }
+            local[fp + c[ip + 1]] = alloc(c[ip + 2], c[ip + 3]);
+            heap = this.heap;
+            ip += 4;
+          }
+          case RegisterCode.NEWARRAY -> {
+            len = local[fp + c[ip + 2]];
+            if (gc != null) {
+              this.pc = rc.bytePc(ip);
+              this.sp = fp + c[ip + 1];
+              this.fp = fp;
+            }
+            adr = c[ip + 3] == 0 ? alloc(len + 4, c[ip + 4]) : alloc(len * 4 + 4, c[ip + 4]);
+            heap = this.heap;
+            heap[adr] = len;
+            local[fp + c[ip + 1]] = adr + 1; // skip length field of array
+            ip += 5;
+          }
+          case RegisterCode.ALOAD, RegisterCode.BALOAD -> {
+            adr = local[fp + c[ip + 2]];
+            idx = local[fp + c[ip + 3]];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            if (idx < 0 || idx >= heap[adr - 1]) {
+              throw new IllegalStateException("index out of bounds");
+            }
+            local[fp + c[ip + 1]] = c[ip] == RegisterCode.ALOAD
+                    ? heap[adr + idx]
+                    : getByte(heap[adr + idx / 4], idx % 4);
+            ip += 4;
+          }
+          case RegisterCode.ASTORE, RegisterCode.BASTORE -> {
+            adr = local[fp + c[ip + 1]];
+            idx = local[fp + c[ip + 2]];
+            val = local[fp + c[ip + 3]];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            if (idx < 0 || idx >= heap[adr - 1]) {
+              throw new IllegalStateException("index out of bounds");
+            }
+            if (c[ip] == RegisterCode.ASTORE) {
+              heap[adr + idx] = val;
+              if (val >= young && adr < young && gc != null) {
+                gc.remember(adr, adr + idx);
+              }
+            } else {
+              heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4, (byte) val);
+            }
+            ip += 4;
+          }
+          case RegisterCode.ARRAYLENGTH -> {
+            adr = local[fp + c[ip + 2]];
+            if (adr == 0) {
+              throw new IllegalStateException("null reference used");
+            }
+            local[fp + c[ip + 1]] = heap[adr - 1];
+            ip += 3;
+          }
+          case RegisterCode.JMP -> {
+            if (c[ip + 1] <= ip) {
+              if (publish) {
+                this.pc = rc.bytePc(c[ip + 1]);
+              }
+              ip = c[ip + 1];
+              if (--fuel < 0 && outOfFuel(true)) {
+                sp = fp + rc.stackTop(ip);
+                suspendThreaded(ip, local, fp);
+                return;
+              }
+            } else {
+              ip = c[ip + 1];
+            }
+          }
+          case RegisterCode.JCC, RegisterCode.JCCI -> {
+            val = local[fp + c[ip + 2]];
+            if (!compare(c[ip + 1], val, c[ip] == RegisterCode.JCC ? local[fp + c[ip + 3]] : c[ip + 3])) {
+              ip += 5;
+            } else if (c[ip + 4] > ip) {
+              ip = c[ip + 4];
+            } else {
+              ip = c[ip + 4];
+              if (--fuel < 0 && outOfFuel(true)) {
+                sp = fp + rc.stackTop(ip);
+                suspendThreaded(ip, local, fp);
+                return;
+              }
+            }
+          }
+          case RegisterCode.CALL -> {
+            int callee = c[ip + 1]; // its enter instruction
+            int lsize = c[callee + 2];
+            int nfp = fp + c[ip + 2]; // the arguments are the first locals
+            words += lsize + 2;
+            if (nfp + c[callee + 3] > local.length || words > wordLimit || nfp + c[callee + 3] - words > eStackSize) {
+              enterFrame(nfp + c[callee + 3], words, wordLimit);
+              local = this.local;
+            }
+            Arrays.fill(local, nfp + c[callee + 1], nfp + lsize, 0);
+            local[nfp + lsize] = ip + 3;
+            local[nfp + lsize + 1] = fp;
+            fp = nfp;
+            ip = callee + 4;
+            if (publish) {
+              this.fp = fp;
+              this.pc = rc.bytePc(ip);
+            }
+            if (--fuel < 0 && outOfFuel(true)) {
+              sp = fp + lsize + 2;
+              suspendThreaded(ip, local, fp);
+              return;
+            }
+          }
+          case RegisterCode.ENTER -> { // main()
+            int lsize = c[ip + 2];
+            int nfp = sp - c[ip + 1];
+            words += lsize + 2;
+            if (nfp + c[ip + 3] > local.length || words > wordLimit || nfp + c[ip + 3] - words > eStackSize) {
+              enterFrame(nfp + c[ip + 3], words, wordLimit);
+              local = this.local;
+            }
+            while (sp < nfp + lsize) {
+              local[sp++] = 0;
+            }
+            local[sp++] = -1; // leave executeRegisters() on return
+            local[sp++] = fp;
+            fp = nfp;
+            if (publish) {
+              this.fp = fp;
+              this.pc = rc.bytePc(ip);
+            }
+            ip += 4;
+          }
+          case RegisterCode.EXIT -> { // and the return that follows
+            int link = fp + c[ip + 1];
+            words -= c[ip + 1] + 2;
+            int ret = local[link];
+            int callerFp = local[link + 1];
+            if (c[ip + 2] >= 0) { // the value replaces the first argument
+              local[fp] = local[fp + c[ip + 2]];
+              sp = fp + 1;
+            } else {
+              sp = fp;
+            }
+            fp = callerFp;
+            if (ret < 0) {
+              return;
+            }
+            ip = ret;
+            if (publish) {
+              this.fp = fp;
+              this.pc = rc.bytePc(ip);
+            }
+          }
+          case RegisterCode.RETURN -> throw new IllegalStateException("return without exit");
+          case RegisterCode.READ -> {
+            local[fp + c[ip + 1]] = readInt();
+            ip += 2;
+          }
+          case RegisterCode.PRINT -> {
+            print(local[fp + c[ip + 1]], local[fp + c[ip + 2]]);
+            ip += 3;
+          }
+          case RegisterCode.BREAD -> {
+            local[fp + c[ip + 1]] = io.read();
+            ip += 2;
+          }
+          case RegisterCode.BPRINT -> {
+            pad(local[fp + c[ip + 2]] - 1);
+            io.write((char) local[fp + c[ip + 1]]);
+            ip += 3;
+          }
+          case RegisterCode.TRAP -> throw new IllegalStateException("trap(" + c[ip + 1] + ")");
+          default -> throw new IllegalStateException("wrong opcode " + c[ip] + " at " + rc.bytePc(ip));
         }
-        // nothing to do
-        case trap -> throw new IllegalStateException("trap(" + next(true) + ")");
-        default -> throw new IllegalStateException("wrong opcode " + op);
-      }
-      if (debug) {
-        System.out.println();
-        System.out.print("     | ");
-        printStack();
       }
+    } finally {
+      this.pc = rc.bytePc(ip);
+      this.sp = sp;
+      this.fp = fp;
+      this.words = words;
+      this.wordLimit = wordLimit;
     }
   }
 }
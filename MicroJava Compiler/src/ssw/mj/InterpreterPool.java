@@ -0,0 +1,67 @@
+package ssw.mj;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of interpreters for one program. An interpreter that is
+ * released after its run is {@link Interpreter#reset reset} and handed out
+ * again, so its heap, stacks and translated code do not have to be
+ * allocated again. If the pool is empty, a new interpreter is created; if
+ * it is full, released interpreters are dropped.
+ * <p>
+ * The pool is thread-safe, an interpreter must only be used by one thread
+ * at a time.
+ */
+final class InterpreterPool {
+
+  private final Run.Program program;
+  private final Run.Options opts;
+  private final ArrayBlockingQueue<Interpreter> idle;
+  private int created; // for statistics only
+
+  /**
+   * Keeps up to <code>capacity</code> idle interpreters created with
+   * <code>opts</code>. The I/O of <code>opts</code> is replaced by the one
+   * passed to {@link #acquire}.
+   */
+  InterpreterPool(Run.Program program, Run.Options opts, int capacity) {
+    this.program = program;
+    this.opts = opts.copy();
+    idle = new ArrayBlockingQueue<>(capacity);
+  }
+
+  /**
+   * Returns an interpreter that is ready to run the program with
+   * <code>io</code>.
+   */
+  Interpreter acquire(Interpreter.IO io) {
+    Interpreter vm = idle.poll();
+    if (vm != null) {
+      vm.reset(io);
+      if (opts.fuel > 0) {
+        vm.setFuel(opts.fuel, false);
+      }
+      return vm;
+    }
+    Run.Options o = opts.copy();
+    o.io = io;
+    synchronized (this) {
+      created++;
+    }
+    return program.newInterpreter(o);
+  }
+
+  /**
+   * Gives back an interpreter that is no longer running.
+   */
+  void release(Interpreter vm) {
+    idle.offer(vm);
+  }
+
+  /**
+   * Number of interpreters created so far.
+   */
+  synchronized int created() {
+    return created;
+  }
+}
@@ -0,0 +1,231 @@
+package ssw.mj;
+
+import javassist.bytecode.ClassFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Method-level JIT compiler of the {@link Interpreter}. Counts invocations
+ * and loop iterations per method (keyed by the address of its
+ * <code>enter</code> instruction) and translates methods that get hot into
+ * JVM classes with {@link BytecodeTranslator}. Subsequent calls of such a
+ * method run the compiled version.
+ * <p>
+ * Compilation happens synchronously at the call that makes a method hot.
+ * There is no on-stack replacement, so a hot loop only profits from
+ * compilation the next time its method is called. Loops that get hot in the
+ * interpreter are therefore traced as well: the interpreter records the
+ * instructions of one iteration, which are compiled into a
+ * {@link Machine.Trace} that it runs from then on whenever it reaches the
+ * loop header (keyed by its address). A trace leaves the loop as soon as a
+ * conditional jump goes another way than recorded.
+ */
+final class Jit {
+
+  static final int INVOCATION_THRESHOLD = 1000;
+  static final int BACKEDGE_THRESHOLD = 10000;
+  static final int LOOP_THRESHOLD = 1000;
+
+  /**
+   * Backward jumps are attributed to their method in batches of this size.
+   */
+  private static final int BACKEDGE_BATCH = 1024;
+
+  private static final String PACKAGE = "ssw.mj.gen.";
+
+  private final CodeAnalysis analysis;
+  private final BytecodeTranslator translator;
+  private final Loader loader;
+
+  // indexed by the address of the enter instruction
+  private final int[] invocations;
+  private final int[] backedges;
+  private final Machine.Compiled[] compiled;
+  private final boolean[] failed;
+
+  /**
+   * Iterations per backward jump, indexed by the address of the jump.
+   */
+  private final int[] loops;
+
+  // indexed by the address of the loop header
+  private final int[] iterations;
+  private final Machine.Trace[] traces;
+  private final boolean[] untraceable;
+
+  private final int invocationThreshold, backedgeThreshold, loopThreshold;
+
+  private int nCompiled, nTraces;
+
+  Jit(CodeAnalysis analysis) {
+    this(analysis, false);
+  }
+
+  /**
+   * An <code>eager</code> JIT compiles every method at its first call and
+   * traces every loop at its first iteration, which exposes all code to
+   * the compiler (used by the tests).
+   */
+  Jit(CodeAnalysis analysis, boolean eager) {
+    this.analysis = analysis;
+    invocationThreshold = eager ? 1 : INVOCATION_THRESHOLD;
+    backedgeThreshold = eager ? 1 : BACKEDGE_THRESHOLD;
+    loopThreshold = eager ? 1 : LOOP_THRESHOLD;
+    translator = new BytecodeTranslator(analysis);
+    loader = new Loader(Jit.class.getClassLoader());
+    int size = analysis.codeSize;
+    invocations = new int[size];
+    backedges = new int[size];
+    compiled = new Machine.Compiled[size];
+    failed = new boolean[size];
+    loops = new int[size];
+    iterations = new int[size];
+    traces = new Machine.Trace[size];
+    untraceable = new boolean[size];
+  }
+
+  /**
+   * Called whenever the method at <code>adr</code> is invoked. Returns its
+   * compiled version or <code>null</code> if it still has to be interpreted.
+   */
+  Machine.Compiled invoked(int adr) {
+    Machine.Compiled c = compiled[adr];
+    if (c == null && !failed[adr] && ++invocations[adr] >= invocationThreshold) {
+      c = compile(adr);
+    }
+    return c;
+  }
+
+  /**
+   * Called for every backward jump at address <code>pc</code>.
+   */
+  void backedge(int pc) {
+    if (++loops[pc] % BACKEDGE_BATCH == 0) {
+      CodeAnalysis.Method m = analysis.methodContaining(pc);
+      if (m != null) {
+        backedges[m.adr] += BACKEDGE_BATCH;
+        if (backedges[m.adr] >= backedgeThreshold && compiled[m.adr] == null && !failed[m.adr]) {
+          compile(m.adr);
+        }
+      }
+    }
+  }
+
+  /**
+   * Called for every backward jump to the loop header at address
+   * <code>header</code>. Returns whether the loop has a trace or should be
+   * recorded now.
+   */
+  boolean hotLoop(int header) {
+    return traces[header] != null || !untraceable[header] && ++iterations[header] >= loopThreshold;
+  }
+
+  /**
+   * Trace of the loop at <code>header</code>, <code>null</code> if it has
+   * not been recorded yet.
+   */
+  Machine.Trace traceAt(int header) {
+    return traces[header];
+  }
+
+  /**
+   * Compiles the trace recorded for the loop at <code>path[0]</code> (see
+   * {@link BytecodeTranslator#translateTrace}). Returns <code>null</code>
+   * and does not try again if it cannot be compiled; a <code>path</code> of
+   * <code>null</code> means that the loop could not be recorded.
+   */
+  Machine.Trace compileTrace(int header, int[] path) {
+    CodeAnalysis.Method m = analysis.methodContaining(header);
+    if (path == null || m == null || !m.isValid()) {
+      untraceable[header] = true;
+      return null;
+    }
+    String name = PACKAGE + "T" + header;
+    ClassFile cf = BytecodeTranslator.newClass(name);
+    cf.addInterface(Machine.Trace.class.getName());
+    try {
+      translator.translateTrace(m, path, cf, callee ->
+              compiled[callee.adr] != null ? (PACKAGE + "M" + callee.adr).replace('.', '/') : null);
+    } catch (BytecodeTranslator.UnsupportedCodeException e) {
+      untraceable[header] = true;
+      return null;
+    }
+    BytecodeTranslator.addConstructor(cf);
+    try {
+      Class<?> clazz = loader.define(name, toBytes(cf));
+      traces[header] = (Machine.Trace) clazz.getConstructor().newInstance();
+      nTraces++;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      untraceable[header] = true;
+    }
+    return traces[header];
+  }
+
+  /**
+   * Number of loop traces compiled so far.
+   */
+  int compiledTraces() {
+    return nTraces;
+  }
+
+  /**
+   * Number of methods compiled so far.
+   */
+  int compiledMethods() {
+    return nCompiled;
+  }
+
+  private Machine.Compiled compile(int adr) {
+    CodeAnalysis.Method m = analysis.methodAt(adr);
+    if (m == null || !m.isValid()) {
+      failed[adr] = true;
+      return null;
+    }
+    String name = PACKAGE + "M" + adr;
+    ClassFile cf = BytecodeTranslator.newClass(name);
+    cf.addInterface(Machine.Compiled.class.getName());
+    try {
+      translator.translate(m, cf, callee -> {
+        if (callee == m || compiled[callee.adr] != null) {
+          return (PACKAGE + "M" + callee.adr).replace('.', '/');
+        }
+        return null;
+      });
+    } catch (BytecodeTranslator.UnsupportedCodeException e) {
+      failed[adr] = true;
+      return null;
+    }
+    BytecodeTranslator.addConstructor(cf);
+    BytecodeTranslator.addBridge(m, cf);
+    try {
+      Class<?> clazz = loader.define(name, toBytes(cf));
+      compiled[adr] = (Machine.Compiled) clazz.getConstructor().newInstance();
+      nCompiled++;
+    } catch (ReflectiveOperationException | LinkageError e) {
+      failed[adr] = true;
+    }
+    return compiled[adr];
+  }
+
+  static byte[] toBytes(ClassFile cf) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DataOutputStream dout = new DataOutputStream(out)) {
+      cf.write(dout);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private static final class Loader extends ClassLoader {
+    Loader(ClassLoader parent) {
+      super(parent);
+    }
+
+    Class<?> define(String name, byte[] b) {
+      return defineClass(name, b, 0, b.length);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package ssw.mj;
+
+/**
+ * Runtime interface of MicroJava methods that were translated to JVM byte
+ * code (see {@link BytecodeTranslator}).
+ * <p>
+ * A translated method is a static method <code>int m(int p0, ..., int pn,
+ * Machine m)</code> that keeps its locals and expression stack in JVM locals
+ * and on the JVM operand stack. Everything else (globals, heap, I/O, calls of
+ * methods that have not been translated) goes through this class. The
+ * helpers take the machine as their last argument so that the generated code
+ * can simply push it on top of the operands.
+ * <p>
+ * This class must only depend on <code>java.*</code>, since it is copied into
+ * the standalone programs generated by {@link AotCompiler}.
+ */
+public abstract class Machine {
+
+  /**
+   * Global data.
+   */
+  public int[] data;
+
+  /**
+   * Dynamic heap.
+   */
+  public int[] heap;
+
+  /**
+   * Size of the expression stack in words, which holds the operands of all
+   * active methods.
+   */
+  public static final int EXPRESSION_STACK_SIZE = 30;
+
+  /**
+   * Words of the method stack that the frames of translated methods occupy,
+   * and its size.
+   */
+  public int stackUsed, stackLimit = Integer.MAX_VALUE;
+
+  /**
+   * Operands that the active methods keep on the expression stack below
+   * the arguments of the method that is called next.
+   */
+  public int operands;
+
+  /**
+   * Interface implemented by the class generated for every JIT-compiled
+   * method. <code>call</code> pops the arguments from the expression stack,
+   * pushes the result (if any) and returns the new stack pointer.
+   */
+  public interface Compiled {
+    int call(int[] stack, int esp, Machine m);
+  }
+
+  /**
+   * Interface implemented by the class generated for every loop trace of
+   * the JIT. <code>run</code> gets the locals of the frame in
+   * <code>regs</code>, repeats the loop while it takes the recorded path,
+   * writes changed locals back to <code>regs</code> and returns the address
+   * at which the interpreter continues.
+   */
+  public interface Trace {
+    int run(int[] regs, Machine m);
+  }
+
+  // ----- operations provided by the concrete machine
+
+  /**
+   * Allocates a heap block of <code>size</code> bytes.
+   */
+  public abstract int alloc(int size);
+
+  public abstract int readInt();
+
+  public abstract int readChar();
+
+  /**
+   * Writes <code>pad</code> blanks followed by <code>s</code>.
+   */
+  public abstract void write(String s, int pad);
+
+  /**
+   * Writes <code>val</code> right-aligned in a field of <code>width</code>
+   * chars.
+   */
+  public void print(int val, int width) {
+    String s = String.valueOf(val);
+    write(s, width - s.length());
+  }
+
+  /**
+   * Pushes an argument for a subsequent {@link #invoke(int)}.
+   */
+  public abstract void push(int val);
+
+  /**
+   * Calls the method at address <code>adr</code> with the arguments pushed
+   * before and returns its result (0 for void methods).
+   */
+  public abstract int invoke(int adr);
+
+  // ----- helpers called by the generated code
+
+  public static int getstatic(int adr, Machine m) {
+    return m.data[adr];
+  }
+
+  public static void putstatic(int val, int adr, Machine m) {
+    m.data[adr] = val;
+  }
+
+  public static int getfield(int adr, int off, Machine m) {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
+    }
+    return m.heap[adr + off];
+  }
+
+  public static void putfield(int adr, int val, int off, Machine m) {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
+    }
+    m.heap[adr + off] = val;
+  }
+
+  public static int div(int x, int y) {
+    if (y == 0) {
+      throw new IllegalStateException("division by zero");
+    }
+    return x / y;
+  }
+
+  public static int rem(int x, int y) {
+    if (y == 0) {
+      throw new IllegalStateException("division by zero");
+    }
+    return x % y;
+  }
+
+  public static int newObject(int size, Machine m) {
+    return m.alloc(size);
+  }
+
+  public static int newArray(int len, int kind, Machine m) {
+    int adr = kind == 0 ? m.alloc(len + 4) : m.alloc(len * 4 + 4);
+    m.heap[adr] = len;
+    return adr + 1; // skip length field of array
+  }
+
+  public static int aload(int adr, int idx, Machine m) {
+    return m.heap[checkIndex(adr, idx, m)];
+  }
+
+  public static void astore(int adr, int idx, int val, Machine m) {
+    m.heap[checkIndex(adr, idx, m)] = val;
+  }
+
+  public static int baload(int adr, int idx, Machine m) {
+    checkIndex(adr, idx, m);
+    return (byte) (m.heap[adr + idx / 4] << (8 * (idx % 4)) >>> 24);
+  }
+
+  public static void bastore(int adr, int idx, int val, Machine m) {
+    checkIndex(adr, idx, m);
+    int delta = (3 - idx % 4) * 8;
+    int mask = ~(255 << delta);
+    m.heap[adr + idx / 4] = (m.heap[adr + idx / 4] & mask) ^ ((val & 255) << delta);
+  }
+
+  public static int arraylength(int adr, Machine m) {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
+    }
+    return m.heap[adr - 1];
+  }
+
+  private static int checkIndex(int adr, int idx, Machine m) {
+    if (adr == 0) {
+      throw new IllegalStateException("null reference used");
+    }
+    if (idx < 0 || idx >= m.heap[adr - 1]) {
+      throw new IllegalStateException("index out of bounds");
+    }
+    return adr + idx;
+  }
+
+  public static int read(Machine m) {
+    return m.readInt();
+  }
+
+  public static int bread(Machine m) {
+    return m.readChar();
+  }
+
+  public static void print(int val, int width, Machine m) {
+    m.print(val, width);
+  }
+
+  public static void bprint(int val, int width, Machine m) {
+    m.write(Character.toString((char) val), width - 1);
+  }
+
+  public static void push(int val, Machine m) {
+    m.push(val);
+  }
+
+  public static int invoke(int adr, Machine m) {
+    return m.invoke(adr);
+  }
+
+  /**
+   * Charges a frame of <code>words</code> words against the method stack,
+   * and the <code>maxStack</code> operands that its method may need against
+   * the expression stack, like a call in the {@link Interpreter}.
+   */
+  public static void enter(int words, int maxStack, Machine m) {
+    if ((m.stackUsed += words) > m.stackLimit) {
+      throw new IllegalStateException("method stack overflow");
+    }
+    if (m.operands + maxStack > EXPRESSION_STACK_SIZE) {
+      throw new IllegalStateException("expression stack overflow");
+    }
+  }
+
+  /**
+   * Adds <code>n</code> operands that the caller keeps below the arguments
+   * of a call to {@link #operands}.
+   */
+  public static void pending(int n, Machine m) {
+    m.operands += n;
+  }
+
+  public static void leave(int words, Machine m) {
+    m.stackUsed -= words;
+  }
+
+  public static IllegalStateException trap(int n) {
+    return new IllegalStateException("trap(" + n + ")");
+  }
+}
@@ -0,0 +1,133 @@
+package ssw.mj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * I/O for the {@link Interpreter} that reads its input from a memory-mapped
+ * file (or any byte buffer) and passes output on to another {@link
+ * Interpreter.IO}.
+ * <p>
+ * <code>read</code> parses numbers directly from the buffer, and
+ * <code>bread</code> returns its bytes. The results are the same as when
+ * the file is piped to {@link Interpreter#ConsoleIO}. Files larger than
+ * 2 GB are mapped one window at a time.
+ */
+public final class MappedIO implements Interpreter.IO, Closeable {
+
+  private static final long WINDOW = 1 << 30; // bytes mapped at once
+
+  private final Interpreter.IO output;
+  private FileChannel channel; // null if there is nothing left to map
+  private long mapped; // file position of the end of buf
+  private ByteBuffer buf;
+  private int pos, end; // next byte and limit of buf
+
+  /**
+   * Reads <code>input</code> and writes to <code>output</code>.
+   */
+  public MappedIO(Path input, Interpreter.IO output) throws IOException {
+    this.output = output;
+    channel = FileChannel.open(input, StandardOpenOption.READ);
+    map();
+  }
+
+  /**
+   * Reads the remaining bytes of <code>input</code> and writes to
+   * <code>output</code>.
+   */
+  public MappedIO(ByteBuffer input, Interpreter.IO output) {
+    this.output = output;
+    buf = input;
+    pos = input.position();
+    end = input.limit();
+  }
+
+  /**
+   * Maps the next window of the file. Returns false at the end of the file.
+   */
+  private boolean map() {
+    if (channel == null) {
+      return false;
+    }
+    try {
+      long size = Math.min(WINDOW, channel.size() - mapped);
+      if (size <= 0) {
+        close();
+        return false;
+      }
+      MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, mapped, size);
+      mapped += size;
+      buf = b;
+      pos = 0;
+      end = (int) size;
+      return true;
+    } catch (IOException e) {
+      close();
+      return false;
+    }
+  }
+
+  private int next() {
+    if (pos == end && !map()) {
+      return 0;
+    }
+    return buf.get(pos++) & 0xff;
+  }
+
+  @Override
+  public char read() {
+    return (char) next();
+  }
+
+  @Override
+  public int readInt() {
+    int val = 0;
+    int prev = ' ';
+    int b = next();
+    while (b < '0' || b > '9') {
+      prev = b;
+      b = next();
+    }
+    while (b >= '0' && b <= '9') {
+      val = 10 * val + b - '0';
+      b = next();
+    }
+    return prev == '-' ? -val : val;
+  }
+
+  @Override
+  public void write(char c) {
+    output.write(c);
+  }
+
+  @Override
+  public void write(char[] buf, int off, int len) {
+    output.write(buf, off, len);
+  }
+
+  @Override
+  public void flush() {
+    output.flush();
+  }
+
+  /**
+   * Releases the file. The mapped window stays readable.
+   */
+  @Override
+  public void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing left to read anyway
+      }
+      channel = null;
+    }
+  }
+}
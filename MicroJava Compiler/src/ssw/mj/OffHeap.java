@@ -0,0 +1,155 @@
+package ssw.mj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+/**
+ * Heap of the {@link Interpreter} in native memory, for programs whose data
+ * should neither live on the Java heap nor be limited by the size of a Java
+ * array.
+ * <p>
+ * The heap consists of direct buffers of 2^20 words (4 MB) that are
+ * allocated when the program first needs them. Heap addresses are word
+ * addresses as in the <code>int[]</code> heap, but they are treated as
+ * unsigned, so a heap can hold up to 2^32 words (16 GB). The allocation
+ * pointer and the limit are 64-bit. Native memory is bounded by the JVM
+ * option <code>-XX:MaxDirectMemorySize</code>.
+ * <p>
+ * Blocks have no headers, so this heap is not garbage collected.
+ * <p>
+ * A heap can be {@link #share shared} with copies for {@link Snapshot}s.
+ * The buffers are then read-only for all of them, and the first write to a
+ * buffer copies it (copy-on-write).
+ */
+public final class OffHeap {
+
+  /**
+   * Largest possible heap in words.
+   */
+  public static final long MAX_SIZE = 1L << 32;
+
+  private static final int CHUNK_BITS = 20; // words per buffer = 2^CHUNK_BITS
+  private static final int MASK = (1 << CHUNK_BITS) - 1;
+  private static final int[] ZEROS = new int[1 << 12];
+
+  private final long limit; // in words
+  private IntBuffer[] chunks = new IntBuffer[16];
+  private int nChunks;
+  private long free = 1; // no block should start at address 0
+
+  /**
+   * Creates an empty heap of at most <code>limit</code> words.
+   */
+  public OffHeap(long limit) {
+    if (limit < 2 || limit > MAX_SIZE) {
+      throw new IllegalArgumentException("invalid heap size " + limit);
+    }
+    this.limit = limit;
+  }
+
+  int get(int adr) {
+    return chunks[adr >>> CHUNK_BITS].get(adr & MASK);
+  }
+
+  void put(int adr, int val) {
+    try {
+      chunks[adr >>> CHUNK_BITS].put(adr & MASK, val);
+    } catch (ReadOnlyBufferException e) { // shared
+      unshare(adr >>> CHUNK_BITS).put(adr & MASK, val);
+    }
+  }
+
+  /**
+   * Replaces the shared buffer <code>c</code> by a private copy.
+   */
+  private IntBuffer unshare(int c) {
+    IntBuffer copy = newChunk();
+    copy.put(0, chunks[c], 0, 1 << CHUNK_BITS);
+    chunks[c] = copy;
+    return copy;
+  }
+
+  private static IntBuffer newChunk() {
+    try {
+      return ByteBuffer.allocateDirect(4 << CHUNK_BITS).order(ByteOrder.nativeOrder()).asIntBuffer(); // zeroed
+    } catch (OutOfMemoryError e) {
+      throw new IllegalStateException("heap overflow (native memory exhausted)");
+    }
+  }
+
+  /**
+   * Returns a heap with the same contents. Both heaps copy a buffer when
+   * they first write to it.
+   */
+  OffHeap share() {
+    OffHeap h = new OffHeap(limit);
+    for (int c = 0; c < nChunks; c++) {
+      if (!chunks[c].isReadOnly()) {
+        chunks[c] = chunks[c].asReadOnlyBuffer();
+      }
+    }
+    h.chunks = chunks.clone();
+    h.nChunks = nChunks;
+    h.free = free;
+    return h;
+  }
+
+  /**
+   * Allocates a block of <code>size</code> bytes and returns its address.
+   */
+  int alloc(long size) throws IllegalStateException {
+    if (size < 0) {
+      throw new IllegalStateException("negative array size");
+    }
+    long adr = free;
+    free += (size + 3) >> 2;
+    if (free > limit) {
+      throw new IllegalStateException("heap overflow");
+    }
+    while ((long) nChunks << CHUNK_BITS < free) {
+      if (nChunks == chunks.length) {
+        chunks = Arrays.copyOf(chunks, 2 * nChunks);
+      }
+      chunks[nChunks++] = newChunk();
+    }
+    return (int) adr;
+  }
+
+  /**
+   * Frees all blocks. Only the words that were in use are cleared, the
+   * buffers are kept for the next program.
+   */
+  void clear() {
+    long end = Math.min(free, (long) nChunks << CHUNK_BITS);
+    for (long a = 0; a < end; a += ZEROS.length) { // never crosses a chunk
+      int c = (int) (a >>> CHUNK_BITS);
+      if (chunks[c].isReadOnly()) {
+        chunks[c] = newChunk();
+      }
+      int n = (int) Math.min(ZEROS.length, end - a);
+      chunks[c].put((int) (a & MASK), ZEROS, 0, n);
+    }
+    free = 1;
+  }
+
+  /**
+   * Next free address.
+   */
+  long free() {
+    return free;
+  }
+
+  long limit() {
+    return limit;
+  }
+
+  /**
+   * Number of words in use.
+   */
+  public long used() {
+    return free - 1;
+  }
+}
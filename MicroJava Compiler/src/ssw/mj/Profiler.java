@@ -0,0 +1,292 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instruction-counting profiler (<code>-profile</code>).
+ * <p>
+ * Counts executed instructions per address, taken conditional jumps per
+ * address and calls per method. Everything else is derived from these
+ * counters when the report is written: counts per opcode, exclusive counts
+ * per method (the instructions in its code) and the flame graph of the
+ * calling contexts. Inclusive counts are measured between
+ * <code>call</code> and the matching <code>return</code>; recursive calls
+ * are only counted once. For the same reason a recursive call continues the
+ * calling context of the outer activation, which keeps the collapsed stacks
+ * short for deep recursion.
+ * <p>
+ * Methods are named by the address of their <code>enter</code> instruction,
+ * since the object file contains no names.
+ */
+public final class Profiler implements ExecutionListener {
+
+  private final byte[] code;
+  private final CodeAnalysis analysis;
+  private final int[] methodOf; // index of the method containing each pc, -1 if none
+  private int main = -1; // method of the first executed instruction
+
+  // ----- counters
+  private final long[] counts; // executed instructions per pc
+  private final long[] taken; // taken conditional jumps per pc
+  private final long[] calls; // per method
+  private final long[] inclusive; // per method
+  private long total;
+
+  // ----- shadow call stack
+  private final int[] active; // number of activations per method
+  private int[] frameMethod = new int[64];
+  private long[] frameStart = new long[64]; // total when the method was entered
+  private int[] frameNode = new int[64]; // context of the caller
+  private int depth;
+
+  // ----- calling context tree for the collapsed stacks
+  private int[] parent = new int[64], nodeMethod = new int[64];
+  private long[] nodeCount = new long[64]; // exclusive instructions per context
+  private int nNodes = 1; // node 0 is the root
+  private final Map<Long, Integer> children = new HashMap<>();
+  private int node; // current context
+
+  public Profiler(byte[] code) {
+    this.code = code;
+    analysis = new CodeAnalysis(code, code.length);
+    int n = analysis.methods.size();
+    methodOf = new int[code.length];
+    Arrays.fill(methodOf, -1);
+    for (int i = 0; i < n; i++) {
+      CodeAnalysis.Method m = analysis.methods.get(i);
+      Arrays.fill(methodOf, m.adr, m.end, i);
+    }
+    counts = new long[code.length];
+    taken = new long[code.length];
+    calls = new long[n];
+    inclusive = new long[n];
+    active = new int[n];
+    parent[0] = -1;
+    nodeMethod[0] = -1;
+  }
+
+  // ----- listener
+
+  @Override
+  public void instruction(Interpreter vm, int pc, OpCode op) {
+    if (total == 0) { // first instruction: main is entered
+      main = methodOf[pc];
+      enter(main);
+    }
+    counts[pc]++;
+    total++;
+    nodeCount[node]++;
+    if (op == null) {
+      return;
+    }
+    switch (op) {
+      case jeq, jne, jlt, jle, jgt, jge -> {
+        int esp = vm.esp();
+        if (esp >= 2 && isTaken(op, vm.stackAt(esp - 2), vm.stackAt(esp - 1))) {
+          taken[pc]++;
+        }
+      }
+      default -> {
+      }
+    }
+  }
+
+  private static boolean isTaken(OpCode op, int val, int val2) {
+    return switch (op) {
+      case jeq -> val == val2;
+      case jne -> val != val2;
+      case jlt -> val < val2;
+      case jle -> val <= val2;
+      case jgt -> val > val2;
+      default -> val >= val2;
+    };
+  }
+
+  @Override
+  public void call(Interpreter vm, int pc, int adr) {
+    enter(adr >= 0 && adr < methodOf.length ? methodOf[adr] : -1);
+  }
+
+  @Override
+  public void returned(Interpreter vm, int pc, int adr) {
+    if (adr < 0) {
+      finish();
+    } else {
+      leave();
+    }
+  }
+
+  @Override
+  public void trap(Interpreter vm, int pc, RuntimeException e) {
+    finish();
+  }
+
+  private void enter(int m) {
+    if (m >= 0) {
+      calls[m]++;
+      active[m]++;
+    }
+    if (depth == frameMethod.length) {
+      frameMethod = Arrays.copyOf(frameMethod, 2 * depth);
+      frameStart = Arrays.copyOf(frameStart, 2 * depth);
+      frameNode = Arrays.copyOf(frameNode, 2 * depth);
+    }
+    frameMethod[depth] = m;
+    frameStart[depth] = total;
+    frameNode[depth] = node;
+    depth++;
+    node = child(node, m);
+  }
+
+  private void leave() {
+    if (depth == 0) {
+      return;
+    }
+    depth--;
+    int m = frameMethod[depth];
+    if (m >= 0 && --active[m] == 0) { // outermost activation
+      inclusive[m] += total - frameStart[depth];
+    }
+    node = frameNode[depth];
+  }
+
+  /**
+   * Closes all open activations when the program ends.
+   */
+  private void finish() {
+    while (depth > 0) {
+      leave();
+    }
+  }
+
+  private int child(int p, int m) {
+    for (int a = p; a > 0; a = parent[a]) {
+      if (nodeMethod[a] == m) { // recursion
+        return a;
+      }
+    }
+    Long key = (long) p << 32 | (m & 0xffffffffL);
+    Integer c = children.get(key);
+    if (c != null) {
+      return c;
+    }
+    if (nNodes == parent.length) {
+      parent = Arrays.copyOf(parent, 2 * nNodes);
+      nodeMethod = Arrays.copyOf(nodeMethod, 2 * nNodes);
+      nodeCount = Arrays.copyOf(nodeCount, 2 * nNodes);
+    }
+    parent[nNodes] = p;
+    nodeMethod[nNodes] = m;
+    children.put(key, nNodes);
+    return nNodes++;
+  }
+
+  // ----- output
+
+  private String name(int m) {
+    if (m < 0) {
+      return "?";
+    }
+    return m == main ? "main" : "method@" + analysis.methods.get(m).adr;
+  }
+
+  private static String percent(long n, long of) {
+    return of == 0 ? "  0.0%" : String.format("%5.1f%%", 100.0 * n / of);
+  }
+
+  /**
+   * Writes the report: counts per opcode, per method, per branch and the
+   * hottest instructions.
+   */
+  public void writeReport(PrintWriter out) {
+    out.printf("Executed instructions: %d%n", total);
+
+    long[] perOp = new long[OpCode.values().length + 1];
+    for (int pc = 0; pc < counts.length; pc++) {
+      if (counts[pc] > 0) {
+        OpCode op = OpCode.get(code[pc]);
+        perOp[op == null ? 0 : op.code()] += counts[pc];
+      }
+    }
+    out.printf("%nInstructions per opcode%n%14s %6s  %s%n", "count", "", "opcode");
+    Integer[] ops = new Integer[perOp.length];
+    for (int i = 0; i < ops.length; i++) {
+      ops[i] = i;
+    }
+    Arrays.sort(ops, (a, b) -> Long.compare(perOp[b], perOp[a]));
+    for (int op : ops) {
+      if (perOp[op] > 0) {
+        out.printf("%14d %s  %s%n", perOp[op], percent(perOp[op], total),
+                op == 0 ? "???" : OpCode.get(op).cleanName());
+      }
+    }
+
+    int n = analysis.methods.size();
+    long[] exclusive = new long[n];
+    for (int pc = 0; pc < counts.length; pc++) {
+      if (methodOf[pc] >= 0) {
+        exclusive[methodOf[pc]] += counts[pc];
+      }
+    }
+    out.printf("%nInstructions per method%n%14s %6s %14s %6s %12s  %s%n",
+            "inclusive", "", "exclusive", "", "calls", "method");
+    Integer[] ms = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      ms[i] = i;
+    }
+    Arrays.sort(ms, (a, b) -> Long.compare(exclusive[b], exclusive[a]));
+    for (int m : ms) {
+      if (calls[m] > 0) {
+        out.printf("%14d %s %14d %s %12d  %s%n", inclusive[m], percent(inclusive[m], total),
+                exclusive[m], percent(exclusive[m], total), calls[m], name(m));
+      }
+    }
+
+    out.printf("%nConditional jumps%n%6s %-4s %14s %14s  %s%n", "pc", "", "taken", "not taken", "method");
+    for (int pc = 0; pc < counts.length; pc++) {
+      OpCode op = counts[pc] > 0 ? OpCode.get(code[pc]) : null;
+      if (op != null && op.code() >= OpCode.jeq.code() && op.code() <= OpCode.jge.code()) {
+        out.printf("%6d %-4s %14d %14d  %s%n", pc, op.cleanName(), taken[pc], counts[pc] - taken[pc],
+                name(methodOf[pc]));
+      }
+    }
+
+    out.printf("%nHottest instructions%n%6s %14s %6s  %s%n", "pc", "count", "", "instruction");
+    List<Integer> pcs = new ArrayList<>();
+    for (int pc = 0; pc < counts.length; pc++) {
+      if (counts[pc] > 0) {
+        pcs.add(pc);
+      }
+    }
+    pcs.sort((a, b) -> Long.compare(counts[b], counts[a]));
+    for (int pc : pcs.subList(0, Math.min(20, pcs.size()))) {
+      OpCode op = OpCode.get(code[pc]);
+      out.printf("%6d %14d %s  %s in %s%n", pc, counts[pc], percent(counts[pc], total),
+              op == null ? "???" : op.cleanName(), name(methodOf[pc]));
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes one line <code>main;method@12;method@40 count</code> per calling
+   * context, the input format of flame graph tools.
+   */
+  public void writeCollapsed(PrintWriter out) {
+    String[] paths = new String[nNodes];
+    for (int i = 1; i < nNodes; i++) { // parents are created before their children
+      String name = name(nodeMethod[i]);
+      paths[i] = parent[i] == 0 ? name : paths[parent[i]] + ";" + name;
+      if (nodeCount[i] > 0) {
+        out.println(paths[i] + " " + nodeCount[i]);
+      }
+    }
+    out.flush();
+  }
+}
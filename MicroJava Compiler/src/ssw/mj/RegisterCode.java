@@ -0,0 +1,603 @@
+package ssw.mj;
+
+import ssw.mj.codegen.TypeDescriptors;
+import ssw.mj.impl.Code.OpCode;
+
+import java.util.Arrays;
+
+/**
+ * Register form of a MicroJava code array for the register engine of the
+ * {@link Interpreter}.
+ * <p>
+ * The verifier knows the depth of the expression stack before every
+ * instruction, so every stack slot of a method is a fixed word of its
+ * frame. The frames are those of the threaded engines (see
+ * <code>Interpreter.execute</code>):
+ * <pre>
+ *   fp: parameters and locals | return address, caller's fp | operands
+ * </pre>
+ * A register is the offset of such a word from fp: local <code>i</code> is
+ * register <code>i</code>, and the operand at depth <code>d</code> is
+ * register <code>nLocals + 2 + d</code>. Instructions take their operands
+ * from registers and write their result to one, for example
+ * <pre>
+ *   load 1, load 2, load 3, mul, add, store 0   =>   mul 8 2 3, add 0 1 8
+ * </pre>
+ * <p>
+ * The translation keeps the expression stack of every basic block as a list
+ * of where its values are: in their own operand register, in another
+ * register (loads and <code>dup</code> emit nothing), or as a constant.
+ * An instruction uses these places directly, constants become immediate
+ * operands, and a result that is stored right away is written to the
+ * local instead of the operand register. Before a jump, a call, a jump
+ * target, or a store into a local that is still on the list, the values
+ * are moved to their own registers, so that every frame looks as in the
+ * threaded engines wherever execution can leave or enter the code.
+ * <p>
+ * A byte address has a stream index if the expression stack has been
+ * moved to its registers before it. These are the places where the program
+ * can be suspended and continued, and return addresses.
+ */
+final class RegisterCode {
+
+  // ----- internal instruction set (operands in brackets, r = register)
+  static final int MOV = 1; // [r dst, r src]
+  static final int MOVI = 2; // [r dst, val]
+  static final int GETSTATIC = 3; // [r dst, adr]
+  static final int PUTSTATIC = 4; // [adr, r src]
+  static final int GETFIELD = 5; // [r dst, r obj, off]
+  static final int PUTFIELD = 6; // [r obj, off, r src]
+  static final int ADD = 7; // [r dst, r a, r b]
+  static final int SUB = 8; // [r dst, r a, r b]
+  static final int MUL = 9; // [r dst, r a, r b]
+  static final int DIV = 10; // [r dst, r a, r b]
+  static final int REM = 11; // [r dst, r a, r b]
+  static final int SHL = 12; // [r dst, r a, r b]
+  static final int SHR = 13; // [r dst, r a, r b]
+  static final int ADDI = 14; // [r dst, r a, val], also sub
+  static final int MULI = 15; // [r dst, r a, val]
+  static final int DIVI = 16; // [r dst, r a, val != 0]
+  static final int REMI = 17; // [r dst, r a, val != 0]
+  static final int SHLI = 18; // [r dst, r a, val]
+  static final int SHRI = 19; // [r dst, r a, val]
+  static final int NEG = 20; // [r dst, r src]
+  static final int INC = 21; // [r, delta]
+  static final int NEW = 22; // [r dst, size in bytes, type]
+  static final int NEWARRAY = 23; // [r dst, r len, elem kind, type]
+  static final int ALOAD = 24; // [r dst, r arr, r idx]
+  static final int BALOAD = 25; // [r dst, r arr, r idx]
+  static final int ASTORE = 26; // [r arr, r idx, r src]
+  static final int BASTORE = 27; // [r arr, r idx, r src]
+  static final int ARRAYLENGTH = 28; // [r dst, r arr]
+  static final int JMP = 29; // [target]
+  static final int JCC = 30; // [ThreadedCode.JEQ..JGE, r a, r b, target]
+  static final int JCCI = 31; // [ThreadedCode.JEQ..JGE, r a, val, target]
+  static final int CALL = 32; // [target, r first argument]
+  static final int RETURN = 33;
+  static final int ENTER = 34; // [psize, lsize, frame size including operands]
+  static final int EXIT = 35; // [lsize, r result or -1]
+  static final int READ = 36; // [r dst]
+  static final int PRINT = 37; // [r val, r width]
+  static final int BREAD = 38; // [r dst]
+  static final int BPRINT = 39; // [r val, r width]
+  static final int TRAP = 40; // [n]
+  static final int ILLEGAL = 41; // [byte pc, raw opcode]
+
+  private static final String[] NAMES = {null,
+          "mov", "movi", "getstatic", "putstatic", "getfield", "putfield", "add", "sub", "mul", "div",
+          "rem", "shl", "shr", "addi", "muli", "divi", "remi", "shli", "shri", "neg",
+          "inc", "new", "newarray", "aload", "baload", "astore", "bastore", "arraylength", "jmp", "jcc",
+          "jcci", "call", "return", "enter", "exit", "read", "print", "bread", "bprint", "trap",
+          "illegal"};
+
+  /**
+   * Number of words of each instruction, including the opcode.
+   */
+  private static final int[] LENGTH = {1,
+          3, 3, 3, 3, 4, 4, 4, 4, 4, 4,
+          4, 4, 4, 4, 4, 4, 4, 4, 4, 3,
+          3, 4, 5, 4, 4, 4, 4, 3, 2, 5,
+          5, 3, 1, 4, 3, 2, 3, 2, 3, 2,
+          3};
+
+  // where a value of the expression stack is during translation
+  private static final int SLOT = 0; // in its own operand register
+  private static final int REG = 1; // in register where[d]
+  private static final int CONST = 2; // constant where[d]
+
+  /**
+   * Translated instruction stream.
+   */
+  final int[] code;
+
+  /**
+   * Stream index of the enter instruction of main().
+   */
+  final int start;
+
+  /**
+   * Maps stream indices back to the byte address of their instruction (-1
+   * for operand words).
+   */
+  private final int[] bytePc;
+
+  /**
+   * Maps byte addresses to stream indices (-1 if execution cannot continue
+   * there, see above).
+   */
+  private final int[] streamPc;
+
+  private final CodeAnalysis analysis;
+  private int[] buf, back;
+  private int len; // next free index in buf
+
+  // expression stack of the current basic block
+  private int[] kind, where;
+  private int n; // depth
+  private int base; // register of the operand at depth 0
+  private int dst = -1; // index of the result register of the last instruction, -1 if it cannot be redirected
+  private int resultPc; // byte address of the instruction with the result register dst
+
+  /**
+   * Translates <code>bytes</code>, which have been verified, with the
+   * methods and stack depths of <code>analysis</code>. The type operand of
+   * allocations is taken from <code>types</code> (-1 if <code>types</code>
+   * is <code>null</code>).
+   */
+  RegisterCode(byte[] bytes, int startPC, TypeDescriptors types, CodeAnalysis analysis) {
+    this.analysis = analysis;
+    streamPc = new int[bytes.length + 1];
+    Arrays.fill(streamPc, -1);
+    buf = new int[bytes.length * 3 + 8];
+    back = new int[buf.length];
+    Arrays.fill(back, -1);
+    int[] jumpAt = new int[bytes.length]; // stream indices of unresolved targets
+    int nJumps = 0;
+    boolean[] leader = leaders();
+
+    for (CodeAnalysis.Method m : analysis.methods) {
+      base = m.nLocals + 2;
+      kind = new int[Math.max(m.maxStack, 1)];
+      where = new int[kind.length];
+      boolean valid = false; // whether the previous instruction falls through
+      for (int pc = m.adr; pc < m.end; pc += analysis.sizeAt(pc)) {
+        int d = analysis.depth[pc];
+        if (d < 0) { // unreachable
+          valid = false;
+          continue;
+        }
+        if (leader[pc] || !valid) {
+          if (valid) {
+            flush(pc);
+          }
+          n = d;
+          Arrays.fill(kind, 0, n, SLOT);
+          dst = -1;
+        }
+        valid = true;
+        if (isClean()) {
+          streamPc[pc] = len;
+          if (back[len] < 0) {
+            back[len] = pc;
+          }
+        }
+        OpCode op = analysis.opAt(pc);
+        switch (op) {
+          case load -> push(REG, analysis.get1(pc + 1));
+          case load_0, load_1, load_2, load_3 -> push(REG, op.code() - OpCode.load_0.code());
+          case store -> store(pc, analysis.get1(pc + 1));
+          case store_0, store_1, store_2, store_3 -> store(pc, op.code() - OpCode.store_0.code());
+          case getstatic -> result(pc, GETSTATIC, analysis.get2(pc + 1));
+          case putstatic -> {
+            int src = reg(pc, n - 1);
+            n--;
+            emit(pc, PUTSTATIC, analysis.get2(pc + 1), src);
+          }
+          case getfield -> {
+            int obj = reg(pc, --n);
+            result(pc, GETFIELD, obj, analysis.get2(pc + 1));
+          }
+          case putfield -> {
+            int obj = reg(pc, n - 2), src = reg(pc, n - 1);
+            n -= 2;
+            emit(pc, PUTFIELD, obj, analysis.get2(pc + 1), src);
+          }
+          case const_0, const_1, const_2, const_3, const_4, const_5 ->
+                  push(CONST, op.code() - OpCode.const_0.code());
+          case const_m1 -> push(CONST, -1);
+          case const_ -> push(CONST, analysis.get4(pc + 1));
+          case add, sub, mul, div, rem, shl, shr -> arithmetic(pc, op);
+          case neg -> {
+            if (kind[n - 1] == CONST) {
+              where[n - 1] = -where[n - 1];
+            } else {
+              int src = reg(pc, --n);
+              result(pc, NEG, src);
+            }
+          }
+          case inc -> {
+            int r = analysis.get1(pc + 1);
+            keep(pc, r);
+            emit(pc, INC, r, analysis.get1(pc + 2));
+          }
+          case new_ -> { // not redirected, the collector scans the operands up to its register
+            result(pc, NEW, analysis.get2(pc + 1) * 4, types == null ? -1 : types.typeAt(pc));
+            dst = -1;
+          }
+          case newarray -> {
+            int length = reg(pc, --n);
+            result(pc, NEWARRAY, length, analysis.get1(pc + 1), types == null ? -1 : types.typeAt(pc));
+            dst = -1;
+          }
+          case aload, baload -> {
+            int arr = reg(pc, n - 2), idx = reg(pc, n - 1);
+            n -= 2;
+            result(pc, op == OpCode.aload ? ALOAD : BALOAD, arr, idx);
+          }
+          case astore, bastore -> {
+            int arr = reg(pc, n - 3), idx = reg(pc, n - 2), src = reg(pc, n - 1);
+            n -= 3;
+            emit(pc, op == OpCode.astore ? ASTORE : BASTORE, arr, idx, src);
+          }
+          case arraylength -> {
+            int arr = reg(pc, --n);
+            result(pc, ARRAYLENGTH, arr);
+          }
+          case pop -> n--;
+          case dup -> copy(n - 1);
+          case dup2 -> {
+            copy(n - 2);
+            copy(n - 2);
+          }
+          case jmp -> {
+            flush(pc);
+            emit(pc, JMP, analysis.target(pc));
+            jumpAt[nJumps++] = len - 1;
+            valid = false;
+          }
+          case jeq, jne, jlt, jle, jgt, jge -> {
+            int cond = ThreadedCode.JEQ + op.ordinal() - OpCode.jeq.ordinal();
+            n -= 2;
+            flush(pc);
+            if (kind[n] == CONST && kind[n + 1] != CONST) { // constant to the right
+              cond = switch (cond) {
+                case ThreadedCode.JLT -> ThreadedCode.JGT;
+                case ThreadedCode.JLE -> ThreadedCode.JGE;
+                case ThreadedCode.JGT -> ThreadedCode.JLT;
+                case ThreadedCode.JGE -> ThreadedCode.JLE;
+                default -> cond;
+              };
+              emit(pc, JCCI, cond, reg(pc, n + 1), where[n]);
+            } else if (kind[n + 1] == CONST) {
+              emit(pc, JCCI, cond, reg(pc, n), where[n + 1]);
+            } else {
+              emit(pc, JCC, cond, reg(pc, n), reg(pc, n + 1));
+            }
+            buf[len++] = analysis.target(pc);
+            jumpAt[nJumps++] = len - 1;
+          }
+          case call -> {
+            CodeAnalysis.Method callee = analysis.methodAt(analysis.target(pc));
+            flush(pc);
+            emit(pc, CALL, analysis.target(pc), base + n - callee.nPars);
+            jumpAt[nJumps++] = len - 2;
+            n -= callee.nPars;
+            if (callee.returnsValue) {
+              push(SLOT, 0); // in the register of the first argument
+            }
+          }
+          case return_ -> {
+            emit(pc, RETURN);
+            valid = false;
+          }
+          case enter -> {
+            emit(pc, ENTER, analysis.get1(pc + 1), m.nLocals, base + m.maxStack);
+            valid = false;
+          }
+          case exit -> {
+            int src = n == 1 ? reg(pc, 0) : -1;
+            emit(pc, EXIT, m.nLocals, src);
+            valid = false;
+          }
+          case read, bread -> result(pc, op == OpCode.read ? READ : BREAD);
+          case print, bprint -> {
+            int val = reg(pc, n - 2), width = reg(pc, n - 1);
+            n -= 2;
+            emit(pc, op == OpCode.print ? PRINT : BPRINT, val, width);
+          }
+          case trap -> {
+            emit(pc, TRAP, analysis.get1(pc + 1));
+            valid = false;
+          }
+          case nop -> {
+          }
+        }
+      }
+    }
+    streamPc[bytes.length] = len;
+
+    // guard for running off the end of a method and for broken jump targets
+    int guard = len;
+    emit(bytes.length, ILLEGAL, bytes.length, 0);
+
+    for (int i = 0; i < nJumps; i++) {
+      int target = buf[jumpAt[i]];
+      boolean valid = target >= 0 && target < bytes.length && streamPc[target] >= 0;
+      buf[jumpAt[i]] = valid ? streamPc[target] : guard;
+    }
+
+    code = Arrays.copyOf(buf, len);
+    bytePc = Arrays.copyOf(back, len);
+    start = startPC >= 0 && startPC < bytes.length && streamPc[startPC] >= 0 ? streamPc[startPC] : guard;
+    buf = back = kind = where = null;
+  }
+
+  /**
+   * Byte addresses where a basic block starts: jump targets, the first
+   * instruction of a method body and the instruction after a call.
+   */
+  private boolean[] leaders() {
+    boolean[] leader = new boolean[analysis.codeSize + 1];
+    for (CodeAnalysis.Method m : analysis.methods) {
+      for (int pc = m.adr; pc < m.end; pc += analysis.sizeAt(pc)) {
+        switch (analysis.opAt(pc)) {
+          case jmp, jeq, jne, jlt, jle, jgt, jge -> {
+            int target = analysis.target(pc);
+            if (target >= 0 && target < leader.length) {
+              leader[target] = true;
+            }
+          }
+          case enter, call -> leader[pc + analysis.sizeAt(pc)] = true;
+          default -> {
+          }
+        }
+      }
+    }
+    return leader;
+  }
+
+  // ----- expression stack
+
+  private boolean isClean() {
+    for (int d = 0; d < n; d++) {
+      if (kind[d] != SLOT) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void push(int k, int w) {
+    kind[n] = k;
+    where[n++] = w;
+  }
+
+  /**
+   * Pushes a copy of the value at depth <code>d</code>.
+   */
+  private void copy(int d) {
+    push(kind[d] == SLOT ? REG : kind[d], kind[d] == SLOT ? base + d : where[d]);
+  }
+
+  /**
+   * Register that holds the value at depth <code>d</code>. A constant is
+   * moved to the operand register first.
+   */
+  private int reg(int pc, int d) {
+    return switch (kind[d]) {
+      case REG -> where[d];
+      case CONST -> {
+        move(pc, d);
+        yield base + d;
+      }
+      default -> base + d;
+    };
+  }
+
+  /**
+   * Moves the value at depth <code>d</code> to its own register.
+   */
+  private void move(int pc, int d) {
+    if (kind[d] == CONST) {
+      emit(pc, MOVI, base + d, where[d]);
+    } else if (kind[d] == REG) {
+      emit(pc, MOV, base + d, where[d]);
+    }
+    kind[d] = SLOT;
+  }
+
+  /**
+   * Moves all values of the expression stack to their own registers.
+   */
+  private void flush(int pc) {
+    for (int d = 0; d < n; d++) {
+      move(pc, d);
+    }
+  }
+
+  /**
+   * Moves the values that are still in register <code>r</code> to their own
+   * registers before <code>r</code> is overwritten.
+   */
+  private void keep(int pc, int r) {
+    for (int d = 0; d < n; d++) {
+      if (kind[d] == REG && where[d] == r) {
+        move(pc, d);
+      }
+    }
+  }
+
+  /**
+   * Stores the top of the stack into local <code>r</code>. If it is the
+   * result of the previous instruction, that one writes it to the local
+   * directly.
+   */
+  private void store(int pc, int r) {
+    n--;
+    boolean redirect = kind[n] == SLOT && dst >= 0 && buf[dst] == base + n;
+    for (int d = 0; d < n && redirect; d++) {
+      redirect = !(kind[d] == REG && where[d] == r);
+    }
+    if (redirect) {
+      buf[dst] = r;
+      dst = -1;
+      // the value is no longer stored where execution would continue with it
+      for (int p = resultPc + 1; p <= pc; p++) {
+        if (streamPc[p] == len) {
+          streamPc[p] = -1;
+        }
+      }
+      back[len] = -1;
+      return;
+    }
+    keep(pc, r);
+    if (kind[n] == CONST) {
+      emit(pc, MOVI, r, where[n]);
+    } else {
+      emit(pc, MOV, r, kind[n] == REG ? where[n] : base + n);
+    }
+  }
+
+  /**
+   * Emits <code>op</code> with the operand register at the current depth as
+   * destination, and pushes its result.
+   */
+  private void result(int pc, int op, int... operands) {
+    emit(pc, op);
+    dst = len;
+    resultPc = pc;
+    buf[len++] = base + n;
+    for (int w : operands) {
+      buf[len++] = w;
+    }
+    push(SLOT, 0);
+  }
+
+  private void arithmetic(int pc, OpCode op) {
+    int a = n - 2, b = n - 1;
+    if (kind[a] == CONST && kind[b] == CONST && (op != OpCode.div && op != OpCode.rem || where[b] != 0)) {
+      n--;
+      where[a] = switch (op) { // folded
+        case add -> where[a] + where[b];
+        case sub -> where[a] - where[b];
+        case mul -> where[a] * where[b];
+        case div -> where[a] / where[b];
+        case rem -> where[a] % where[b];
+        case shl -> where[a] << where[b];
+        default -> where[a] >> where[b];
+      };
+      return;
+    }
+    if (kind[a] == CONST && (op == OpCode.add || op == OpCode.mul)) { // commutative, constant to the right
+      int k = kind[a], w = where[a];
+      kind[a] = kind[b];
+      where[a] = kind[b] == SLOT ? base + b : where[b];
+      if (kind[a] == SLOT) {
+        kind[a] = REG;
+      }
+      kind[b] = k;
+      where[b] = w;
+    }
+    if (kind[b] == CONST && (op != OpCode.div && op != OpCode.rem || where[b] != 0)) {
+      int val = op == OpCode.sub ? -where[b] : where[b];
+      int ra = reg(pc, a);
+      n -= 2;
+      result(pc, switch (op) {
+        case add, sub -> ADDI;
+        case mul -> MULI;
+        case div -> DIVI;
+        case rem -> REMI;
+        case shl -> SHLI;
+        default -> SHRI;
+      }, ra, val);
+    } else {
+      int ra = reg(pc, a), rb = reg(pc, b);
+      n -= 2;
+      result(pc, switch (op) {
+        case add -> ADD;
+        case sub -> SUB;
+        case mul -> MUL;
+        case div -> DIV;
+        case rem -> REM;
+        case shl -> SHL;
+        default -> SHR;
+      }, ra, rb);
+    }
+  }
+
+  private void emit(int pc, int op, int... operands) {
+    if (len + 8 > buf.length) { // room for the longest instruction and what result() and jumps add to it
+      int size = buf.length;
+      buf = Arrays.copyOf(buf, 2 * size);
+      back = Arrays.copyOf(back, 2 * size);
+      Arrays.fill(back, size, back.length, -1);
+    }
+    if (back[len] < 0) {
+      back[len] = pc;
+    }
+    buf[len++] = op;
+    for (int w : operands) {
+      buf[len++] = w;
+    }
+    dst = -1;
+  }
+
+  /**
+   * Number of words of the instruction <code>op</code>, including the
+   * opcode.
+   */
+  static int length(int op) {
+    return op > 0 && op < LENGTH.length ? LENGTH[op] : 1;
+  }
+
+  /**
+   * Mnemonic of the instruction <code>op</code>.
+   */
+  static String name(int op) {
+    return op > 0 && op < NAMES.length ? NAMES[op] : "???";
+  }
+
+  /**
+   * Byte address of the instruction starting at stream index
+   * <code>idx</code>, or -1 if <code>idx</code> is not an instruction.
+   */
+  int bytePc(int idx) {
+    return idx >= 0 && idx < bytePc.length ? bytePc[idx] : -1;
+  }
+
+  /**
+   * Stream index at byte address <code>pc</code>, or -1 if execution cannot
+   * continue there.
+   */
+  int streamPc(int pc) {
+    return pc >= 0 && pc < streamPc.length ? streamPc[pc] : -1;
+  }
+
+  /**
+   * Register above the operands before the instruction at stream index
+   * <code>idx</code>, which must have a byte address (see
+   * {@link #streamPc}).
+   */
+  int stackTop(int idx) {
+    int pc = bytePc(idx);
+    CodeAnalysis.Method m = analysis.methodContaining(pc);
+    return m == null ? 0 : m.nLocals + 2 + analysis.depth[pc];
+  }
+
+  /**
+   * Listing of the translated code, one instruction per line with its
+   * stream index, operands and byte address.
+   */
+  String decode() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < code.length; i += length(code[i])) {
+      sb.append(i).append(": ").append(name(code[i]));
+      for (int k = 1; k < length(code[i]); k++) {
+        int w = code[i + k];
+        sb.append(' ').append(k == 1 && (code[i] == JCC || code[i] == JCCI) ? ThreadedCode.name(w) : String.valueOf(w));
+      }
+      sb.append("  (pc ").append(bytePc[i]).append(")\n");
+    }
+    return sb.toString();
+  }
+}
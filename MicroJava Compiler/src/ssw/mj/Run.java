@@ -1,68 +1,481 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-threaded | -jit | -register | -closure]
+//                               [-gcstats] [-Xheap=size] [-Xstack=size] [-offheap] [-buffered]
+//                               [-in inputFile] [-profile] [-sample=interval]
+//                               [-batch inputDir [-jobs=n] [-slice=n]] [-snapshot=file]
+//                               [-fuel=n] [-nosuper] [-decode]
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
 package ssw.mj;
 
+import ssw.mj.codegen.TypeDescriptors;
+
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Run {
 
+  /**
+   * Settings of the VM, see {@link #main}.
+   */
+  static final class Options {
+    boolean debug;
+    Interpreter.Engine engine = Interpreter.Engine.SWITCH;
+    long heapSize = Interpreter.DEFAULT_HEAP_SIZE; // in words
+    int stackSize = Interpreter.DEFAULT_STACK_SIZE; // in words
+    boolean offHeap; // heap in native memory
+    long fuel; // backward jumps and calls until the program is aborted, 0 = unlimited
+    boolean superinstructions = true; // see ThreadedCode
+    Interpreter.IO io = Interpreter.ConsoleIO;
+
+    Options copy() {
+      Options o = new Options();
+      o.debug = debug;
+      o.engine = engine;
+      o.heapSize = heapSize;
+      o.stackSize = stackSize;
+      o.offHeap = offHeap;
+      o.fuel = fuel;
+      o.superinstructions = superinstructions;
+      o.io = io;
+      return o;
+    }
+  }
+
   // ----- VM internals
-  static Interpreter load(String name, boolean debug) throws IOException {
-    int codeSize;
-    byte[] sig = new byte[2];
-    DataInputStream in = new DataInputStream(new FileInputStream(name));
-    in.read(sig, 0, 2);
-    if (sig[0] != 'M' || sig[1] != 'J') {
-      in.close();
-      throw new FormatException("wrong marker");
-    }
-    codeSize = in.readInt();
-    if (codeSize <= 0) {
-      in.close();
-      throw new FormatException("codeSize <= 0");
-    }
-    int dataSize = in.readInt();
-    if (dataSize < 0) {
-      in.close();
-      throw new FormatException("dataSize < 0");
-    }
-    int startPC = in.readInt();
-    if (startPC < 0 || startPC >= codeSize) {
-      in.close();
-      throw new FormatException("startPC not in code area");
-    }
-    byte[] code = new byte[codeSize];
-    in.read(code, 0, codeSize);
-    in.close();
-
-    return new Interpreter(code, startPC, dataSize, Interpreter.ConsoleIO, debug);
+  static Interpreter load(String name, boolean debug, Interpreter.Engine engine) throws IOException {
+    Options opts = new Options();
+    opts.debug = debug;
+    opts.engine = engine;
+    return load(name, opts);
+  }
+
+  /**
+   * Loads an object file or a {@link Snapshot}. A snapshot keeps the heap
+   * and stack sizes it was taken with.
+   */
+  static Interpreter load(String name, Options opts) throws IOException {
+    if (isSnapshot(name)) {
+      Interpreter vm = Snapshot.read(name).fork(opts.io, opts.engine);
+      vm.superinstructions = opts.superinstructions;
+      if (opts.debug) {
+        vm.addListener(new DebugListener(System.out));
+      }
+      if (opts.fuel > 0) {
+        vm.setFuel(opts.fuel, false);
+      }
+      return vm;
+    }
+    Program p = Program.read(name);
+    warnIfNotCollected(p, opts);
+    return p.newInterpreter(opts);
+  }
+
+  /**
+   * Warns if <code>p</code> could be garbage collected, but not with the
+   * selected engine or heap, so that it may run out of heap where the
+   * default engine does not.
+   */
+  static void warnIfNotCollected(Program p, Options opts) {
+    if (p.types != null
+            && (opts.offHeap || opts.engine == Interpreter.Engine.JIT || opts.engine == Interpreter.Engine.CLOSURE)) {
+      String flag = opts.offHeap ? "-offheap" : "-" + opts.engine.name().toLowerCase();
+      System.err.println("-- warning: no garbage collection with " + flag + ", the heap is never reclaimed");
+    }
+  }
+
+  private static boolean isSnapshot(String name) throws IOException {
+    try (InputStream in = new FileInputStream(name)) {
+      return in.read() == 'M' && in.read() == 'S';
+    }
+  }
+
+  /**
+   * A loaded and verified object file. The code is never modified by an
+   * interpreter, so any number of them can run the same program at the same
+   * time.
+   */
+  static final class Program {
+    final byte[] code;
+    final int startPC;
+    final int dataSize;
+    final TypeDescriptors types;
+    final Verifier verifier;
+
+    private Program(byte[] code, int startPC, int dataSize, TypeDescriptors types, Verifier verifier) {
+      this.code = code;
+      this.startPC = startPC;
+      this.dataSize = dataSize;
+      this.types = types;
+      this.verifier = verifier;
+    }
+
+    static Program read(String name) throws IOException {
+      int codeSize;
+      byte[] sig = new byte[2];
+      DataInputStream in = new DataInputStream(new FileInputStream(name));
+      in.read(sig, 0, 2);
+      if (sig[0] != 'M' || sig[1] != 'J') {
+        in.close();
+        throw new FormatException("wrong marker");
+      }
+      codeSize = in.readInt();
+      if (codeSize <= 0) {
+        in.close();
+        throw new FormatException("codeSize <= 0");
+      }
+      int dataSize = in.readInt();
+      if (dataSize < 0) {
+        in.close();
+        throw new FormatException("dataSize < 0");
+      }
+      int startPC = in.readInt();
+      if (startPC < 0 || startPC >= codeSize) {
+        in.close();
+        throw new FormatException("startPC not in code area");
+      }
+      byte[] code = new byte[codeSize];
+      in.read(code, 0, codeSize);
+      TypeDescriptors types;
+      try {
+        types = TypeDescriptors.read(in);
+      } catch (IOException e) {
+        throw new FormatException(e.getMessage());
+      } finally {
+        in.close();
+      }
+      Verifier verifier = new Verifier(code, startPC, dataSize);
+      if (verifier.error != null) {
+        throw new FormatException("verification failed: " + verifier.error);
+      }
+      return new Program(code, startPC, dataSize, types, verifier);
+    }
+
+    /**
+     * Creates an interpreter with its own data, heap and stacks.
+     */
+    Interpreter newInterpreter(Options opts) {
+      Interpreter vm = opts.offHeap
+              ? new Interpreter(code, startPC, dataSize, opts.io, opts.debug, new OffHeap(opts.heapSize),
+              opts.stackSize)
+              : new Interpreter(code, startPC, dataSize, types, opts.io, opts.debug, opts.engine,
+              (int) opts.heapSize, opts.stackSize);
+      vm.setVerifier(verifier);
+      vm.superinstructions = opts.superinstructions;
+      if (opts.fuel > 0) {
+        vm.setFuel(opts.fuel, false);
+      }
+      return vm;
+    }
+  }
+
+  /**
+   * Converts a size in bytes with an optional suffix k, m or g to words.
+   * Returns -1 if <code>s</code> is not a valid size.
+   */
+  static long words(String s) {
+    long unit = switch (s.isEmpty() ? ' ' : Character.toLowerCase(s.charAt(s.length() - 1))) {
+      case 'k' -> 1L << 10;
+      case 'm' -> 1L << 20;
+      case 'g' -> 1L << 30;
+      default -> 1;
+    };
+    try {
+      long bytes = Math.multiplyExact(Long.parseLong(unit == 1 ? s : s.substring(0, s.length() - 1)), unit);
+      return bytes < 0 ? -1 : bytes / 4;
+    } catch (NumberFormatException | ArithmeticException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Converts a positive number with an optional suffix k, m or g (powers of
+   * 1000) to a long. Returns -1 if <code>s</code> is not a valid count.
+   */
+  static long count(String s) {
+    long unit = switch (s.isEmpty() ? ' ' : Character.toLowerCase(s.charAt(s.length() - 1))) {
+      case 'k' -> 1000;
+      case 'm' -> 1000000;
+      case 'g' -> 1000000000;
+      default -> 1;
+    };
+    try {
+      long n = Math.multiplyExact(Long.parseLong(unit == 1 ? s : s.substring(0, s.length() - 1)), unit);
+      return n <= 0 ? -1 : n;
+    } catch (NumberFormatException | ArithmeticException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Object file name without the extension .obj
+   */
+  private static String baseName(String fileName) {
+    return fileName.endsWith(".obj") ? fileName.substring(0, fileName.length() - 4) : fileName;
+  }
+
+  /**
+   * Converts a time interval with a unit ns, us, ms or s (default ms) to
+   * microseconds. Returns -1 if <code>s</code> is not a valid interval.
+   */
+  static long micros(String s) {
+    int i = 0;
+    while (i < s.length() && Character.isDigit(s.charAt(i))) {
+      i++;
+    }
+    long factor = switch (s.substring(i)) {
+      case "ns" -> 0; // rounded up below
+      case "us" -> 1;
+      case "", "ms" -> 1000;
+      case "s" -> 1000000;
+      default -> -1;
+    };
+    try {
+      long n = Long.parseLong(s.substring(0, i));
+      if (factor < 0 || n <= 0) {
+        return -1;
+      }
+      return factor == 0 ? (n + 999) / 1000 : Math.multiplyExact(n, factor);
+    } catch (NumberFormatException | ArithmeticException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Writes the report of <code>profiler</code> to <code>x.profile</code>
+   * and the collapsed stacks to <code>x.collapsed</code> for the object
+   * file <code>x.obj</code>.
+   */
+  private static void writeProfile(Profiler profiler, String fileName) throws IOException {
+    String base = baseName(fileName);
+    try (PrintWriter report = new PrintWriter(new BufferedWriter(new FileWriter(base + ".profile")));
+         PrintWriter collapsed = new PrintWriter(new BufferedWriter(new FileWriter(base + ".collapsed")))) {
+      profiler.writeReport(report);
+      profiler.writeCollapsed(collapsed);
+    }
+    System.err.println("-- profile written to " + base + ".profile and " + base + ".collapsed");
+  }
+
+  /**
+   * Prints the code of the object file <code>fileName</code> as translated
+   * for <code>engine</code>: the register code, the node trees of the
+   * closures, or the code of the threaded engines, with or without
+   * superinstructions.
+   */
+  private static void decode(String fileName, Interpreter.Engine engine, boolean superinstructions) {
+    try {
+      Program p = Program.read(fileName);
+      System.out.print(switch (engine) {
+        case REGISTER -> new RegisterCode(p.code, p.startPC, p.types, p.verifier.analysis).decode();
+        case CLOSURE -> new ClosureCode(p.verifier.analysis, null).decode();
+        default -> new ThreadedCode(p.code, p.startPC, p.types, p.verifier.analysis, superinstructions).decode();
+      });
+    } catch (FileNotFoundException e) {
+      System.out.println("-- file " + fileName + " not found");
+    } catch (FormatException e) {
+      System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+    } catch (IOException e) {
+      System.out.println("-- error reading file " + fileName);
+    }
+  }
+
+  /**
+   * Runs the program once for every file in <code>inputDir</code>, in the
+   * order of their names, on <code>jobs</code> threads. Prints the outputs
+   * in this order, followed by the throughput. With a <code>slice</code>,
+   * the runs are time-sliced (see {@link Batch}).
+   */
+  private static void runBatch(String fileName, Options opts, String inputDir, int jobs, long slice)
+          throws IOException {
+    List<Path> inputs;
+    try (Stream<Path> files = Files.list(Paths.get(inputDir))) {
+      inputs = files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    Program p = Program.read(fileName);
+    warnIfNotCollected(p, opts);
+    Batch batch = new Batch(p, opts, jobs, slice);
+    ExecutorService pool = slice > 0 ? Executors.newFixedThreadPool(jobs) : new ForkJoinPool(jobs);
+    List<Batch.Result> results;
+    try {
+      results = batch.run(inputs, pool);
+    } finally {
+      pool.shutdownNow();
+    }
+    PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), false);
+    for (Batch.Result r : results) {
+      out.println("== " + r.input.getFileName());
+      out.print(r.output);
+      if (r.error != null) {
+        out.print("\n-- " + r.error.getMessage());
+      }
+      out.println();
+    }
+    out.println(batch.statistics(results.size(), jobs));
+    out.flush();
   }
 
   public static void main(String[] args) {
     String fileName = null;
-    boolean debug = false;
-    for (String arg : args) {
+    String inputFile = null;
+    boolean gcStats = false;
+    boolean profile = false;
+    long sampleInterval = 0; // in microseconds, 0 = no sampling
+    String batchDir = null;
+    int jobs = Runtime.getRuntime().availableProcessors();
+    String snapshotFile = null;
+    long slice = 0;
+    boolean decode = false;
+    Options opts = new Options();
+    long stackSize = opts.stackSize;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
       if (arg.equals("-debug")) {
-        debug = true;
+        opts.debug = true;
+      } else if (arg.equals("-profile")) {
+        profile = true;
+      } else if (arg.startsWith("-sample=")) {
+        sampleInterval = micros(arg.substring(8));
+      } else if (arg.equals("-gcstats")) {
+        gcStats = true;
+      } else if (arg.equals("-threaded")) {
+        opts.engine = Interpreter.Engine.THREADED;
+      } else if (arg.equals("-jit")) {
+        opts.engine = Interpreter.Engine.JIT;
+      } else if (arg.equals("-register")) {
+        opts.engine = Interpreter.Engine.REGISTER;
+      } else if (arg.equals("-closure")) {
+        opts.engine = Interpreter.Engine.CLOSURE;
+      } else if (arg.equals("-nosuper")) {
+        opts.superinstructions = false;
+      } else if (arg.equals("-decode")) {
+        decode = true;
+      } else if (arg.equals("-offheap")) {
+        opts.offHeap = true;
+      } else if (arg.equals("-buffered")) {
+        opts.io = ChannelIO.console();
+      } else if (arg.equals("-in") && i + 1 < args.length) {
+        inputFile = args[++i];
+      } else if (arg.equals("-batch") && i + 1 < args.length) {
+        batchDir = args[++i];
+      } else if (arg.startsWith("-snapshot=")) {
+        snapshotFile = arg.substring(10);
+      } else if (arg.startsWith("-fuel=")) {
+        opts.fuel = count(arg.substring(6));
+      } else if (arg.startsWith("-slice=")) {
+        slice = count(arg.substring(7));
+      } else if (arg.startsWith("-jobs=")) {
+        try {
+          jobs = Integer.parseInt(arg.substring(6));
+        } catch (NumberFormatException e) {
+          jobs = 0;
+        }
+      } else if (arg.startsWith("-Xheap=")) {
+        opts.heapSize = words(arg.substring(7));
+      } else if (arg.startsWith("-Xstack=")) {
+        stackSize = words(arg.substring(8));
       } else {
         fileName = arg;
       }
     }
-    if (fileName == null) {
-      System.out.println("Syntax: java ssw.mj.Run filename [-debug]");
+    long maxHeapSize = opts.offHeap ? OffHeap.MAX_SIZE : Integer.MAX_VALUE - 8;
+    if (fileName == null || sampleInterval < 0 || opts.heapSize < 2 || opts.heapSize > maxHeapSize
+            || stackSize < 1 || stackSize > Integer.MAX_VALUE - 8 || jobs < 1 || jobs > 32767
+            || opts.fuel < 0 || slice < 0 || slice > 0 && batchDir == null
+            || batchDir != null && (inputFile != null || profile || sampleInterval > 0 || snapshotFile != null)) {
+      System.out.println("Syntax: java ssw.mj.Run filename [-debug] [-threaded | -jit | -register | -closure]"
+              + " [-gcstats] [-Xheap=size] [-Xstack=size] [-offheap] [-buffered] [-in inputFile] [-profile]"
+              + " [-sample=interval] [-batch inputDir [-jobs=n] [-slice=n]] [-snapshot=file] [-fuel=n]"
+              + " [-nosuper] [-decode]");
+      return;
+    }
+    if (decode) {
+      decode(fileName, opts.engine, opts.superinstructions);
       return;
     }
+    opts.stackSize = (int) stackSize;
+    if (batchDir != null) {
+      try {
+        runBatch(fileName, opts, batchDir, jobs, slice);
+      } catch (FileNotFoundException e) {
+        System.out.println("-- file " + fileName + " not found");
+      } catch (FormatException e) {
+        System.out.println("-- corrupted object file " + fileName + ": " + e.getMessage());
+      } catch (IOException e) {
+        System.out.println("-- error reading " + e.getMessage());
+      }
+      return;
+    }
+    if (inputFile != null) {
+      try {
+        opts.io = new MappedIO(Paths.get(inputFile), opts.io);
+      } catch (IOException e) {
+        System.out.println("-- cannot read input file " + inputFile);
+        return;
+      }
+    }
     try {
-      Interpreter r = load(fileName, debug);
+      Interpreter r = load(fileName, opts);
+      Profiler profiler = null;
+      if (profile) {
+        profiler = new Profiler(r.code());
+        r.addListener(profiler);
+      }
+      if (sampleInterval > 0 && r.engine() == Interpreter.Engine.CLOSURE) {
+        System.err.println("-- sampling is not supported with -closure, no samples taken");
+      } else if (sampleInterval > 0) {
+        SamplingProfiler sampler = new SamplingProfiler(r, sampleInterval, TimeUnit.MICROSECONDS);
+        String samplesFile = baseName(fileName) + ".samples";
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> { // also on Ctrl-C
+          sampler.stop();
+          try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(samplesFile)))) {
+            sampler.dump(out);
+          } catch (IOException e) {
+            System.err.println("-- cannot write " + samplesFile);
+            return;
+          }
+          System.err.println("-- samples written to " + samplesFile);
+        }));
+        sampler.start();
+      }
 
       long startTime = System.currentTimeMillis();
-      r.run();
+      boolean terminated = false;
+      if (snapshotFile != null) {
+        Snapshot s = r.runToInput();
+        if (s != null) {
+          s.write(snapshotFile);
+          System.err.println("-- snapshot written to " + snapshotFile);
+        } else {
+          terminated = true;
+          System.err.println("-- no input read, no snapshot written");
+        }
+      }
+      try {
+        if (!terminated) {
+          r.run();
+        }
+      } finally {
+        if (profiler != null) {
+          writeProfile(profiler, fileName);
+        }
+      }
 
       System.out.print("\nCompletion took " + (System.currentTimeMillis() - startTime) + " ms");
+      if (gcStats) {
+        String stats = r.gcStatistics();
+        System.out.print("\n" + (stats != null ? stats : "GC: heap is not collected"));
+      }
     } catch (FileNotFoundException e) {
       System.out.println("-- file " + fileName + " not found");
     } catch (FormatException e) {
@@ -72,13 +485,3 @@ public class Run {
     }
   }
 }
-
-class FormatException extends IOException {
-
-  @Serial
-  private static final long serialVersionUID = 1L;
-
-  FormatException(String s) {
-    super(s);
-  }
-}
\ No newline at end of file
@@ -0,0 +1,206 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Statistical profiler (<code>-sample=1ms</code>). A daemon thread wakes up
+ * periodically and reads the registers published by the interpreter: the
+ * pc and the frame pointer, whose chain of saved frame pointers and return
+ * addresses on the method stack gives the active methods.
+ * <p>
+ * The registers are read without synchronization, so a sample may be torn
+ * while the program calls or returns; such samples are dropped or
+ * attributed to a neighbouring instruction. {@link Interpreter.Engine#SWITCH}
+ * always keeps its registers up to date, but its pc may already point into
+ * the operands, so every sample is moved to the start of its instruction.
+ * {@link Interpreter.Engine#THREADED} publishes them at method entry, return
+ * and backward jumps. Time spent in JIT-compiled methods is attributed to
+ * their interpreted caller. {@link Interpreter.Engine#CLOSURE} has no pc and
+ * frames to sample and is not supported.
+ */
+public final class SamplingProfiler {
+
+  private static final int MAX_DEPTH = 1024; // frames walked per sample, main is always counted
+
+  private final Interpreter vm;
+  private final long interval; // in nanoseconds
+  private final byte[] code;
+  private final CodeAnalysis analysis;
+  private final int[] methodOf; // index of the method containing each pc, -1 if none
+  private final int[] startOf; // start of the instruction containing each pc
+  private Thread thread;
+
+  // ----- histograms, guarded by this
+  private final long[] pcSamples; // samples per pc
+  private final long[] methodSamples; // samples in which a method was active
+  private final int[] stamp; // last sample that counted a method
+  private long samples, dropped;
+
+  public SamplingProfiler(Interpreter vm, long interval, TimeUnit unit) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive");
+    }
+    if (vm.engine() == Interpreter.Engine.CLOSURE) {
+      throw new UnsupportedOperationException("sampling is not supported by the closure engine");
+    }
+    this.vm = vm;
+    this.interval = unit.toNanos(interval);
+    code = vm.code();
+    analysis = new CodeAnalysis(code, code.length);
+    methodOf = new int[code.length];
+    Arrays.fill(methodOf, -1);
+    startOf = new int[code.length];
+    for (int pc = 0; pc < code.length; pc++) {
+      startOf[pc] = pc;
+    }
+    for (int i = 0; i < analysis.methods.size(); i++) {
+      CodeAnalysis.Method m = analysis.methods.get(i);
+      Arrays.fill(methodOf, m.adr, m.end, i);
+      for (int pc = m.adr; pc < m.end; pc += analysis.sizeAt(pc)) {
+        Arrays.fill(startOf, pc, Math.min(pc + analysis.sizeAt(pc), m.end), pc);
+      }
+    }
+    pcSamples = new long[code.length];
+    methodSamples = new long[analysis.methods.size()];
+    stamp = new int[analysis.methods.size()];
+  }
+
+  /**
+   * Starts sampling. Must be called before {@link Interpreter#run()}, so
+   * that the interpreter publishes its registers.
+   */
+  public synchronized void start() {
+    if (thread == null) {
+      vm.publishRegisters = true;
+      thread = new Thread(this::sampleLoop, "mj-sampler");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  public synchronized void stop() {
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  private void sampleLoop() {
+    while (!Thread.currentThread().isInterrupted()) {
+      LockSupport.parkNanos(interval);
+      sample();
+    }
+  }
+
+  /**
+   * Takes one sample of the running program.
+   */
+  synchronized void sample() {
+    int pc = vm.pc;
+    int fp = vm.fp;
+    int[] local = vm.local;
+    if (pc < 0) { // not running
+      return;
+    }
+    if (pc >= code.length) {
+      dropped++;
+      return;
+    }
+    pc = startOf[pc];
+    samples++;
+    int tag = (int) samples;
+    pcSamples[pc]++;
+    count(methodOf[pc], tag);
+    for (int depth = 0; ; depth++) {
+      int link = vm.linkAt(fp, pc);
+      if (link < 0 || link + 1 >= local.length) {
+        break; // main() or torn frame
+      }
+      if (depth == MAX_DEPTH) { // the rest of a deep recursion
+        count(methodOf[vm.startPC()], tag);
+        break;
+      }
+      int ret = vm.returnAddress(local[link]);
+      int next = local[link + 1];
+      if (ret < 0 || ret >= code.length || next >= fp) {
+        break; // torn or not yet complete frame
+      }
+      count(methodOf[ret], tag);
+      fp = next;
+      pc = ret;
+    }
+  }
+
+  /**
+   * Counts method <code>m</code> once per sample, however often it is on
+   * the stack.
+   */
+  private void count(int m, int tag) {
+    if (m >= 0 && stamp[m] != tag) {
+      stamp[m] = tag;
+      methodSamples[m]++;
+    }
+  }
+
+  private String name(int m) {
+    if (m < 0) {
+      return "?";
+    }
+    int adr = analysis.methods.get(m).adr;
+    return adr == vm.startPC() ? "main" : "method@" + adr;
+  }
+
+  private static String percent(long n, long of) {
+    return of == 0 ? "  0.0%" : String.format("%5.1f%%", 100.0 * n / of);
+  }
+
+  /**
+   * Writes the histograms collected so far. Can be called at any time.
+   */
+  public synchronized void dump(PrintWriter out) {
+    out.printf("Samples: %d every %d us (%d dropped)%n", samples, interval / 1000, dropped);
+
+    int n = analysis.methods.size();
+    long[] self = new long[n];
+    for (int pc = 0; pc < pcSamples.length; pc++) {
+      if (methodOf[pc] >= 0) {
+        self[methodOf[pc]] += pcSamples[pc];
+      }
+    }
+    out.printf("%nHot methods%n%12s %6s %12s %6s  %s%n", "self", "", "total", "", "method");
+    Integer[] ms = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      ms[i] = i;
+    }
+    Arrays.sort(ms, (a, b) -> self[a] != self[b] ? Long.compare(self[b], self[a])
+            : Long.compare(methodSamples[b], methodSamples[a]));
+    for (int m : ms) {
+      if (methodSamples[m] > 0) {
+        out.printf("%12d %s %12d %s  %s%n", self[m], percent(self[m], samples),
+                methodSamples[m], percent(methodSamples[m], samples), name(m));
+      }
+    }
+
+    out.printf("%nHot instructions%n%6s %12s %6s  %s%n", "pc", "samples", "", "instruction");
+    List<Integer> pcs = new ArrayList<>();
+    for (int pc = 0; pc < pcSamples.length; pc++) {
+      if (pcSamples[pc] > 0) {
+        pcs.add(pc);
+      }
+    }
+    pcs.sort((a, b) -> Long.compare(pcSamples[b], pcSamples[a]));
+    for (int pc : pcs.subList(0, Math.min(20, pcs.size()))) {
+      OpCode op = OpCode.get(code[pc]);
+      out.printf("%6d %12d %s  %s in %s%n", pc, pcSamples[pc], percent(pcSamples[pc], samples),
+              op == null ? "???" : op.cleanName(), name(methodOf[pc]));
+    }
+    out.flush();
+  }
+}
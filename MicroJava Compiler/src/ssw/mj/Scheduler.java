@@ -0,0 +1,80 @@
+package ssw.mj;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Time-slices many programs over the threads of an executor. Every program
+ * runs until it has used up <code>slice</code> units of fuel (see
+ * {@link Interpreter#setFuel}) and is then suspended and queued again
+ * behind the others, so long-running programs cannot starve short ones.
+ * <p>
+ * The executor should run its tasks in the order they were submitted, as
+ * the one of <code>Executors.newFixedThreadPool</code> does; a work-stealing
+ * pool would not be fair.
+ */
+final class Scheduler {
+
+  private final Executor executor;
+  private final long slice;
+  private final long budget; // fuel of a whole run, 0 = unlimited
+
+  /**
+   * Runs programs in slices of <code>slice</code> units of fuel and aborts
+   * them after <code>budget</code> units in total (0 for no limit).
+   */
+  Scheduler(Executor executor, long slice, long budget) {
+    if (slice <= 0 || budget < 0) {
+      throw new IllegalArgumentException("invalid slice or budget");
+    }
+    this.executor = executor;
+    this.slice = slice;
+    this.budget = budget;
+  }
+
+  /**
+   * A program in the run queue.
+   */
+  static final class Job {
+    final Interpreter vm;
+    RuntimeException error; // null if the program terminated normally
+    long nanos; // running time so far
+    long used; // fuel so far
+    private final CompletableFuture<Job> done = new CompletableFuture<>();
+
+    private Job(Interpreter vm) {
+      this.vm = vm;
+    }
+  }
+
+  /**
+   * Queues <code>vm</code>, which must not be running. The result completes
+   * when the program has terminated or trapped.
+   */
+  CompletableFuture<Job> submit(Interpreter vm) {
+    Job job = new Job(vm);
+    executor.execute(() -> runSlice(job));
+    return job.done;
+  }
+
+  private void runSlice(Job job) {
+    long start = System.nanoTime();
+    long fuel = budget == 0 ? slice : Math.min(slice, budget - job.used);
+    job.vm.setFuel(fuel, true);
+    try {
+      job.vm.run();
+    } catch (RuntimeException e) {
+      job.error = e;
+    }
+    job.nanos += System.nanoTime() - start;
+    job.used += fuel - job.vm.fuel();
+    if (job.error == null && job.vm.isSuspended() && budget > 0 && job.used >= budget) {
+      job.error = new IllegalStateException("out of fuel");
+    }
+    if (job.error == null && job.vm.isSuspended()) {
+      executor.execute(() -> runSlice(job));
+    } else {
+      job.done.complete(job);
+    }
+  }
+}
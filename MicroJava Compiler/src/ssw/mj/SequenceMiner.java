@@ -0,0 +1,184 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds candidates for the superinstructions of {@link ThreadedCode}.
+ * <p>
+ * Runs a corpus of programs and counts the sequences of instructions that
+ * are executed one after the other within a basic block, that is, the
+ * sequences that a superinstruction could replace. Instructions are counted
+ * in the instruction set of the threaded engines, where
+ * <code>load_2</code> and <code>load 7</code> are the same instruction.
+ * Sequences are ranked by the dispatches a superinstruction for them would
+ * save: one less than their length, for every execution.
+ * <p>
+ * Syntax: <code>java ssw.mj.SequenceMiner [-n=length] [-top=k]
+ * file.obj[=inputFile] ...</code>
+ */
+final class SequenceMiner implements ExecutionListener {
+
+  private static final int MAX_LENGTH = 8; // ops of a sequence packed into a long key
+
+  private final int maxLength;
+  private final Map<Long, long[]> counts = new HashMap<>(); // executions per sequence
+  private long total; // executed instructions
+  private long[] executed; // per pc of the program being run
+
+  SequenceMiner(int maxLength) {
+    if (maxLength < 2 || maxLength > MAX_LENGTH) {
+      throw new IllegalArgumentException("length must be between 2 and " + MAX_LENGTH);
+    }
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Runs <code>p</code> with <code>input</code> and adds its sequences.
+   * Within a basic block, the instructions before the one at some pc are
+   * always the same, so only the instructions are counted while the
+   * program runs; every sequence ending at pc was executed as often as the
+   * instruction at pc.
+   */
+  void run(Run.Program p, String input) {
+    executed = new long[p.code.length];
+    Run.Options opts = new Run.Options();
+    opts.io = new Interpreter.BufferIO(input);
+    Interpreter vm = p.newInterpreter(opts);
+    vm.addListener(this);
+    try {
+      vm.run();
+    } finally {
+      addSequences(p.verifier.analysis);
+    }
+  }
+
+  @Override
+  public void instruction(Interpreter vm, int pc, OpCode op) {
+    executed[pc]++;
+  }
+
+  private void addSequences(CodeAnalysis a) {
+    boolean[] leader = new boolean[a.codeSize + 1]; // jump targets and method entries
+    for (CodeAnalysis.Method m : a.methods) {
+      leader[m.adr] = true;
+      for (int pc = m.adr; pc < m.end; pc += a.sizeAt(pc)) {
+        OpCode op = a.opAt(pc);
+        if (op.ordinal() >= OpCode.jmp.ordinal() && op.ordinal() <= OpCode.jge.ordinal()) {
+          leader[a.target(pc)] = true;
+        }
+      }
+    }
+    int[] window = new int[maxLength];
+    for (CodeAnalysis.Method m : a.methods) {
+      int size = 0;
+      for (int pc = m.adr; pc < m.end; pc += a.sizeAt(pc)) {
+        OpCode op = a.opAt(pc);
+        total += executed[pc];
+        if (leader[pc]) {
+          size = 0;
+        }
+        if (size == maxLength) {
+          System.arraycopy(window, 1, window, 0, --size);
+        }
+        window[size++] = ThreadedCode.opcodeOf(op);
+        long key = window[size - 1];
+        for (int i = size - 2; i >= 0 && executed[pc] > 0; i--) {
+          key = key << 6 | window[i]; // first op in the lowest bits
+          counts.computeIfAbsent(key, k -> new long[1])[0] += executed[pc];
+        }
+        if (isBlockEnd(op)) {
+          size = 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether <code>op</code> transfers control, so that no superinstruction
+   * continues after it.
+   */
+  private static boolean isBlockEnd(OpCode op) {
+    return switch (op) {
+      case jmp, jeq, jne, jlt, jle, jgt, jge, call, return_, enter, exit, trap -> true;
+      default -> false;
+    };
+  }
+
+  private static String name(long key) {
+    StringBuilder sb = new StringBuilder();
+    for (long k = key; k != 0; k >>>= 6) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(ThreadedCode.name((int) (k & 63)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the <code>top</code> sequences with the most saved dispatches.
+   */
+  void writeReport(PrintWriter out, int top) {
+    List<Map.Entry<Long, long[]>> seqs = new ArrayList<>(counts.entrySet());
+    seqs.sort((a, b) -> Long.compare(saved(b), saved(a)));
+    out.printf("Executed instructions: %d%n%n%14s %14s %6s  %s%n", total, "count", "saved", "", "sequence");
+    for (Map.Entry<Long, long[]> e : seqs.subList(0, Math.min(top, seqs.size()))) {
+      long saved = saved(e);
+      out.printf("%14d %14d %5.1f%%  %s%n", e.getValue()[0], saved,
+              total == 0 ? 0.0 : 100.0 * saved / total, name(e.getKey()));
+    }
+    out.flush();
+  }
+
+  private static long saved(Map.Entry<Long, long[]> e) {
+    int length = (64 - Long.numberOfLeadingZeros(e.getKey()) + 5) / 6;
+    return e.getValue()[0] * (length - 1);
+  }
+
+  public static void main(String[] args) {
+    int length = 3;
+    int top = 30;
+    List<String> files = new ArrayList<>();
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("-n=")) {
+          length = Integer.parseInt(arg.substring(3));
+        } else if (arg.startsWith("-top=")) {
+          top = Integer.parseInt(arg.substring(5));
+        } else {
+          files.add(arg);
+        }
+      }
+    } catch (NumberFormatException e) {
+      files.clear();
+    }
+    if (files.isEmpty() || length < 2 || length > MAX_LENGTH || top < 1) {
+      System.out.println("Syntax: java ssw.mj.SequenceMiner [-n=length] [-top=k] file.obj[=inputFile] ...");
+      return;
+    }
+    SequenceMiner miner = new SequenceMiner(length);
+    for (String f : files) {
+      int eq = f.indexOf('=');
+      String name = eq < 0 ? f : f.substring(0, eq);
+      try {
+        String input = eq < 0 ? "" : Files.readString(Paths.get(f.substring(eq + 1)), StandardCharsets.ISO_8859_1);
+        miner.run(Run.Program.read(name), input);
+      } catch (IOException e) {
+        System.out.println("-- cannot read " + e.getMessage());
+      } catch (IllegalStateException e) {
+        System.out.println("-- " + name + ": " + e.getMessage());
+      }
+    }
+    miner.writeReport(new PrintWriter(System.out), top);
+  }
+}
@@ -0,0 +1,198 @@
+package ssw.mj;
+
+import ssw.mj.codegen.TypeDescriptors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * State of a suspended program (see {@link Interpreter#runToInput} and
+ * {@link Interpreter#snapshot}): its code, globals, heap, stacks and
+ * registers. Any number of interpreters can be {@link #fork forked} from a
+ * snapshot; they continue the program where it was suspended, without
+ * running its startup code again.
+ * <p>
+ * A snapshot is immutable. Forks copy the used part of an
+ * <code>int[]</code> heap, but share the buffers of an {@link OffHeap} and
+ * copy them on the first write. Snapshots can be saved to a file (marker
+ * <code>MS</code> instead of the <code>MJ</code> of object files), which
+ * {@link Run} accepts in place of an object file.
+ */
+public final class Snapshot {
+
+  private static final int VERSION = 1;
+
+  final byte[] code;
+  final int startPC;
+  final TypeDescriptors types; // null if the heap is not collected
+  final long heapLimit; // in words
+  final int stackLimit; // in words
+  final int[] data;
+  final int[] stack; // expression stack up to esp
+  final int[] local; // method stack up to sp
+  final int pc, fp;
+  final int[] heap; // used part of the heap, null if off-heap
+  final OffHeap offHeap; // never written to, null if on the Java heap
+
+  Snapshot(byte[] code, int startPC, TypeDescriptors types, long heapLimit, int stackLimit, int[] data,
+           int[] stack, int[] local, int pc, int fp, int[] heap, OffHeap offHeap) {
+    this.code = code;
+    this.startPC = startPC;
+    this.types = types;
+    this.heapLimit = heapLimit;
+    this.stackLimit = stackLimit;
+    this.data = data;
+    this.stack = stack;
+    this.local = local;
+    this.pc = pc;
+    this.fp = fp;
+    this.heap = heap;
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * Creates an interpreter that continues the program with
+   * <code>io</code>. Heap and stack limits are those of the interpreter
+   * the snapshot was taken from; a snapshot of an off-heap program always
+   * continues with {@link Interpreter.Engine#SWITCH}.
+   */
+  public Interpreter fork(Interpreter.IO io, Interpreter.Engine engine) {
+    return new Interpreter(this, io, engine);
+  }
+
+  // ----- file format
+  //   "MS" version codeSize code startPC heapLimit stackLimit pc fp
+  //   data stack local offHeap heap [type descriptors]
+  // where every int array is its length followed by the elements.
+
+  /**
+   * Writes the snapshot to <code>fileName</code>.
+   */
+  public void write(String fileName) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName),
+            1 << 16))) {
+      out.writeByte('M');
+      out.writeByte('S');
+      out.writeInt(VERSION);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeInt(startPC);
+      out.writeLong(heapLimit);
+      out.writeInt(stackLimit);
+      out.writeInt(pc);
+      out.writeInt(fp);
+      writeInts(out, data, data.length);
+      writeInts(out, stack, stack.length);
+      writeInts(out, local, local.length);
+      out.writeBoolean(offHeap != null);
+      if (offHeap == null) {
+        writeInts(out, heap, heap.length);
+      } else {
+        long free = offHeap.free();
+        out.writeLong(free);
+        int[] buf = new int[1 << 12];
+        for (long a = 0; a < free; a += buf.length) {
+          int n = (int) Math.min(buf.length, free - a);
+          for (int i = 0; i < n; i++) {
+            buf[i] = a + i == 0 ? 0 : offHeap.get((int) (a + i));
+          }
+          writeWords(out, buf, 0, n);
+        }
+      }
+      if (types != null) {
+        types.write(out);
+      }
+    }
+  }
+
+  /**
+   * Reads a snapshot written by {@link #write}.
+   */
+  public static Snapshot read(String fileName) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName),
+            1 << 16))) {
+      if (in.read() != 'M' || in.read() != 'S') {
+        throw new FormatException("wrong marker");
+      }
+      if (in.readInt() != VERSION) {
+        throw new FormatException("unsupported snapshot version");
+      }
+      byte[] code = new byte[in.readInt()];
+      in.readFully(code);
+      int startPC = in.readInt();
+      long heapLimit = in.readLong();
+      int stackLimit = in.readInt();
+      int pc = in.readInt();
+      int fp = in.readInt();
+      int[] data = readInts(in);
+      int[] stack = readInts(in);
+      int[] local = readInts(in);
+      int[] heap = null;
+      OffHeap offHeap = null;
+      if (in.readBoolean()) {
+        long free = in.readLong();
+        offHeap = new OffHeap(heapLimit);
+        offHeap.alloc(4 * (free - 1));
+        int[] buf = new int[1 << 12];
+        for (long a = 0; a < free; a += buf.length) {
+          int n = (int) Math.min(buf.length, free - a);
+          readWords(in, buf, 0, n);
+          for (int i = 0; i < n; i++) {
+            if (a + i > 0) {
+              offHeap.put((int) (a + i), buf[i]);
+            }
+          }
+        }
+        offHeap = offHeap.share(); // read-only from now on
+      } else {
+        heap = readInts(in);
+      }
+      TypeDescriptors types = TypeDescriptors.read(in);
+      if (pc < 0 || pc >= code.length || startPC < 0 || startPC >= code.length || fp > local.length
+              || local.length > stackLimit || heap != null && heap.length > heapLimit) {
+        throw new FormatException("inconsistent snapshot");
+      }
+      return new Snapshot(code, startPC, types, heapLimit, stackLimit, data, stack, local, pc, fp, heap, offHeap);
+    } catch (EOFException | NegativeArraySizeException | IllegalArgumentException e) {
+      throw new FormatException("truncated snapshot");
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] a, int len) throws IOException {
+    out.writeInt(len);
+    for (int off = 0; off < len; off += 1 << 12) {
+      writeWords(out, a, off, Math.min(1 << 12, len - off));
+    }
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    int[] a = new int[in.readInt()];
+    for (int off = 0; off < a.length; off += 1 << 12) {
+      readWords(in, a, off, Math.min(1 << 12, a.length - off));
+    }
+    return a;
+  }
+
+  /**
+   * Writes <code>n</code> words of <code>a</code> from <code>off</code> on
+   * in one block (big-endian, like <code>writeInt</code>).
+   */
+  private static void writeWords(DataOutputStream out, int[] a, int off, int n) throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(4 * n);
+    b.asIntBuffer().put(a, off, n);
+    out.write(b.array());
+  }
+
+  private static void readWords(DataInputStream in, int[] a, int off, int n) throws IOException {
+    byte[] b = new byte[4 * n];
+    in.readFully(b);
+    ByteBuffer.wrap(b).asIntBuffer().get(a, off, n);
+  }
+}
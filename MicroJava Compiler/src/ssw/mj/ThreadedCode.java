@@ -0,0 +1,493 @@
+package ssw.mj;
+
+import ssw.mj.codegen.TypeDescriptors;
+import ssw.mj.impl.Code.OpCode;
+
+import java.util.Arrays;
+
+/**
+ * Pre-decoded form of a MicroJava code array for the threaded execution engine
+ * of the {@link Interpreter}.
+ * <p>
+ * Every instruction is translated once into an opcode word followed by its
+ * already resolved operands. Short forms such as <code>load_2</code> or
+ * <code>const_m1</code> are folded into their general form, and jump and call
+ * distances are replaced by absolute indices into the translated stream.
+ * Return addresses pushed on the method stack are stream indices as well.
+ * <code>enter</code> and <code>exit</code> get the operands that the frames
+ * of the threaded engines need (see <code>Interpreter.execute</code>), and
+ * <code>exit</code> does the work of the <code>return</code> behind it.
+ */
+final class ThreadedCode {
+
+  // ----- internal instruction set (operands in brackets)
+  static final int LOAD = 1; // [local]
+  static final int STORE = 2; // [local]
+  static final int GETSTATIC = 3; // [adr]
+  static final int PUTSTATIC = 4; // [adr]
+  static final int GETFIELD = 5; // [off]
+  static final int PUTFIELD = 6; // [off]
+  static final int CONST = 7; // [val]
+  static final int ADD = 8;
+  static final int SUB = 9;
+  static final int MUL = 10;
+  static final int DIV = 11;
+  static final int REM = 12;
+  static final int NEG = 13;
+  static final int SHL = 14;
+  static final int SHR = 15;
+  static final int INC = 16; // [local, delta]
+  static final int NEW = 17; // [size in bytes, type]
+  static final int NEWARRAY = 18; // [elem kind, type]
+  static final int ALOAD = 19;
+  static final int ASTORE = 20;
+  static final int BALOAD = 21;
+  static final int BASTORE = 22;
+  static final int ARRAYLENGTH = 23;
+  static final int POP = 24;
+  static final int DUP = 25;
+  static final int DUP2 = 26;
+  static final int JMP = 27; // [target]
+  static final int JEQ = 28; // [target]
+  static final int JNE = 29; // [target]
+  static final int JLT = 30; // [target]
+  static final int JLE = 31; // [target]
+  static final int JGT = 32; // [target]
+  static final int JGE = 33; // [target]
+  static final int CALL = 34; // [target]
+  static final int RETURN = 35;
+  static final int ENTER = 36; // [psize, lsize, frame size including operands]
+  static final int EXIT = 37; // [lsize, 1 if a value is returned]
+  static final int READ = 38;
+  static final int PRINT = 39;
+  static final int BREAD = 40;
+  static final int BPRINT = 41;
+  static final int TRAP = 42; // [n]
+  static final int NOP = 43;
+  static final int ILLEGAL = 44; // [byte pc, raw opcode]
+
+  // ----- superinstructions, see fuse()
+  static final int LOAD_LOAD = 45; // [local, local]
+  static final int LOAD_LOAD_ADD = 46; // [local, local]
+  static final int LOAD_LOAD_ALOAD = 47; // [array local, index local]
+  static final int LOAD_CONST = 48; // [local, val]
+  static final int LOAD_GETFIELD = 49; // [local, off]
+  static final int ADD_STORE = 50; // [local]
+  static final int IF_LL = 51; // [local, local, JEQ..JGE, target]
+  static final int IF_LC = 52; // [local, val, JEQ..JGE, target]
+  static final int INC_JMP = 53; // [local, delta, target]
+  static final int INCSTATIC = 54; // [adr, delta]: getstatic, const, add, putstatic
+
+  private static final String[] NAMES = {null,
+          "load", "store", "getstatic", "putstatic", "getfield", "putfield", "const", "add", "sub", "mul",
+          "div", "rem", "neg", "shl", "shr", "inc", "new", "newarray", "aload", "astore",
+          "baload", "bastore", "arraylength", "pop", "dup", "dup2", "jmp", "jeq", "jne", "jlt",
+          "jle", "jgt", "jge", "call", "return", "enter", "exit", "read", "print", "bread",
+          "bprint", "trap", "nop", "illegal",
+          "load_load", "load_load_add", "load_load_aload", "load_const", "load_getfield", "add_store", "if_ll",
+          "if_lc", "inc_jmp", "incstatic"};
+
+  /**
+   * Number of words of each instruction, including the opcode.
+   */
+  private static final int[] LENGTH = {1,
+          2, 2, 2, 2, 2, 2, 2, 1, 1, 1,
+          1, 1, 1, 1, 1, 3, 3, 3, 1, 1,
+          1, 1, 1, 1, 1, 1, 2, 2, 2, 2,
+          2, 2, 2, 2, 1, 4, 3, 1, 1, 1,
+          1, 2, 1, 3,
+          3, 3, 3, 3, 3, 2, 5,
+          5, 4, 3};
+
+  /**
+   * Translated instruction stream.
+   */
+  final int[] code;
+
+  /**
+   * Stream index of the first instruction of main().
+   */
+  final int start;
+
+  /**
+   * Maps stream indices back to the byte address of their instruction (-1
+   * for operand words).
+   */
+  private final int[] bytePc;
+
+  /**
+   * Maps byte addresses to stream indices (-1 if no instruction starts there).
+   */
+  private final int[] streamPc;
+
+  private int len; // next free index in code
+
+  /**
+   * Translates <code>bytes</code>, which have been verified, with the
+   * methods and stack depths of <code>analysis</code>. The type operand of
+   * allocations is taken from <code>types</code> (-1 if <code>types</code>
+   * is <code>null</code>). With <code>fuse</code>, frequent sequences are
+   * replaced by superinstructions.
+   */
+  ThreadedCode(byte[] bytes, int startPC, TypeDescriptors types, CodeAnalysis analysis, boolean fuse) {
+    streamPc = new int[bytes.length + 1];
+    Arrays.fill(streamPc, -1);
+    int[] buf = new int[bytes.length * 3 + 3];
+    int[] back = new int[buf.length];
+    Arrays.fill(back, -1);
+    int[] jumpAt = new int[bytes.length]; // stream indices of unresolved targets
+    int nJumps = 0;
+
+    int pc = 0;
+    while (pc < bytes.length) {
+      int instr = len;
+      streamPc[pc] = instr;
+      back[instr] = pc;
+      OpCode op = OpCode.get(bytes[pc]);
+      int size = op == null ? 1 : 1 + operandSize(op);
+      if (op == null || pc + size > bytes.length) {
+        buf[len++] = ILLEGAL;
+        buf[len++] = pc;
+        buf[len++] = bytes[pc];
+        pc++;
+        continue;
+      }
+      switch (op) {
+        case load -> emit(buf, LOAD, bytes[pc + 1]);
+        case load_0, load_1, load_2, load_3 -> emit(buf, LOAD, op.code() - OpCode.load_0.code());
+        case store -> emit(buf, STORE, bytes[pc + 1]);
+        case store_0, store_1, store_2, store_3 -> emit(buf, STORE, op.code() - OpCode.store_0.code());
+        case getstatic -> emit(buf, GETSTATIC, get2(bytes, pc + 1));
+        case putstatic -> emit(buf, PUTSTATIC, get2(bytes, pc + 1));
+        case getfield -> emit(buf, GETFIELD, get2(bytes, pc + 1));
+        case putfield -> emit(buf, PUTFIELD, get2(bytes, pc + 1));
+        case const_0, const_1, const_2, const_3, const_4, const_5 ->
+                emit(buf, CONST, op.code() - OpCode.const_0.code());
+        case const_m1 -> emit(buf, CONST, -1);
+        case const_ -> emit(buf, CONST, (get2(bytes, pc + 1) << 16) + (get2(bytes, pc + 3) & 0xffff));
+        case add -> buf[len++] = ADD;
+        case sub -> buf[len++] = SUB;
+        case mul -> buf[len++] = MUL;
+        case div -> buf[len++] = DIV;
+        case rem -> buf[len++] = REM;
+        case neg -> buf[len++] = NEG;
+        case shl -> buf[len++] = SHL;
+        case shr -> buf[len++] = SHR;
+        case inc -> {
+          emit(buf, INC, bytes[pc + 1]);
+          buf[len++] = bytes[pc + 2];
+        }
+        case new_ -> {
+          emit(buf, NEW, get2(bytes, pc + 1) * 4);
+          buf[len++] = types == null ? -1 : types.typeAt(pc);
+        }
+        case newarray -> {
+          emit(buf, NEWARRAY, bytes[pc + 1]);
+          buf[len++] = types == null ? -1 : types.typeAt(pc);
+        }
+        case aload -> buf[len++] = ALOAD;
+        case astore -> buf[len++] = ASTORE;
+        case baload -> buf[len++] = BALOAD;
+        case bastore -> buf[len++] = BASTORE;
+        case arraylength -> buf[len++] = ARRAYLENGTH;
+        case pop -> buf[len++] = POP;
+        case dup -> buf[len++] = DUP;
+        case dup2 -> buf[len++] = DUP2;
+        case jmp, jeq, jne, jlt, jle, jgt, jge, call -> {
+          // operand temporarily holds the absolute byte target
+          emit(buf, JMP + op.ordinal() - OpCode.jmp.ordinal(), pc + get2(bytes, pc + 1));
+          jumpAt[nJumps++] = len - 1;
+        }
+        case return_ -> buf[len++] = RETURN;
+        case enter -> {
+          CodeAnalysis.Method m = analysis.methodAt(pc);
+          emit(buf, ENTER, bytes[pc + 1]);
+          buf[len++] = bytes[pc + 2];
+          buf[len++] = bytes[pc + 2] + 2 + (m == null ? 0 : m.maxStack);
+        }
+        case exit -> {
+          CodeAnalysis.Method m = analysis.methodContaining(pc);
+          emit(buf, EXIT, m == null ? 0 : m.nLocals);
+          buf[len++] = analysis.depth[pc] == 1 ? 1 : 0;
+        }
+        case read -> buf[len++] = READ;
+        case print -> buf[len++] = PRINT;
+        case bread -> buf[len++] = BREAD;
+        case bprint -> buf[len++] = BPRINT;
+        case trap -> emit(buf, TRAP, bytes[pc + 1]);
+        case nop -> buf[len++] = NOP;
+      }
+      pc += size;
+    }
+    streamPc[bytes.length] = len;
+
+    // guard for running off the end of the code and for broken jump targets
+    int guard = len;
+    buf[len++] = ILLEGAL;
+    buf[len++] = bytes.length;
+    buf[len++] = 0;
+
+    for (int i = 0; i < nJumps; i++) {
+      int target = buf[jumpAt[i]];
+      boolean valid = target >= 0 && target < bytes.length && streamPc[target] >= 0;
+      buf[jumpAt[i]] = valid ? streamPc[target] : guard;
+    }
+
+    if (fuse) {
+      int[] out = new int[len];
+      int[] outBack = new int[len];
+      int[] map = fuse(buf, back, out, outBack);
+      buf = out;
+      back = outBack;
+      for (pc = 0; pc <= bytes.length; pc++) {
+        if (streamPc[pc] >= 0) {
+          streamPc[pc] = map[streamPc[pc]];
+        }
+      }
+      guard = map[guard];
+    }
+
+    code = Arrays.copyOf(buf, len);
+    bytePc = Arrays.copyOf(back, len);
+    start = startPC >= 0 && startPC < bytes.length && streamPc[startPC] >= 0 ? streamPc[startPC] : guard;
+  }
+
+  // ----- superinstructions
+  // Frequent sequences of instructions are replaced by one instruction, which
+  // saves the dispatches of the others. The set was chosen with the
+  // SequenceMiner. A superinstruction never spans a jump target, so the
+  // byte address of its first instruction is where execution can enter or
+  // leave it; the addresses of the others have no stream index.
+
+  /**
+   * Copies the <code>len</code> words of <code>c</code> to <code>out</code>,
+   * replacing sequences by superinstructions, and sets <code>len</code> to
+   * the new length. Returns the new index of every instruction in
+   * <code>c</code>, or -1 if it became part of a superinstruction.
+   */
+  private int[] fuse(int[] c, int[] back, int[] out, int[] outBack) {
+    int n = len;
+    boolean[] leader = new boolean[n + 1];
+    for (int i = 0; i < n; i += length(c[i])) {
+      if (c[i] >= JMP && c[i] <= CALL) {
+        leader[c[i + 1]] = true;
+      }
+    }
+    int[] map = new int[n + 1];
+    Arrays.fill(map, -1);
+    Arrays.fill(outBack, -1);
+    int o = 0;
+    for (int i = 0; i < n; ) {
+      map[i] = o;
+      outBack[o] = back[i];
+      int s = match(c, i, n, leader);
+      int j = i + length(c[i]);
+      if (s != 0 && parts(match(c, j, n, leader)) > parts(s)) {
+        s = 0; // the next instruction starts a longer one
+      }
+      if (s == 0) {
+        System.arraycopy(c, i, out, o, length(c[i]));
+        o += length(c[i]);
+        i = j;
+        continue;
+      }
+      int k = j + length(c[j]);
+      out[o] = s;
+      switch (s) {
+        case ADD_STORE -> out[o + 1] = c[j + 1];
+        case IF_LL, IF_LC -> {
+          out[o + 1] = c[i + 1];
+          out[o + 2] = c[j + 1];
+          out[o + 3] = c[k];
+          out[o + 4] = c[k + 1];
+        }
+        case INC_JMP -> {
+          out[o + 1] = c[i + 1];
+          out[o + 2] = c[i + 2];
+          out[o + 3] = c[j + 1];
+        }
+        default -> { // load_load, load_load_add, load_load_aload, load_const, load_getfield, incstatic
+          out[o + 1] = c[i + 1];
+          out[o + 2] = c[j + 1];
+        }
+      }
+      o += length(s);
+      for (int p = 0; p < parts(s); p++) {
+        i += length(c[i]);
+      }
+    }
+    map[n] = o;
+    len = o;
+    for (int i = 0; i < o; i += length(out[i])) {
+      switch (out[i]) {
+        case JMP, JEQ, JNE, JLT, JLE, JGT, JGE, CALL -> out[i + 1] = map[out[i + 1]];
+        case INC_JMP -> out[i + 3] = map[out[i + 3]];
+        case IF_LL, IF_LC -> out[i + 4] = map[out[i + 4]];
+        default -> {
+        }
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Superinstruction that replaces the instructions starting at index
+   * <code>i</code> of <code>c</code>, or 0 if there is none.
+   */
+  private static int match(int[] c, int i, int n, boolean[] leader) {
+    int j = i + length(c[i]);
+    if (j >= n || leader[j]) {
+      return 0;
+    }
+    int k = j + length(c[j]);
+    int third = k < n && !leader[k] ? c[k] : 0; // 0 if the sequence cannot go on
+    return switch (c[i]) {
+      case LOAD -> switch (c[j]) {
+        case LOAD -> switch (third) {
+          case ADD -> LOAD_LOAD_ADD;
+          case ALOAD -> LOAD_LOAD_ALOAD;
+          case JEQ, JNE, JLT, JLE, JGT, JGE -> IF_LL;
+          default -> LOAD_LOAD;
+        };
+        case CONST -> third >= JEQ && third <= JGE ? IF_LC : LOAD_CONST;
+        case GETFIELD -> LOAD_GETFIELD;
+        default -> 0;
+      };
+      case ADD -> c[j] == STORE ? ADD_STORE : 0;
+      case INC -> c[j] == JMP ? INC_JMP : 0;
+      case GETSTATIC -> {
+        int l = k + length(third);
+        yield c[j] == CONST && third == ADD && l < n && !leader[l] && c[l] == PUTSTATIC && c[l + 1] == c[i + 1]
+                ? INCSTATIC : 0;
+      }
+      default -> 0;
+    };
+  }
+
+  /**
+   * Number of instructions replaced by <code>op</code>, 1 if it is no
+   * superinstruction.
+   */
+  private static int parts(int op) {
+    return switch (op) {
+      case LOAD_LOAD, LOAD_CONST, LOAD_GETFIELD, ADD_STORE, INC_JMP -> 2;
+      case LOAD_LOAD_ADD, LOAD_LOAD_ALOAD, IF_LL, IF_LC -> 3;
+      case INCSTATIC -> 4;
+      default -> 1;
+    };
+  }
+
+  private void emit(int[] buf, int op, int operand) {
+    buf[len++] = op;
+    buf[len++] = operand;
+  }
+
+  private static int get2(byte[] bytes, int pos) {
+    return (short) ((bytes[pos] << 8) + (bytes[pos + 1] & 0xff));
+  }
+
+  /**
+   * Number of operand bytes following the opcode byte of <code>op</code>.
+   */
+  static int operandSize(OpCode op) {
+    return switch (op) {
+      case load, store, newarray, trap -> 1;
+      case getstatic, putstatic, getfield, putfield, new_, inc, enter, jmp, jeq, jne, jlt, jle, jgt, jge, call -> 2;
+      case const_ -> 4;
+      default -> 0;
+    };
+  }
+
+  /**
+   * Instruction of the threaded engines that executes <code>op</code>,
+   * before superinstructions are formed.
+   */
+  static int opcodeOf(OpCode op) {
+    return switch (op) {
+      case load, load_0, load_1, load_2, load_3 -> LOAD;
+      case store, store_0, store_1, store_2, store_3 -> STORE;
+      case const_, const_0, const_1, const_2, const_3, const_4, const_5, const_m1 -> CONST;
+      case getstatic -> GETSTATIC;
+      case putstatic -> PUTSTATIC;
+      case getfield -> GETFIELD;
+      case putfield -> PUTFIELD;
+      case add -> ADD;
+      case sub -> SUB;
+      case mul -> MUL;
+      case div -> DIV;
+      case rem -> REM;
+      case neg -> NEG;
+      case shl -> SHL;
+      case shr -> SHR;
+      case inc -> INC;
+      case new_ -> NEW;
+      case newarray -> NEWARRAY;
+      case aload -> ALOAD;
+      case astore -> ASTORE;
+      case baload -> BALOAD;
+      case bastore -> BASTORE;
+      case arraylength -> ARRAYLENGTH;
+      case pop -> POP;
+      case dup -> DUP;
+      case dup2 -> DUP2;
+      case jmp, jeq, jne, jlt, jle, jgt, jge, call -> JMP + op.ordinal() - OpCode.jmp.ordinal();
+      case return_ -> RETURN;
+      case enter -> ENTER;
+      case exit -> EXIT;
+      case read -> READ;
+      case print -> PRINT;
+      case bread -> BREAD;
+      case bprint -> BPRINT;
+      case trap -> TRAP;
+      case nop -> NOP;
+    };
+  }
+
+  /**
+   * Number of words of the instruction <code>op</code>, including the
+   * opcode.
+   */
+  static int length(int op) {
+    return op > 0 && op < LENGTH.length ? LENGTH[op] : 1;
+  }
+
+  /**
+   * Mnemonic of the instruction <code>op</code>.
+   */
+  static String name(int op) {
+    return op > 0 && op < NAMES.length ? NAMES[op] : "???";
+  }
+
+  /**
+   * Byte address of the instruction starting at stream index
+   * <code>idx</code>, or -1 if <code>idx</code> is not an instruction.
+   */
+  int bytePc(int idx) {
+    return idx >= 0 && idx < bytePc.length ? bytePc[idx] : -1;
+  }
+
+  /**
+   * Stream index of the instruction at byte address <code>pc</code>, or -1
+   * if no instruction starts there or if it is part of a superinstruction.
+   */
+  int streamPc(int pc) {
+    return pc >= 0 && pc < streamPc.length ? streamPc[pc] : -1;
+  }
+
+  /**
+   * Listing of the translated code, one instruction per line with its
+   * stream index, operands and byte address.
+   */
+  String decode() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < code.length; i += length(code[i])) {
+      sb.append(i).append(": ").append(name(code[i]));
+      for (int k = 1; k < length(code[i]); k++) {
+        int w = code[i + k];
+        sb.append(' ').append(k == 3 && (code[i] == IF_LL || code[i] == IF_LC) ? name(w) : String.valueOf(w));
+      }
+      sb.append("  (pc ").append(bytePc[i]).append(")\n");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,135 @@
+package ssw.mj;
+
+import ssw.mj.impl.Code.OpCode;
+
+/**
+ * Load-time verification of a MicroJava program. On top of the checks of
+ * {@link CodeAnalysis} (valid instructions, jump and call targets, stack
+ * depth consistent at every jump target, no underflow, balanced returns),
+ * the verifier checks that
+ * <ul>
+ *   <li>every method is well-formed and the program starts at one,</li>
+ *   <li><code>enter</code> has no more parameters than locals,</li>
+ *   <li>methods return by <code>exit</code> followed by <code>return</code>,
+ *   and <code>main</code> returns no value,</li>
+ *   <li>locals and globals are addressed within their frame and data area,
+ *   and object and array allocations have a valid size.</li>
+ * </ul>
+ * It also computes how deep the expression stack gets in the whole program.
+ * Callers leave their pending values on the stack during a call, so this
+ * is the maximum over all call chains from <code>main</code>. If recursion
+ * can make it grow without limit, there is no bound.
+ * <p>
+ * Code that passed the verifier cannot overflow or underflow an expression
+ * stack of that size, so the threaded engines run it without checking the
+ * stack pointer (see {@link Interpreter#run}).
+ */
+final class Verifier {
+
+  /**
+   * No bound on the expression stack, see {@link #maxStack}.
+   */
+  static final int UNBOUNDED = -1;
+
+  final CodeAnalysis analysis;
+  /**
+   * Why the program was rejected, <code>null</code> if it is well-formed.
+   */
+  final String error;
+  /**
+   * Maximum depth of the expression stack in words, {@link #UNBOUNDED} if
+   * recursion can make it grow, or if the program was rejected.
+   */
+  final int maxStack;
+
+  Verifier(byte[] code, int startPC, int dataSize) {
+    analysis = new CodeAnalysis(code, code.length);
+    error = check(startPC, dataSize);
+    maxStack = error == null ? maxStack(analysis.methodAt(startPC)) : UNBOUNDED;
+  }
+
+  private String check(int startPC, int dataSize) {
+    CodeAnalysis.Method main = analysis.methodAt(startPC);
+    if (main == null) {
+      return "startPC " + startPC + " is not the start of a method";
+    }
+    if (main.nPars != 0 || main.returnsValue) {
+      return "main has parameters or a result";
+    }
+    for (CodeAnalysis.Method m : analysis.methods) {
+      if (!m.isValid()) {
+        return m.error;
+      }
+      if (m.nPars < 0 || m.nPars > m.nLocals) {
+        return "invalid enter at " + m.adr;
+      }
+      OpCode prev = null;
+      for (int pc = m.adr; pc < m.end; pc += analysis.sizeAt(pc)) {
+        OpCode op = analysis.opAt(pc);
+        if (analysis.depth[pc] >= 0) {
+          if (!validOperands(m, pc, dataSize)) {
+            return "invalid operand of " + op.cleanName() + " at " + pc;
+          }
+          if (op == OpCode.return_ && prev != OpCode.exit) {
+            return "return without exit at " + pc;
+          }
+          if (op.ordinal() >= OpCode.jmp.ordinal() && op.ordinal() <= OpCode.jge.ordinal()
+                  && analysis.opAt(analysis.target(pc)) == OpCode.return_) {
+            return "jump to return at " + pc;
+          }
+        }
+        prev = op;
+      }
+    }
+    return null;
+  }
+
+  private boolean validOperands(CodeAnalysis.Method m, int pc, int dataSize) {
+    OpCode op = analysis.opAt(pc);
+    return switch (op) {
+      case load, store, inc -> analysis.get1(pc + 1) >= 0 && analysis.get1(pc + 1) < m.nLocals;
+      case load_0, load_1, load_2, load_3 -> op.code() - OpCode.load_0.code() < m.nLocals;
+      case store_0, store_1, store_2, store_3 -> op.code() - OpCode.store_0.code() < m.nLocals;
+      case getstatic, putstatic -> analysis.get2(pc + 1) >= 0 && analysis.get2(pc + 1) < dataSize;
+      case new_ -> analysis.get2(pc + 1) >= 0;
+      case newarray -> analysis.get1(pc + 1) == 0 || analysis.get1(pc + 1) == 1;
+      default -> true;
+    };
+  }
+
+  /**
+   * Bound of the expression stack while <code>main</code> runs. The bound
+   * of a method counts from the values below its arguments: it is the
+   * deepest stack within the method or, at a call, the stack below the
+   * arguments plus the bound of the callee. The bounds are found by
+   * iteration; if they still grow after every call chain without recursion
+   * has been covered, some recursion keeps values on the stack.
+   */
+  private int maxStack(CodeAnalysis.Method main) {
+    int n = analysis.methods.size();
+    int[] bound = new int[n];
+    for (int i = 0; i < n; i++) {
+      bound[i] = analysis.methods.get(i).maxStack;
+    }
+    for (int round = 0; round <= n; round++) {
+      boolean changed = false;
+      for (int i = 0; i < n; i++) {
+        CodeAnalysis.Method m = analysis.methods.get(i);
+        for (int pc = m.adr; pc < m.end; pc += analysis.sizeAt(pc)) {
+          if (analysis.depth[pc] >= 0 && analysis.opAt(pc) == OpCode.call) {
+            CodeAnalysis.Method callee = analysis.methodAt(analysis.target(pc));
+            int b = analysis.depth[pc] - callee.nPars + bound[analysis.methods.indexOf(callee)];
+            if (b > bound[i]) {
+              bound[i] = b;
+              changed = true;
+            }
+          }
+        }
+      }
+      if (!changed) {
+        return bound[analysis.methods.indexOf(main)];
+      }
+    }
+    return UNBOUNDED;
+  }
+}
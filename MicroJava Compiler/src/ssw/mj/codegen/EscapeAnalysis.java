@@ -0,0 +1,482 @@
+package ssw.mj.codegen;
+
+import ssw.mj.impl.Code;
+import ssw.mj.impl.Code.OpCode;
+import ssw.mj.impl.Tab;
+import ssw.mj.symtab.Obj;
+import ssw.mj.symtab.Struct;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scalar replacement of objects that do not escape their method.
+ * <p>
+ * A local variable of a class type is a candidate if every assignment to it
+ * is <code>x = new C</code> and if its value is only used to access fields,
+ * i.e. <code>x.f</code> and <code>x.f = ...</code>, compound assignments
+ * included. Any other use (assigning it to another variable, a field, an
+ * array element or a global, passing it, comparing it) lets the object
+ * escape. The variable must also be assigned on every path to its uses,
+ * since the original code would trap on a null reference.
+ * <p>
+ * The fields of such a variable are promoted to additional locals of the
+ * method: <code>new C</code> becomes stores of 0 into them, and the field
+ * accesses become loads and stores of locals, without allocation and null
+ * checks. A method is rewritten right after its code has been generated,
+ * when its jumps are resolved and no other code refers to its addresses
+ * yet.
+ */
+public final class EscapeAnalysis {
+
+  private static final int MAX_LOCALS = 127;
+  private static final int MAX_CANDIDATES = 64; // bits of the assignment masks
+  private static final int OTHER = -1; // stack entry that is not a candidate
+
+  private final Code code;
+  private final Obj meth;
+  private final byte[] buf;
+  private final int adr, end;
+  private final int[] depth; // per pc - adr, -1 if unreachable or not an instruction
+  private final boolean[] leader; // per pc - adr
+
+  private final int[] candidate; // index of each local among the candidates, -1 if none
+  private final int[] local; // local of each candidate
+  private final boolean[] escapes; // per candidate
+  private final int[] action; // per pc - adr, see rewrite()
+  private final int[] target; // per pc - adr, candidate that the action applies to
+
+  // actions
+  private static final int KEEP = 0, DROP = 1, ZERO = 2, LOAD_FIELD = 3, STORE_FIELD = 4;
+
+  private EscapeAnalysis(Code code, Obj meth) {
+    this.code = code;
+    this.meth = meth;
+    buf = code.buf;
+    adr = meth.adr;
+    end = code.pc;
+    depth = new int[end - adr];
+    leader = new boolean[end - adr];
+    action = new int[end - adr];
+    target = new int[end - adr];
+    candidate = new int[MAX_LOCALS + 1];
+    Arrays.fill(candidate, -1);
+    List<Integer> locals = new ArrayList<>();
+    for (Obj o : meth.locals.values()) {
+      if (o.kind == Obj.Kind.Var && o.adr >= meth.nPars && o.type.kind == Struct.Kind.Class
+              && o.adr <= MAX_LOCALS && locals.size() < MAX_CANDIDATES) {
+        candidate[o.adr] = locals.size();
+        locals.add(o.adr);
+      }
+    }
+    local = locals.stream().mapToInt(Integer::intValue).toArray();
+    escapes = new boolean[local.length];
+  }
+
+  /**
+   * Replaces the objects of the method <code>meth</code>, whose code ends at
+   * <code>code.pc</code>, that do not escape. Returns the number of
+   * variables whose objects were replaced.
+   */
+  public static int run(Code code, Obj meth) {
+    EscapeAnalysis ea = new EscapeAnalysis(code, meth);
+    if (ea.local.length == 0 || !ea.computeDepths()) {
+      return 0;
+    }
+    ea.findUses();
+    ea.checkAssignments();
+    return ea.rewrite();
+  }
+
+  // ----- instructions
+
+  private OpCode op(int pc) {
+    return OpCode.get(buf[pc]);
+  }
+
+  private int size(int pc) {
+    return switch (op(pc)) {
+      case load, store, newarray, trap -> 2;
+      case getstatic, putstatic, getfield, putfield, new_, inc, enter, jmp, jeq, jne, jlt, jle, jgt, jge, call -> 3;
+      case const_ -> 5;
+      default -> 1;
+    };
+  }
+
+  private int get2(int pos) {
+    return (short) ((buf[pos] << 8) + (buf[pos + 1] & 0xff));
+  }
+
+  private int jumpTarget(int pc) {
+    return pc + get2(pc + 1);
+  }
+
+  /**
+   * Local accessed by the load, store or inc at <code>pc</code>, -1 for
+   * other instructions.
+   */
+  private int localAt(int pc) {
+    OpCode op = op(pc);
+    return switch (op) {
+      case load, store, inc -> buf[pc + 1];
+      case load_0, load_1, load_2, load_3 -> op.ordinal() - OpCode.load_0.ordinal();
+      case store_0, store_1, store_2, store_3 -> op.ordinal() - OpCode.store_0.ordinal();
+      default -> -1;
+    };
+  }
+
+  private static boolean isLoad(OpCode op) {
+    return op == OpCode.load || op.ordinal() >= OpCode.load_0.ordinal() && op.ordinal() <= OpCode.load_3.ordinal();
+  }
+
+  private boolean returnsValue(int callee) {
+    if (callee == adr) {
+      return meth.type != Tab.noType;
+    }
+    OpCode last = null;
+    for (int pc = callee; pc < end; pc += size(pc)) {
+      if (op(pc) == OpCode.enter && pc != callee) {
+        break;
+      }
+      last = op(pc);
+    }
+    return last == OpCode.trap; // a function ends with trap, a procedure with return
+  }
+
+  private int pops(int pc) {
+    return switch (op(pc)) {
+      case store, store_0, store_1, store_2, store_3, putstatic, getfield, neg, newarray, arraylength, pop, dup -> 1;
+      case putfield, add, sub, mul, div, rem, shl, shr, aload, baload, dup2, jeq, jne, jlt, jle, jgt, jge, print,
+           bprint -> 2;
+      case astore, bastore -> 3;
+      case call -> buf[jumpTarget(pc) + 1];
+      default -> 0;
+    };
+  }
+
+  private int pushes(int pc) {
+    return switch (op(pc)) {
+      case load, load_0, load_1, load_2, load_3, getstatic, getfield, const_0, const_1, const_2, const_3, const_4,
+           const_5, const_m1, const_, add, sub, mul, div, rem, neg, shl, shr, new_, newarray, aload, baload,
+           arraylength, read, bread -> 1;
+      case dup -> 2;
+      case dup2 -> 4;
+      case call -> returnsValue(jumpTarget(pc)) ? 1 : 0;
+      default -> 0;
+    };
+  }
+
+  // ----- analysis
+
+  /**
+   * Computes the stack depth before every reachable instruction and marks
+   * the starts of basic blocks. Returns <code>false</code> for code that
+   * does not have the shape generated by the parser.
+   */
+  private boolean computeDepths() {
+    Arrays.fill(depth, -1);
+    for (int pc = adr; pc < end; pc += size(pc)) {
+      if (op(pc) == null) {
+        return false;
+      }
+    }
+    ArrayDeque<Integer> work = new ArrayDeque<>();
+    depth[0] = 0;
+    work.push(adr);
+    while (!work.isEmpty()) {
+      int pc = work.pop();
+      OpCode op = op(pc);
+      int after = depth[pc - adr] - pops(pc) + pushes(pc);
+      if (op == OpCode.enter) {
+        after = 0;
+      }
+      int next = pc + size(pc);
+      switch (op) {
+        case jmp -> {
+          if (!flow(jumpTarget(pc), after, work)) {
+            return false;
+          }
+          mark(jumpTarget(pc));
+          mark(next);
+        }
+        case jeq, jne, jlt, jle, jgt, jge -> {
+          if (!flow(jumpTarget(pc), after, work) || !flow(next, after, work)) {
+            return false;
+          }
+          mark(jumpTarget(pc));
+          mark(next);
+        }
+        case return_, trap -> mark(next);
+        default -> {
+          if (!flow(next, after, work)) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean flow(int to, int d, ArrayDeque<Integer> work) {
+    if (to < adr || to >= end || d < 0) {
+      return false;
+    }
+    if (depth[to - adr] < 0) {
+      depth[to - adr] = d;
+      work.push(to);
+    } else if (depth[to - adr] != d) {
+      return false;
+    }
+    return true;
+  }
+
+  private void mark(int pc) {
+    if (pc < end) {
+      leader[pc - adr] = true;
+    }
+  }
+
+  /**
+   * Follows the values of the candidates through the expression stack of
+   * every basic block and records the instructions to rewrite.
+   */
+  private void findUses() {
+    int[] stack = new int[depth.length + 2];
+    int n = 0;
+    int prev = -1;
+    for (int pc = adr; pc < end; prev = pc, pc += size(pc)) {
+      int x = localAt(pc);
+      int c = x >= 0 && x <= MAX_LOCALS ? candidate[x] : -1;
+      if (depth[pc - adr] < 0) { // unreachable
+        if (c >= 0) {
+          escapes[c] = true;
+        }
+        continue;
+      }
+      if (leader[pc - adr] || pc == adr) {
+        n = reset(stack, n, depth[pc - adr]);
+      }
+      OpCode op = op(pc);
+      if (op == OpCode.enter) {
+        continue;
+      }
+      if (c >= 0 && isLoad(op)) {
+        stack[n++] = c;
+        action[pc - adr] = DROP;
+        target[pc - adr] = c;
+      } else if (c >= 0 && op == OpCode.inc) {
+        escapes[c] = true;
+      } else if (c >= 0) { // store
+        escape(stack[--n]);
+        if (op(prev) == OpCode.new_ && !leader[pc - adr]) {
+          action[prev - adr] = ZERO;
+          target[prev - adr] = c;
+          action[pc - adr] = DROP;
+          target[pc - adr] = c;
+        } else {
+          escapes[c] = true;
+        }
+      } else if (op == OpCode.getfield && stack[n - 1] >= 0) {
+        action[pc - adr] = LOAD_FIELD;
+        target[pc - adr] = stack[n - 1];
+        stack[n - 1] = OTHER;
+      } else if (op == OpCode.putfield && stack[n - 2] >= 0) {
+        escape(stack[n - 1]);
+        action[pc - adr] = STORE_FIELD;
+        target[pc - adr] = stack[n - 2];
+        n -= 2;
+      } else if (op == OpCode.dup && stack[n - 1] >= 0) {
+        stack[n] = stack[n - 1];
+        n++;
+        action[pc - adr] = DROP;
+        target[pc - adr] = stack[n - 1];
+      } else {
+        for (int i = pops(pc); i > 0; i--) {
+          escape(stack[--n]);
+        }
+        for (int i = pushes(pc); i > 0; i--) {
+          stack[n++] = OTHER;
+        }
+      }
+    }
+  }
+
+  /**
+   * Ends a basic block: candidates left on the stack escape into the next
+   * one.
+   */
+  private int reset(int[] stack, int n, int d) {
+    for (int i = 0; i < n; i++) {
+      escape(stack[i]);
+    }
+    Arrays.fill(stack, 0, d, OTHER);
+    return d;
+  }
+
+  private void escape(int entry) {
+    if (entry >= 0) {
+      escapes[entry] = true;
+    }
+  }
+
+  /**
+   * Lets candidates escape that may be used before they are assigned, which
+   * would be a null reference.
+   */
+  private void checkAssignments() {
+    long[] in = new long[depth.length];
+    boolean[] visited = new boolean[depth.length];
+    visited[0] = true;
+    ArrayDeque<Integer> work = new ArrayDeque<>();
+    work.push(adr);
+    while (!work.isEmpty()) {
+      int pc = work.pop();
+      long out = in[pc - adr];
+      int x = localAt(pc);
+      if (x >= 0 && x <= MAX_LOCALS && candidate[x] >= 0 && !isLoad(op(pc))) {
+        out |= 1L << candidate[x];
+      }
+      int next = pc + size(pc);
+      switch (op(pc)) {
+        case jmp -> assign(jumpTarget(pc), out, in, visited, work);
+        case jeq, jne, jlt, jle, jgt, jge -> {
+          assign(jumpTarget(pc), out, in, visited, work);
+          assign(next, out, in, visited, work);
+        }
+        case return_, trap -> {
+        }
+        default -> assign(next, out, in, visited, work);
+      }
+    }
+    for (int pc = adr; pc < end; pc += size(pc)) {
+      int x = localAt(pc);
+      if (depth[pc - adr] >= 0 && x >= 0 && x <= MAX_LOCALS && candidate[x] >= 0 && isLoad(op(pc))
+              && (in[pc - adr] & 1L << candidate[x]) == 0) {
+        escapes[candidate[x]] = true;
+      }
+    }
+  }
+
+  private void assign(int to, long out, long[] in, boolean[] visited, ArrayDeque<Integer> work) {
+    long merged = visited[to - adr] ? in[to - adr] & out : out;
+    if (!visited[to - adr] || merged != in[to - adr]) {
+      visited[to - adr] = true;
+      in[to - adr] = merged;
+      work.push(to);
+    }
+  }
+
+  // ----- rewriting
+
+  /**
+   * Rewrites the method if any candidate does not escape. Returns the number
+   * of replaced candidates.
+   */
+  private int rewrite() {
+    int nVars = buf[adr + 2];
+    int[] fieldBase = new int[local.length];
+    int[] sizes = new int[local.length];
+    List<Integer> refs = new ArrayList<>();
+    int replaced = 0;
+    for (int c = 0; c < local.length; c++) {
+      Struct type = typeOf(local[c]);
+      if (escapes[c] || type == null || nVars + type.nrFields() > MAX_LOCALS) {
+        escapes[c] = true;
+        continue;
+      }
+      fieldBase[c] = nVars;
+      sizes[c] = type.nrFields();
+      for (Obj f : type.fields.values()) {
+        if (f.type.isRefType()) {
+          refs.add(nVars + f.adr);
+        }
+      }
+      nVars += type.nrFields();
+      replaced++;
+    }
+    if (replaced == 0) {
+      return 0;
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int[] map = new int[end - adr + 1];
+    List<int[]> fixups = new ArrayList<>(); // {new position, old absolute target}
+    for (int pc = adr; pc < end; pc += size(pc)) {
+      map[pc - adr] = out.size();
+      int a = escapes[target[pc - adr]] ? KEEP : action[pc - adr];
+      OpCode op = op(pc);
+      switch (a) {
+        case DROP -> {
+        }
+        case ZERO -> {
+          for (int i = 0; i < sizes[target[pc - adr]]; i++) {
+            out.write(OpCode.const_0.code());
+            putLocal(out, OpCode.store, fieldBase[target[pc - adr]] + i);
+          }
+        }
+        case LOAD_FIELD -> putLocal(out, OpCode.load, fieldBase[target[pc - adr]] + get2(pc + 1));
+        case STORE_FIELD -> putLocal(out, OpCode.store, fieldBase[target[pc - adr]] + get2(pc + 1));
+        default -> {
+          switch (op) {
+            case jmp, jeq, jne, jlt, jle, jgt, jge, call -> {
+              fixups.add(new int[]{out.size(), jumpTarget(pc)});
+              out.write(op.code());
+              out.write(0);
+              out.write(0);
+            }
+            case enter -> {
+              out.write(op.code());
+              out.write(buf[pc + 1]);
+              out.write(nVars);
+            }
+            default -> out.write(buf, pc, size(pc));
+          }
+        }
+      }
+    }
+    map[end - adr] = out.size();
+
+    byte[] b = out.toByteArray();
+    for (int[] f : fixups) {
+      int to = f[1] < adr ? f[1] : adr + map[f[1] - adr];
+      int dist = to - (adr + f[0]);
+      if (dist != (short) dist) {
+        return 0; // leave the method as it is
+      }
+      b[f[0] + 1] = (byte) (dist >> 8);
+      b[f[0] + 2] = (byte) dist;
+    }
+    code.pc = adr;
+    for (byte x : b) {
+      code.put(x);
+    }
+    code.types.relocate(adr, end, pc -> action[pc - adr] == ZERO && !escapes[target[pc - adr]] ? -1 : adr + map[pc - adr]);
+    code.types.refLocals(adr, refs.stream().mapToInt(Integer::intValue).toArray());
+    return replaced;
+  }
+
+  private Struct typeOf(int x) {
+    for (Obj o : meth.locals.values()) {
+      if (o.kind == Obj.Kind.Var && o.adr == x) {
+        return o.type;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Writes a load or store of local <code>n</code>, in its short form if
+   * there is one.
+   */
+  private static void putLocal(ByteArrayOutputStream out, OpCode op, int n) {
+    if (n < 4) {
+      out.write((op == OpCode.load ? OpCode.load_0 : OpCode.store_0).code() + n);
+    } else {
+      out.write(op.code());
+      out.write(n);
+    }
+  }
+}
@@ -0,0 +1,359 @@
+package ssw.mj.codegen;
+
+import ssw.mj.impl.Tab;
+import ssw.mj.symtab.Obj;
+import ssw.mj.symtab.Struct;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Type information for the garbage collector of the VM.
+ * <p>
+ * The code generator records the type allocated by every <code>new</code>
+ * and <code>newarray</code> instruction, the reference variables of every
+ * method and the global reference variables. {@link #write} appends the
+ * resolved tables to the object file after the code:
+ * <pre>
+ *   'G' 'C'
+ *   nTypes  { kind [nFields nRefs {offset}] }   (kind CLASS only)
+ *   nSites  { pc type }
+ *   nGlobalRefs { adr }
+ *   nMethods { adr nRefs {local} }
+ * </pre>
+ * Object files without this section are still valid, they are just run
+ * without garbage collection.
+ */
+public final class TypeDescriptors {
+
+  // ----- type kinds
+  public static final int CLASS = 0;
+  public static final int INT_ARRAY = 1;
+  public static final int CHAR_ARRAY = 2;
+  public static final int REF_ARRAY = 3;
+
+  private static final int[] NONE = new int[0];
+
+  // ----- collected by the code generator
+  private final Map<Integer, Struct> objectSites = new TreeMap<>();
+  private final Map<Integer, Struct> arraySites = new TreeMap<>();
+  private final Map<Integer, Obj> methods = new TreeMap<>();
+  private final Map<Integer, int[]> extraRefs = new TreeMap<>(); // method adr -> locals not declared
+  private Map<String, Obj> globals = Collections.emptyMap();
+
+  // ----- resolved tables
+  private int[] kinds; // kind of each type
+  private int[] sizes; // number of fields (classes only)
+  private int[][] refs; // offsets of the reference fields (classes only)
+  private int[] sitePcs, siteTypes; // sorted by pc
+  private int[] globalRefs;
+  private int[] methodAdrs; // sorted
+  private int[][] methodRefs;
+
+  public TypeDescriptors() {
+  }
+
+  // ----- code generator interface
+
+  /**
+   * Records a <code>new</code> instruction at <code>pc</code> that allocates
+   * an object of class <code>type</code>.
+   */
+  public void objectSite(int pc, Struct type) {
+    kinds = null;
+    objectSites.put(pc, type);
+  }
+
+  /**
+   * Records a <code>newarray</code> instruction at <code>pc</code>.
+   */
+  public void arraySite(int pc, Struct elemType) {
+    kinds = null;
+    arraySites.put(pc, elemType);
+  }
+
+  /**
+   * Records a method whose <code>enter</code> instruction is at
+   * <code>adr</code>. Its locals must already be set.
+   */
+  public void method(int adr, Obj meth) {
+    kinds = null;
+    methods.put(adr, meth);
+  }
+
+  /**
+   * Records reference locals of the method at <code>adr</code> that are not
+   * among its declared variables, e.g. fields promoted to locals by
+   * {@link EscapeAnalysis}.
+   */
+  public void refLocals(int adr, int[] locals) {
+    kinds = null;
+    extraRefs.put(adr, locals);
+  }
+
+  /**
+   * Moves the allocation sites in <code>[from, to)</code> to
+   * <code>map(pc)</code> after the code there has been rewritten. Sites that
+   * are mapped to -1 are dropped.
+   */
+  public void relocate(int from, int to, IntUnaryOperator map) {
+    kinds = null;
+    for (Map<Integer, Struct> sites : List.of(objectSites, arraySites)) {
+      Map<Integer, Struct> moved = new TreeMap<>();
+      Iterator<Map.Entry<Integer, Struct>> it = sites.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Integer, Struct> e = it.next();
+        if (e.getKey() >= from && e.getKey() < to) {
+          int pc = map.applyAsInt(e.getKey());
+          if (pc >= 0) {
+            moved.put(pc, e.getValue());
+          }
+          it.remove();
+        }
+      }
+      sites.putAll(moved);
+    }
+  }
+
+  public void globals(Map<String, Obj> globals) {
+    kinds = null;
+    this.globals = globals;
+  }
+
+  /**
+   * Builds the tables from the recorded declarations. Class types are
+   * resolved only now, since the fields of a singleton are not known yet
+   * when its object is allocated.
+   */
+  private void resolve() {
+    List<Struct> classes = new ArrayList<>();
+    Map<Struct, Integer> ids = new IdentityHashMap<>();
+    for (Struct type : objectSites.values()) {
+      if (!ids.containsKey(type)) {
+        ids.put(type, REF_ARRAY + 1 + classes.size());
+        classes.add(type);
+      }
+    }
+    int n = REF_ARRAY + 1 + classes.size();
+    kinds = new int[n];
+    sizes = new int[n];
+    refs = new int[n][];
+    for (int t = INT_ARRAY; t <= REF_ARRAY; t++) {
+      kinds[t] = t;
+      refs[t] = NONE;
+    }
+    refs[CLASS] = NONE; // unused
+    for (int i = 0; i < classes.size(); i++) {
+      Struct type = classes.get(i);
+      int t = REF_ARRAY + 1 + i;
+      kinds[t] = CLASS;
+      sizes[t] = type.nrFields();
+      refs[t] = refAdrs(type.fields);
+    }
+
+    sitePcs = new int[objectSites.size() + arraySites.size()];
+    siteTypes = new int[sitePcs.length];
+    TreeMap<Integer, Integer> sites = new TreeMap<>();
+    objectSites.forEach((pc, type) -> sites.put(pc, ids.get(type)));
+    arraySites.forEach((pc, elemType) -> sites.put(pc, arrayType(elemType)));
+    int i = 0;
+    for (Map.Entry<Integer, Integer> e : sites.entrySet()) {
+      sitePcs[i] = e.getKey();
+      siteTypes[i] = e.getValue();
+      i++;
+    }
+
+    globalRefs = refAdrs(globals);
+    methodAdrs = new int[methods.size()];
+    methodRefs = new int[methods.size()][];
+    i = 0;
+    for (Map.Entry<Integer, Obj> e : methods.entrySet()) {
+      methodAdrs[i] = e.getKey();
+      methodRefs[i] = refAdrs(e.getValue().locals);
+      int[] extra = extraRefs.get(e.getKey());
+      if (extra != null) {
+        methodRefs[i] = IntStream.concat(Arrays.stream(methodRefs[i]), Arrays.stream(extra)).sorted().toArray();
+      }
+      i++;
+    }
+  }
+
+  private static int arrayType(Struct elemType) {
+    if (elemType == Tab.charType) {
+      return CHAR_ARRAY;
+    }
+    return elemType.isRefType() ? REF_ARRAY : INT_ARRAY;
+  }
+
+  /**
+   * Addresses of the reference variables among <code>vars</code>.
+   */
+  private static int[] refAdrs(Map<String, Obj> vars) {
+    return vars.values().stream()
+            .filter(o -> o.kind == Obj.Kind.Var && o.type.isRefType())
+            .mapToInt(o -> o.adr)
+            .sorted()
+            .toArray();
+  }
+
+  public void write(DataOutputStream out) throws IOException {
+    resolved();
+    out.writeByte('G');
+    out.writeByte('C');
+    out.writeInt(kinds.length);
+    for (int t = 0; t < kinds.length; t++) {
+      out.writeByte(kinds[t]);
+      if (kinds[t] == CLASS) {
+        out.writeInt(sizes[t]);
+        writeInts(out, refs[t]);
+      }
+    }
+    out.writeInt(sitePcs.length);
+    for (int i = 0; i < sitePcs.length; i++) {
+      out.writeInt(sitePcs[i]);
+      out.writeInt(siteTypes[i]);
+    }
+    writeInts(out, globalRefs);
+    out.writeInt(methodAdrs.length);
+    for (int i = 0; i < methodAdrs.length; i++) {
+      out.writeInt(methodAdrs[i]);
+      writeInts(out, methodRefs[i]);
+    }
+  }
+
+  /**
+   * Reads the tables that follow the code in an object file. Returns
+   * <code>null</code> if the file ends after the code.
+   */
+  public static TypeDescriptors read(DataInputStream in) throws IOException {
+    int g = in.read();
+    if (g == -1) {
+      return null;
+    }
+    if (g != 'G' || in.read() != 'C') {
+      throw new IOException("wrong type descriptor marker");
+    }
+    try {
+      TypeDescriptors td = new TypeDescriptors();
+      int n = in.readInt();
+      td.kinds = new int[n];
+      td.sizes = new int[n];
+      td.refs = new int[n][];
+      for (int t = 0; t < n; t++) {
+        td.kinds[t] = in.readByte();
+        if (td.kinds[t] == CLASS) {
+          td.sizes[t] = in.readInt();
+          td.refs[t] = readInts(in);
+        } else {
+          td.refs[t] = NONE;
+        }
+      }
+      n = in.readInt();
+      td.sitePcs = new int[n];
+      td.siteTypes = new int[n];
+      for (int i = 0; i < n; i++) {
+        td.sitePcs[i] = in.readInt();
+        td.siteTypes[i] = in.readInt();
+        if (td.siteTypes[i] < 0 || td.siteTypes[i] >= td.kinds.length) {
+          throw new IOException("invalid type " + td.siteTypes[i]);
+        }
+      }
+      td.globalRefs = readInts(in);
+      n = in.readInt();
+      td.methodAdrs = new int[n];
+      td.methodRefs = new int[n][];
+      for (int i = 0; i < n; i++) {
+        td.methodAdrs[i] = in.readInt();
+        td.methodRefs[i] = readInts(in);
+      }
+      return td;
+    } catch (EOFException | NegativeArraySizeException e) {
+      throw new IOException("truncated type descriptors");
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+    out.writeInt(a.length);
+    for (int x : a) {
+      out.writeInt(x);
+    }
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    int[] a = new int[in.readInt()];
+    for (int i = 0; i < a.length; i++) {
+      a[i] = in.readInt();
+    }
+    return a;
+  }
+
+  // ----- VM interface
+
+  /**
+   * Resolves the tables if they are not up to date with the recorded
+   * declarations, e.g. when the descriptors come directly from the code
+   * generator instead of an object file.
+   */
+  private void resolved() {
+    if (kinds == null) {
+      resolve();
+    }
+  }
+
+  public int types() {
+    resolved();
+    return kinds.length;
+  }
+
+  public int kind(int type) {
+    resolved();
+    return kinds[type];
+  }
+
+  /**
+   * Number of fields of class <code>type</code>.
+   */
+  public int size(int type) {
+    resolved();
+    return sizes[type];
+  }
+
+  /**
+   * Offsets of the reference fields of class <code>type</code>.
+   */
+  public int[] refs(int type) {
+    resolved();
+    return refs[type];
+  }
+
+  /**
+   * Type allocated by the instruction at <code>pc</code>, or -1.
+   */
+  public int typeAt(int pc) {
+    resolved();
+    int i = Arrays.binarySearch(sitePcs, pc);
+    return i < 0 ? -1 : siteTypes[i];
+  }
+
+  public int[] globalRefs() {
+    resolved();
+    return globalRefs;
+  }
+
+  /**
+   * Reference locals of the method containing <code>pc</code>.
+   */
+  public int[] frameRefs(int pc) {
+    resolved();
+    int i = Arrays.binarySearch(methodAdrs, pc);
+    if (i < 0) {
+      i = -i - 2; // last method starting before pc
+    }
+    return i < 0 ? NONE : methodRefs[i];
+  }
+}
@@ -3,6 +3,8 @@ package ssw.mj.impl;
 import ssw.mj.Errors;
 import ssw.mj.codegen.Label;
 import ssw.mj.codegen.Operand;
+import ssw.mj.codegen.TypeDescriptors;
+import ssw.mj.symtab.Obj;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -84,11 +86,13 @@ public final class Code {
       return name;
     }
 
+    private static final OpCode[] values = values();
+
     public static OpCode get(int code) {
-      if (code < 1 || code > values().length) {
+      if (code < 1 || code > values.length) {
         return null;
       }
-      return values()[code - 1];
+      return values[code - 1];
     }
   }
 
@@ -145,6 +149,16 @@ public final class Code {
    */
   public int dataSize;
 
+  /**
+   * Type information for the garbage collector (filled by parser).
+   */
+  public final TypeDescriptors types = new TypeDescriptors();
+
+  /**
+   * PC of the last call instruction (set by methodCall).
+   */
+  private int lastCall = -1;
+
   /**
    * According parser.
    */
@@ -208,6 +222,9 @@ public final class Code {
     os.write(header.toByteArray());
 
     os.write(buf, 0, codeSize);
+    DataOutputStream typeWriter = new DataOutputStream(os);
+    types.write(typeWriter);
+    typeWriter.flush();
     os.flush();
     os.close();
   }
@@ -267,15 +284,7 @@ public final class Code {
   public void assign(Operand x, Operand y) {
     load(y);
     switch (x.kind) {
-      case Local:
-        switch (x.adr) {
-          case 0: put(OpCode.store_0); break;
-          case 1: put(OpCode.store_1); break;
-          case 2: put(OpCode.store_2); break;
-          case 3: put(OpCode.store_3); break;
-          default: put(OpCode.store); put(x.adr); break;
-        }
-        break;
+      case Local: store(x.adr); break;
       case Static: put(OpCode.putstatic); put2(x.adr); break;
       case Fld: put(OpCode.putfield); put2(x.adr); break;
       case Elem:
@@ -286,6 +295,16 @@ public final class Code {
     }
   }
 
+  private void store(int adr) {
+    switch (adr) {
+      case 0: put(OpCode.store_0); break;
+      case 1: put(OpCode.store_1); break;
+      case 2: put(OpCode.store_2); break;
+      case 3: put(OpCode.store_3); break;
+      default: put(OpCode.store); put(adr); break;
+    }
+  }
+
   /**
    * Generate an increment instruction that increments x by n.
    */
@@ -331,11 +350,37 @@ public final class Code {
     } else if(x.obj == parser.tab.lenObj) {
       put(OpCode.arraylength);
     } else {
+      lastCall = pc;
       put(OpCode.call);
       put2(x.adr - (pc - 1));
     }
   }
 
+  /**
+   * Turns a call of method <code>m</code> that was just generated as the
+   * value of a return statement of <code>m</code> into a jump behind its
+   * <code>enter</code>: the arguments on the stack are stored into the
+   * parameters and the other <code>nVars</code> locals are cleared, as
+   * <code>enter</code> would do. Returns false if the code does not end
+   * with such a call.
+   */
+  public boolean tailCall(Obj m, int nVars) {
+    if (lastCall != pc - 3 || lastCall + (short) ((buf[pc - 2] << 8) + (buf[pc - 1] & 0xff)) != m.adr) {
+      return false;
+    }
+    pc = lastCall;
+    for (int i = m.nPars - 1; i >= 0; i--) {
+      store(i);
+    }
+    for (int i = m.nPars; i < nVars; i++) {
+      put(OpCode.const_0);
+      store(i);
+    }
+    put(OpCode.jmp);
+    put2(m.adr + 3 - (pc - 1));
+    return true;
+  }
+
   /**
    * Unconditional jump.
    */
@@ -1,6 +1,7 @@
 package ssw.mj.impl;
 
 import ssw.mj.Errors.Message;
+import ssw.mj.codegen.EscapeAnalysis;
 import ssw.mj.codegen.Label;
 import ssw.mj.codegen.Operand;
 import ssw.mj.scanner.Token;
@@ -67,6 +68,16 @@ public final class Parser {
   public final Tab tab;
 
 
+  /**
+   * Replace objects that do not escape their method by locals (see {@link EscapeAnalysis})
+   */
+  public boolean scalarReplacement;
+
+  /**
+   * Compile <code>return m(...)</code> in method <code>m</code> into a jump to the start of <code>m</code>
+   */
+  public boolean tailCalls;
+
   Label breakLab;
   Stack<Label> breaks = new Stack<>();
   Obj curMethod;
@@ -190,6 +201,7 @@ public final class Parser {
       error(MAIN_NOT_FOUND);
     }
     prog.locals = tab.curScope.locals();
+    code.types.globals(prog.locals);
     code.dataSize = tab.curScope.nVars();
     tab.closeScope();
   }
@@ -286,6 +298,7 @@ public final class Parser {
       VarDecl();
     }
 
+    code.types.objectSite(code.pc, singleton.type);
     code.put(Code.OpCode.new_);
     code.put2(tab.curScope.nVars());
     code.assign(new Operand(singleton, this), new Operand(Tab.noType));
@@ -394,6 +407,7 @@ public final class Parser {
     }
     curMethod.locals = tab.curScope.locals();
     curMethod.adr = code.pc;
+    code.types.method(code.pc, curMethod);
     code.put(Code.OpCode.enter);
 
     code.put(curMethod.nPars);
@@ -414,6 +428,9 @@ public final class Parser {
       code.put(Code.OpCode.trap);
       code.put(1);
     }
+    if (scalarReplacement && scanner.errors.numErrors() == 0) {
+      EscapeAnalysis.run(code, curMethod);
+    }
 
     tab.closeScope();
   }
@@ -586,6 +603,10 @@ public final class Parser {
           if(!x.type.assignableTo(curMethod.type)) {
             error(NON_MATCHING_RETURN_TYPE);
           }
+          if (tailCalls && code.tailCall(curMethod, tab.curScope.nVars())) {
+            check(semicolon);
+            break;
+          }
         } else if(curMethod.type != Tab.noType) {
             error(RETURN_NO_VAL);
         }
@@ -895,6 +916,7 @@ public final class Parser {
             error(ARRAY_SIZE);
           }
           code.load(x);
+          code.types.arraySite(code.pc, type);
           code.put(Code.OpCode.newarray);
           if (type == Tab.charType) {
             code.put(0);
@@ -908,6 +930,9 @@ public final class Parser {
           if(obj.kind != Obj.Kind.Type || type.kind != Struct.Kind.Class) {
             error(NO_CLASS_TYPE);
           }
+          if (type.kind == Struct.Kind.Class) {
+            code.types.objectSite(code.pc, type);
+          }
           code.put(Code.OpCode.new_);
           code.put2(type.nrFields());
         }
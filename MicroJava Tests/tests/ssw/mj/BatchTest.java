@@ -0,0 +1,125 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.test.support.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A {@link Batch} must return the results in the order of the inputs, also
+ * when the runs finish in another order, and a failed run must not affect
+ * the others.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class BatchTest {
+
+  private static final int RUNS = 24;
+
+  /**
+   * Takes time proportional to n and prints the sum of 0..n-1 and n.
+   * Traps for n = 0.
+   */
+  private static final String PROGRAM = """
+          program Test
+          {
+            void main() int i, n, sum; {
+              read(n);
+              sum = 0;
+              i = 0;
+              while (i < n * 1000) {
+                sum = sum + i % n;
+                i++;
+              }
+              print(sum); print(' '); print(100 / n);
+            }
+          }
+          """;
+
+  private static String expected(int n) {
+    return 1000 * (n * (n - 1) / 2) + " " + 100 / n;
+  }
+
+  /**
+   * The first inputs take longest, so that they finish last.
+   */
+  private static List<Path> inputs(Path dir) throws IOException {
+    List<Path> inputs = new ArrayList<>();
+    for (int i = 0; i < RUNS; i++) {
+      Path input = dir.resolve("input" + i);
+      Files.writeString(input, String.valueOf(i == RUNS / 2 ? 0 : RUNS - i));
+      inputs.add(input);
+    }
+    return inputs;
+  }
+
+  private static void check(List<Path> inputs, List<Batch.Result> results) {
+    assertEquals(inputs.size(), results.size());
+    for (int i = 0; i < RUNS; i++) {
+      Batch.Result r = results.get(i);
+      assertEquals(inputs.get(i), r.input);
+      if (i == RUNS / 2) {
+        assertNotNull(r.error, "division by zero");
+      } else {
+        assertNull(r.error, r.input.toString());
+        assertEquals(expected(RUNS - i), r.output, r.input.toString());
+      }
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path f : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(f);
+      }
+    }
+  }
+
+  @Test
+  public void resultsInInputOrder() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    Path dir = Files.createTempDirectory("batch");
+    ExecutorService pool = new ForkJoinPool(4);
+    try {
+      List<Path> inputs = inputs(dir);
+      Batch batch = new Batch(p, Programs.options(Interpreter.ConsoleIO), 4, 0);
+      check(inputs, batch.run(inputs, pool));
+      // the interpreters of the first batch are reused
+      check(inputs, batch.run(inputs, pool));
+    } finally {
+      pool.shutdown();
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void timeSlicedResultsInInputOrder() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    Path dir = Files.createTempDirectory("batch");
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      List<Path> inputs = inputs(dir);
+      for (Interpreter.Engine engine : new Interpreter.Engine[]{Interpreter.Engine.SWITCH,
+              Interpreter.Engine.THREADED, Interpreter.Engine.REGISTER}) {
+        Run.Options opts = Programs.options(Interpreter.ConsoleIO);
+        opts.engine = engine;
+        // runs are suspended and continued many times
+        check(inputs, new Batch(p, opts, 3, 500).run(inputs, pool));
+      }
+    } finally {
+      pool.shutdown();
+      delete(dir);
+    }
+  }
+}
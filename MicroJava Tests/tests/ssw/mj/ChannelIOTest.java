@@ -0,0 +1,110 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.test.support.Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link ChannelIO} must write the same bytes as {@link Interpreter#ConsoleIO}
+ * with the same charset, also when the output takes several buffers.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class ChannelIOTest {
+
+  /**
+   * Prints a prompt, then n numbers, each followed by an ASCII, a Latin-1
+   * or a char that needs three bytes in UTF-8.
+   */
+  private static final String PROGRAM = """
+          program Test
+          {
+            void main() int i, n; char c; {
+              print('n'); print('?');
+              read(n);
+              i = 0;
+              while (i < n) {
+                print(i, 6);
+                if (i % 3 == 0) c = chr(65 + i % 26);
+                else if (i % 3 == 1) c = chr(224 + i % 26);
+                else c = chr(8364);
+                print(c);
+                i++;
+              }
+            }
+          }
+          """;
+
+  private static byte[] runOnConsole(Run.Program p, String input, Charset charset) {
+    PrintStream out = System.out;
+    InputStream in = System.in;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      System.setOut(new PrintStream(bytes, true, charset));
+      System.setIn(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)));
+      p.newInterpreter(Programs.options(Interpreter.ConsoleIO)).run();
+    } finally {
+      System.setOut(out);
+      System.setIn(in);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] runOnChannel(Run.Program p, InputStream input, ByteArrayOutputStream bytes,
+                                     Charset charset) {
+    try (ChannelIO io = new ChannelIO(input, Channels.newChannel(bytes), charset)) {
+      p.newInterpreter(Programs.options(io)).run();
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void sameAsConsole() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    // 200000 bytes and more, several times the size of a buffer
+    for (Charset charset : new Charset[]{StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+      byte[] expected = runOnConsole(p, "30000", charset);
+      assertTrue(expected.length > 200000);
+      byte[] actual = runOnChannel(p, new ByteArrayInputStream("30000".getBytes(StandardCharsets.US_ASCII)),
+              new ByteArrayOutputStream(), charset);
+      assertArrayEquals(expected, actual, charset.name());
+    }
+  }
+
+  @Test
+  public void promptWrittenBeforeBlockingRead() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    String[] prompt = new String[1];
+    // has nothing available, as a terminal before the user has typed
+    InputStream input = new InputStream() {
+      private final ByteArrayInputStream typed = new ByteArrayInputStream("2".getBytes(StandardCharsets.US_ASCII));
+
+      @Override
+      public int read() {
+        if (prompt[0] == null) {
+          prompt[0] = bytes.toString(StandardCharsets.UTF_8);
+        }
+        return typed.read();
+      }
+
+      @Override
+      public int available() {
+        return 0;
+      }
+    };
+    byte[] output = runOnChannel(p, input, bytes, StandardCharsets.UTF_8);
+    assertEquals("n?", prompt[0]);
+    assertEquals("n?     0A     1\u00e1", new String(output, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,40 @@
+package ssw.mj;
+
+import ssw.mj.codegen.TypeDescriptors;
+
+/**
+ * Runs a program on the engines of the {@link Interpreter} in all the
+ * variants that {@link Run} can select, so that the tests can check them
+ * against {@link Interpreter.Engine#SWITCH}. Lives in package
+ * <code>ssw.mj</code> to reach the switches that are not public.
+ */
+public final class Engines {
+
+  public enum Variant {
+    THREADED, // unified frames and superinstructions
+    THREADED_PLAIN, // without superinstructions
+    JIT, // default thresholds
+    JIT_EAGER, // every method compiled at its first call, every loop traced at its first iteration
+    REGISTER,
+    CLOSURE
+  }
+
+  private Engines() {
+  }
+
+  public static String run(Variant variant, byte[] code, int startPC, int dataSize, TypeDescriptors types,
+                           String input, boolean debug) {
+    Interpreter.Engine engine = switch (variant) {
+      case THREADED, THREADED_PLAIN -> Interpreter.Engine.THREADED;
+      case JIT, JIT_EAGER -> Interpreter.Engine.JIT;
+      case REGISTER -> Interpreter.Engine.REGISTER;
+      case CLOSURE -> Interpreter.Engine.CLOSURE;
+    };
+    Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+    Interpreter vm = new Interpreter(code, startPC, dataSize, types, io, debug, engine);
+    vm.superinstructions = variant != Variant.THREADED_PLAIN;
+    vm.eagerJit = variant == Variant.JIT_EAGER;
+    vm.run();
+    return io.getOutput();
+  }
+}
@@ -0,0 +1,124 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.test.support.Configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A program that runs out of fuel (see {@link Interpreter#setFuel}) must be
+ * aborted, or suspended and continued where it stopped, on every engine.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class FuelTest {
+
+  /**
+   * Loops, calls and allocates, and prints along the way. Loops forever
+   * for a negative input.
+   */
+  private static final String PROGRAM = """
+          program Test
+            class Node { int val; Node next; }
+          {
+            int fib(int n) {
+              if (n < 2) return n;
+              return fib(n - 1) + fib(n - 2);
+            }
+
+            void main() int i, n; Node list, p; {
+              read(n);
+              while (n < 0) n--;
+              i = 0;
+              while (i < n) {
+                p = new Node; p.val = fib(i % 15); p.next = list; list = p;
+                if (i % 10 == 0) { print(i); print(' '); }
+                i++;
+              }
+              i = 0;
+              while (list != null) { i = i + list.val; list = list.next; }
+              print(i);
+            }
+          }
+          """;
+
+  private static Interpreter newInterpreter(Run.Program p, Interpreter.Engine engine, Interpreter.IO io) {
+    Run.Options opts = Programs.options(io);
+    opts.engine = engine;
+    return p.newInterpreter(opts);
+  }
+
+  @Test
+  public void outOfFuel() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      Interpreter vm = newInterpreter(p, engine, new Interpreter.BufferIO("-1"));
+      vm.setFuel(10000, false);
+      IllegalStateException e = assertThrows(IllegalStateException.class, vm::run, engine.toString());
+      assertEquals("out of fuel", e.getMessage(), engine.toString());
+      assertFalse(vm.isSuspended(), engine.toString());
+    }
+  }
+
+  @Test
+  public void suspendAndContinue() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    Interpreter.BufferIO unmetered = new Interpreter.BufferIO("300");
+    newInterpreter(p, Interpreter.Engine.SWITCH, unmetered).run();
+    String expected = unmetered.getOutput();
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      for (long slice : new long[]{1, 7, 1000}) {
+        Interpreter.BufferIO io = new Interpreter.BufferIO("300");
+        Interpreter vm = newInterpreter(p, engine, io);
+        int slices = 0;
+        do {
+          vm.setFuel(slice, true);
+          vm.run();
+          slices++;
+        } while (vm.isSuspended());
+        assertEquals(expected, io.getOutput(), engine + " in slices of " + slice);
+        assertTrue(slices > 1, engine + " was never suspended");
+      }
+    }
+  }
+
+  @Test
+  public void scheduler() throws IOException, InterruptedException, ExecutionException {
+    Run.Program p = Programs.compile(PROGRAM);
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      Scheduler scheduler = new Scheduler(pool, 50, 1000000);
+      String[] inputs = {"400", "-1", "20", "150", "0"};
+      List<Interpreter.BufferIO> ios = new ArrayList<>();
+      List<CompletableFuture<Scheduler.Job>> jobs = new ArrayList<>();
+      for (String input : inputs) {
+        Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+        ios.add(io);
+        jobs.add(scheduler.submit(newInterpreter(p, Interpreter.Engine.THREADED, io)));
+      }
+      for (int i = 0; i < inputs.length; i++) {
+        Scheduler.Job job = jobs.get(i).get();
+        if (inputs[i].equals("-1")) {
+          assertNotNull(job.error, "endless loop");
+          assertEquals("out of fuel", job.error.getMessage());
+          assertEquals(1000000, job.used);
+        } else {
+          assertNull(job.error, "input " + inputs[i]);
+          Interpreter.BufferIO expected = new Interpreter.BufferIO(inputs[i]);
+          newInterpreter(p, Interpreter.Engine.SWITCH, expected).run();
+          assertEquals(expected.getOutput(), ios.get(i).getOutput(), "input " + inputs[i]);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.test.support.Configuration;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * An interpreter that was {@link Interpreter#reset reset} by an
+ * {@link InterpreterPool} must run the program as a new one does, whatever
+ * the previous run left behind.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class InterpreterPoolTest {
+
+  /**
+   * Prints globals, fields and array elements before they are assigned,
+   * which must be 0 in every run, and leaves the globals, the heap and the
+   * stack dirty. Traps for n = 0.
+   */
+  private static final String PROGRAM = """
+          program Test
+            class Node { int val; Node next; }
+            int total; Node list; int[] seen;
+          {
+            int depth(int n) {
+              if (n == 0) return 0;
+              return depth(n - 1) + 1;
+            }
+
+            void main() int i, n; Node p; {
+              read(n);
+              print(total); print(' ');
+              if (list != null) print('!');
+              if (seen != null) print('?');
+              seen = new int[n + 1];
+              i = 0;
+              while (i < n) {
+                p = new Node; p.next = list; list = p;
+                total = total + p.val + seen[i] + i;
+                seen[i] = i;
+                i++;
+              }
+              print(total); print(' ');
+              print(depth(n % 50)); print(' ');
+              print(100 / n);
+            }
+          }
+          """;
+
+  private static final String[] INPUTS = {"50", "3", "0", "200", "7", "1"};
+
+  private static String run(Interpreter vm, Interpreter.BufferIO io) {
+    try {
+      vm.run();
+    } catch (RuntimeException e) {
+      return io.getOutput() + " trap";
+    }
+    return io.getOutput();
+  }
+
+  private static void checkReset(Run.Program p, Run.Options opts, String config) {
+    InterpreterPool pool = new InterpreterPool(p, opts, 1);
+    for (String input : INPUTS) {
+      Interpreter.BufferIO fresh = new Interpreter.BufferIO(input);
+      Run.Options o = opts.copy();
+      o.io = fresh;
+      String expected = run(p.newInterpreter(o), fresh);
+
+      Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+      Interpreter vm = pool.acquire(io);
+      assertEquals(expected, run(vm, io), config + " with input " + input);
+      pool.release(vm);
+    }
+    assertEquals(1, pool.created(), config + " interpreters");
+  }
+
+  @Test
+  public void resetRunsLikeNew() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      Run.Options opts = Programs.options(Interpreter.ConsoleIO);
+      opts.engine = engine;
+      checkReset(p, opts, engine.toString());
+    }
+    Run.Options opts = Programs.options(Interpreter.ConsoleIO);
+    opts.offHeap = true;
+    checkReset(p, opts, "off-heap");
+  }
+
+  @Test
+  public void resetAfterOutOfFuel() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    Run.Options opts = Programs.options(Interpreter.ConsoleIO);
+    opts.fuel = 100;
+    InterpreterPool pool = new InterpreterPool(p, opts, 1);
+
+    Interpreter.BufferIO io = new Interpreter.BufferIO("200");
+    Interpreter vm = pool.acquire(io);
+    IllegalStateException e = assertThrows(IllegalStateException.class, vm::run);
+    assertEquals("out of fuel", e.getMessage());
+    pool.release(vm);
+
+    // the pooled interpreter gets the full fuel again
+    io = new Interpreter.BufferIO("3");
+    assertSame(vm, pool.acquire(io));
+    vm.run();
+    assertEquals("0 3 3 33", io.getOutput());
+  }
+
+  @Test
+  public void boundedCapacity() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    InterpreterPool pool = new InterpreterPool(p, Programs.options(Interpreter.ConsoleIO), 2);
+    Interpreter a = pool.acquire(new Interpreter.BufferIO(""));
+    Interpreter b = pool.acquire(new Interpreter.BufferIO(""));
+    Interpreter c = pool.acquire(new Interpreter.BufferIO(""));
+    assertEquals(3, pool.created());
+    pool.release(a);
+    pool.release(b);
+    pool.release(c); // dropped
+    assertSame(a, pool.acquire(new Interpreter.BufferIO("")));
+    assertSame(b, pool.acquire(new Interpreter.BufferIO("")));
+    pool.acquire(new Interpreter.BufferIO(""));
+    assertEquals(4, pool.created());
+  }
+}
@@ -0,0 +1,131 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.test.support.Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link MappedIO} must read numbers and bytes as {@link Interpreter#ConsoleIO}
+ * reads them from a piped file.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class MappedIOTest {
+
+  /**
+   * Reads n numbers, then prints the codes of the remaining bytes up to the
+   * end of the input.
+   */
+  private static final String PROGRAM = """
+          program Test
+          {
+            void main() int i, n, x; char c; {
+              read(n);
+              i = 0;
+              while (i < n) {
+                read(x); print(x); print(' ');
+                i++;
+              }
+              read(c);
+              while (ord(c) != 0) {
+                print(ord(c)); print(' ');
+                read(c);
+              }
+              read(c); print(ord(c));
+            }
+          }
+          """;
+
+  /**
+   * Numbers with signs, text and a '-' that is not right before the digits,
+   * followed by bytes that are not ASCII. Reading the last number consumes
+   * the '\n' after it.
+   */
+  private static byte[] input() {
+    ByteArrayOutputStream b = new ByteArrayOutputStream();
+    b.writeBytes("4 -12 abc-7 - 3x2147483647".getBytes(StandardCharsets.US_ASCII));
+    for (int v : new int[]{'\n', 0xe4, 0x80, 0xff, 'z'}) {
+      b.write(v);
+    }
+    return b.toByteArray();
+  }
+
+  private static String runOnConsole(Run.Program p, byte[] input) {
+    PrintStream out = System.out;
+    InputStream in = System.in;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+      System.setIn(new ByteArrayInputStream(input));
+      p.newInterpreter(Programs.options(Interpreter.ConsoleIO)).run();
+    } finally {
+      System.setOut(out);
+      System.setIn(in);
+    }
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void sameAsConsole() throws IOException {
+    Run.Program p = Programs.compile(PROGRAM);
+    byte[] input = input();
+    String expected = runOnConsole(p, input);
+    assertEquals("-12 -7 3 2147483647 228 128 255 122 0", expected);
+
+    Path file = Files.createTempFile("input", ".txt");
+    try {
+      Files.write(file, input);
+      Interpreter.BufferIO output = new Interpreter.BufferIO("");
+      try (MappedIO io = new MappedIO(file, output)) {
+        p.newInterpreter(Programs.options(io)).run();
+      }
+      assertEquals(expected, output.getOutput(), "mapped file");
+    } finally {
+      Files.delete(file);
+    }
+
+    // only the bytes between position and limit are input
+    ByteBuffer buf = ByteBuffer.allocate(input.length + 20);
+    buf.position(10);
+    buf.put(input);
+    buf.flip().position(10);
+    Interpreter.BufferIO output = new Interpreter.BufferIO("");
+    p.newInterpreter(Programs.options(new MappedIO(buf, output))).run();
+    assertEquals(expected, output.getOutput(), "byte buffer");
+  }
+
+  @Test
+  public void emptyFile() throws IOException {
+    Run.Program p = Programs.compile("""
+            program Test
+            {
+              void main() char c; {
+                read(c); print(ord(c));
+                read(c); print(ord(c));
+              }
+            }
+            """);
+    Path file = Files.createTempFile("input", ".txt");
+    try {
+      Interpreter.BufferIO output = new Interpreter.BufferIO("");
+      try (MappedIO io = new MappedIO(file, output)) {
+        p.newInterpreter(Programs.options(io)).run();
+      }
+      assertEquals(runOnConsole(p, new byte[0]), output.getOutput());
+      assertEquals("00", output.getOutput());
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package ssw.mj;
+
+import ssw.mj.impl.Parser;
+import ssw.mj.impl.Scanner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compiles test programs into a {@link Run.Program}, as {@link Run} loads
+ * them from an object file.
+ */
+final class Programs {
+
+  private Programs() {
+  }
+
+  static Run.Program compile(String source) throws IOException {
+    Scanner scanner = new Scanner(new StringReader(source));
+    Parser parser = new Parser(scanner);
+    parser.parse();
+    assertEquals(0, scanner.errors.numErrors(), scanner.errors.dump());
+    Path file = Files.createTempFile("program", ".obj");
+    try {
+      try (OutputStream out = Files.newOutputStream(file)) {
+        parser.code.write(out);
+      }
+      return Run.Program.read(file.toString());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Options of {@link Run} without flags, reading and writing
+   * <code>io</code>.
+   */
+  static Run.Options options(Interpreter.IO io) {
+    Run.Options opts = new Run.Options();
+    opts.io = io;
+    return opts;
+  }
+}
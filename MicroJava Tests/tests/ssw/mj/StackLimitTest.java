@@ -0,0 +1,150 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.test.support.Configuration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * A program that overflows the method stack or the expression stack must
+ * trap at the same call on every engine and in the program generated by
+ * {@link AotCompiler}.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class StackLimitTest {
+
+  /**
+   * Every level of the recursion keeps one operand on the expression stack
+   * and needs three more, so that the level 29 does not fit into the
+   * 30 words.
+   */
+  private static final String OPERANDS = """
+          program Test
+          {
+            int fact(int n) {
+              if (n <= 1) return 1;
+              return n + fact(n - 1);
+            }
+
+            void main() int n; {
+              read(n);
+              print(fact(n));
+            }
+          }
+          """;
+
+  /**
+   * Every level of the recursion charges 4 words against the method stack,
+   * main() 2.
+   */
+  private static final String FRAMES = """
+          program Test
+          {
+            int depth(int n) int d; {
+              if (n == 0) return 0;
+              d = depth(n - 1);
+              return d + 1;
+            }
+
+            void main() int n; {
+              read(n);
+              print(depth(n));
+            }
+          }
+          """;
+
+  private static Map<String, Run.Options> configurations(int stackSize) {
+    Map<String, Run.Options> configs = new LinkedHashMap<>();
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      Run.Options opts = Programs.options(Interpreter.ConsoleIO);
+      opts.engine = engine;
+      opts.stackSize = stackSize;
+      configs.put(engine.toString(), opts);
+    }
+    Run.Options opts = Programs.options(Interpreter.ConsoleIO);
+    opts.offHeap = true;
+    opts.stackSize = stackSize;
+    configs.put("off-heap", opts);
+    return configs;
+  }
+
+  private static String run(Run.Program p, Run.Options opts, int input) {
+    Interpreter.BufferIO io = new Interpreter.BufferIO(String.valueOf(input));
+    Run.Options o = opts.copy();
+    o.io = io;
+    try {
+      p.newInterpreter(o).run();
+    } catch (IllegalStateException e) {
+      return io.getOutput() + "-- " + e.getMessage();
+    }
+    return io.getOutput();
+  }
+
+  /**
+   * Runs the class that {@link AotCompiler} generates for <code>p</code>,
+   * which has the default stack size.
+   */
+  private static String runCompiled(Run.Program p, int input) throws IOException, ReflectiveOperationException {
+    byte[] clazz = AotCompiler.generate(p.code, p.code.length, p.dataSize, p.startPC, "Test");
+    Class<?> main = new ClassLoader(StackLimitTest.class.getClassLoader()) {
+      Class<?> define() {
+        return defineClass("Test", clazz, 0, clazz.length);
+      }
+    }.define();
+    PrintStream out = System.out;
+    InputStream in = System.in;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+      System.setIn(new ByteArrayInputStream(String.valueOf(input).getBytes(StandardCharsets.US_ASCII)));
+      main.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+    } catch (InvocationTargetException e) {
+      if (!(e.getCause() instanceof IllegalStateException)) {
+        throw e;
+      }
+      return bytes.toString(StandardCharsets.UTF_8) + "-- " + e.getCause().getMessage();
+    } finally {
+      System.setOut(out);
+      System.setIn(in);
+    }
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+  private static void check(String program, int stackSize, int input, String expected)
+          throws IOException, ReflectiveOperationException {
+    Run.Program p = Programs.compile(program);
+    for (Map.Entry<String, Run.Options> config : configurations(stackSize).entrySet()) {
+      assertEquals(expected, run(p, config.getValue(), input), config.getKey() + " with input " + input);
+    }
+    if (stackSize == Interpreter.DEFAULT_STACK_SIZE) {
+      assertEquals(expected, runCompiled(p, input), "jar with input " + input);
+    }
+  }
+
+  @Test
+  public void expressionStackOverflow() throws IOException, ReflectiveOperationException {
+    check(OPERANDS, Interpreter.DEFAULT_STACK_SIZE, 28, "406");
+    check(OPERANDS, Interpreter.DEFAULT_STACK_SIZE, 29, "-- expression stack overflow");
+    // also when the method stack would overflow later
+    check(OPERANDS, Interpreter.DEFAULT_STACK_SIZE, 1000, "-- expression stack overflow");
+  }
+
+  @Test
+  public void methodStackOverflow() throws IOException, ReflectiveOperationException {
+    check(FRAMES, Interpreter.DEFAULT_STACK_SIZE, 998, "998");
+    check(FRAMES, Interpreter.DEFAULT_STACK_SIZE, 999, "-- method stack overflow");
+    check(FRAMES, 100, 23, "23");
+    check(FRAMES, 100, 24, "-- method stack overflow");
+  }
+}
@@ -0,0 +1,106 @@
+package ssw.mj;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.impl.Code.OpCode;
+import ssw.mj.test.support.Configuration;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Object files with malformed code must be rejected when they are loaded
+ * (see {@link Verifier}), since the threaded engines run verified code
+ * without checking the stack pointers.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class VerifierTest {
+
+  /**
+   * Assembles code from opcodes and operand bytes.
+   */
+  private static byte[] code(Object... parts) {
+    byte[] code = new byte[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      code[i] = (byte) (parts[i] instanceof OpCode op ? op.code() : (Integer) parts[i]);
+    }
+    return code;
+  }
+
+  /**
+   * Writes an object file for <code>code</code>, with main() at address 0,
+   * and loads it.
+   */
+  private static Run.Program load(byte[] code) throws IOException {
+    Path file = Files.createTempFile("verifier", ".obj");
+    try {
+      try (OutputStream os = Files.newOutputStream(file); DataOutputStream out = new DataOutputStream(os)) {
+        out.write('M');
+        out.write('J');
+        out.writeInt(code.length);
+        out.writeInt(0); // data size
+        out.writeInt(0); // main pc
+        out.write(code);
+      }
+      return Run.Program.read(file.toString());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static void assertRejected(byte[] code, String reason) {
+    FormatException e = assertThrows(FormatException.class, () -> load(code));
+    assertTrue(e.getMessage().startsWith("verification failed: " + reason), e.getMessage());
+  }
+
+  @Test
+  public void wellFormed() throws IOException {
+    Run.Program p = load(code(
+            OpCode.enter, 0, 0,
+            OpCode.const_1, OpCode.const_0, OpCode.print,
+            OpCode.exit, OpCode.return_));
+    assertNull(p.verifier.error);
+  }
+
+  @Test
+  public void jumpOutOfTheMethod() {
+    assertRejected(code(
+            OpCode.enter, 0, 0,
+            OpCode.jmp, 0, 100,
+            OpCode.exit, OpCode.return_), "invalid jump target 103");
+  }
+
+  @Test
+  public void jumpIntoOperand() {
+    assertRejected(code(
+            OpCode.enter, 0, 0,
+            OpCode.const_, 0, 0, 0, 1, // 3
+            OpCode.pop,
+            OpCode.const_0, OpCode.const_0,
+            OpCode.jeq, -1, -6, // 11: to 5, the operand of const
+            OpCode.exit, OpCode.return_), "invalid jump target 5");
+  }
+
+  @Test
+  public void inconsistentStackDepth() {
+    assertRejected(code(
+            OpCode.enter, 0, 0,
+            OpCode.const_0, OpCode.const_0,
+            OpCode.jeq, 0, 4, // 5: to 9 with an empty stack
+            OpCode.const_1, // 8: falls through to 9 with one value
+            OpCode.exit, OpCode.return_), "inconsistent stack depth at 9");
+  }
+
+  @Test
+  public void truncatedInstruction() {
+    assertRejected(code(
+            OpCode.enter, 0, 0,
+            OpCode.const_1, OpCode.pop,
+            OpCode.const_, 0, 0), "invalid instruction at 5");
+  }
+}
@@ -2,9 +2,12 @@ package ssw.mj.test;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
+import ssw.mj.Engines;
 import ssw.mj.test.support.BaseCompilerTestCase;
 import ssw.mj.test.support.Configuration;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static ssw.mj.Errors.Message.*;
 
 @Timeout(value = Configuration.TIMEOUT)
@@ -944,4 +947,150 @@ public class CodeGenerationTest extends BaseCompilerTestCase {
     expectError(5, 35, LESS_INITIALIZERS);
     parseVerifyVisualize();
   }
+
+  @Test
+  public void deepRecursion() {
+    // each engine charges the method stack the same words per call (locals, return address and caller fp)
+    initCode("""
+            program Test
+            {
+              int depth(int n) int d; {
+                if (n == 0) return 0;
+                d = depth(n - 1);
+                return d + 1;
+              }
+
+              void main() int n; {
+                read(n);
+                print(depth(n));
+              }
+            }
+            """);
+    addExpectedRun("900", "900");
+    addExpectedRun("998", "998");
+    parseVerifyVisualize();
+    // one level more overflows the method stack, also where the methods are compiled
+    for (Engines.Variant variant : Engines.Variant.values()) {
+      IllegalStateException e = assertThrows(IllegalStateException.class, () -> Engines.run(variant,
+              parser.code.buf, parser.code.mainpc, parser.code.dataSize, null, "999", false), variant.toString());
+      assertEquals("method stack overflow", e.getMessage(), variant.toString());
+    }
+  }
+
+  @Test
+  public void scalarReplacement() {
+    initCode("""
+            program Test
+              class Point { int x, y; }
+              class Box { Point p; }
+              Point g;
+            {
+              int area(Point p) { return p.x * p.y; }
+
+              void main() Point a, b, c, d; Box box; int i; {
+                a = new Point;
+                a.x = 3; a.y = 4;
+                a.x += a.y;
+                b = new Point;
+                b.x = 2; b.y = 5;
+                c = new Point;
+                c.x = 6;
+                g = c;
+                d = new Point;
+                d.y = 7;
+                box = new Box;
+                box.p = d;
+                i = 0;
+                while (i < 3) {
+                  a.y = a.y + i;
+                  i++;
+                }
+                print(a.x); print(' '); print(a.y); print(' ');
+                print(area(b)); print(' '); print(g.x); print(' '); print(box.p.y);
+              }
+            }
+            """);
+    // a and box become locals (no new, getfield or putfield left for them);
+    // b is passed, c is stored in a global and d in a field, so they stay objects
+    enableOptimizations();
+    addExpectedRun("7 7 10 6 7");
+    parseVerifyVisualize();
+  }
+
+  @Test
+  public void scalarReplacementNotAssignedOnAllPaths() {
+    initCode("""
+            program Test
+              class Point { int x, y; }
+            {
+              void main() Point p; int n; {
+                read(n);
+                if (n > 0) {
+                  p = new Point;
+                  p.x = n;
+                }
+                print(p.x);
+              }
+            }
+            """);
+    // p is null on one path, so it is kept to trap on the null reference
+    enableOptimizations();
+    addExpectedRun("5", "5");
+    parseVerifyVisualize();
+  }
+
+  @Test
+  public void tailCalls() {
+    initCode("""
+            program Test
+            {
+              int count(int n, int acc) int step; {
+                step = 1;
+                if (n == 0) return acc;
+                return count(n - step, acc + step);
+              }
+
+              int fact(int n) {
+                if (n <= 1) return 1;
+                return n * fact(n - 1);
+              }
+
+              void main() int n; {
+                read(n);
+                print(count(n, 0)); print(' ');
+                print(fact(10));
+              }
+            }
+            """);
+    // the self call of count becomes stores and a jump, so 100000 levels fit into the method stack;
+    // the call of fact is not the returned value and stays a call
+    enableOptimizations();
+    addExpectedRun("100000", "100000 3628800");
+    parseVerifyVisualize();
+  }
+
+  @Test
+  public void printWidths() {
+    initCode("""
+            program Test
+            {
+              void main() int min; {
+                min = -2147483647 - 1;
+                print(0); print('|');
+                print(42, 5); print('|');
+                print(-42, 5); print('|');
+                print(12345, 3); print('|');
+                print(7, 40); print('|');
+                print(min); print('|');
+                print(min, 13); print('|');
+                print(min / 10); print('|');
+                print('x', 3); print('|');
+              }
+            }
+            """);
+    // widths below the length of the number, above the 32 blanks printed at once, and MIN_VALUE,
+    // which has no positive counterpart
+    addExpectedRun("0|   42|  -42|12345|" + " ".repeat(39) + "7|-2147483648|  -2147483648|-214748364|  x|");
+    parseVerifyVisualize();
+  }
 }
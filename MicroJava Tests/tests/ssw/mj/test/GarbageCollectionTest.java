@@ -0,0 +1,142 @@
+package ssw.mj.test;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import ssw.mj.Interpreter;
+import ssw.mj.test.support.BaseCompilerTestCase;
+import ssw.mj.test.support.Configuration;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Programs that allocate more than fits into the heap must run the same with
+ * and without garbage collection, and whether the heap and the method stack
+ * grow or not.
+ */
+@Timeout(value = Configuration.TIMEOUT)
+public class GarbageCollectionTest extends BaseCompilerTestCase {
+
+  private static final int LARGE = 1 << 22; // words, never collected and never full
+  private static final Pattern STATS = Pattern.compile("GC: (\\d+) minor / (\\d+) major collections");
+
+  private static final Interpreter.Engine[] COLLECTING = {
+          Interpreter.Engine.SWITCH, Interpreter.Engine.THREADED, Interpreter.Engine.REGISTER
+  };
+
+  /**
+   * An old list whose nodes get young nodes and arrays in every round, so
+   * that the young blocks are only reachable from the old ones.
+   */
+  private static final String OLD_TO_YOUNG = """
+          program Test
+            class Node { int val; Node next; Node young; int[] data; }
+            Node head;
+          {
+            void main() int i, j, n, sum; Node p, q; int[] a; {
+              read(n);
+              i = 0;
+              while (i < 50) {
+                p = new Node; p.val = i; p.next = head; head = p;
+                i++;
+              }
+              j = 0;
+              while (j < n) {
+                p = head;
+                while (p != null) {
+                  q = new Node; q.val = p.val + j;
+                  p.young = q;
+                  a = new int[5]; a[0] = j; p.data = a;
+                  p = p.next;
+                }
+                j++;
+              }
+              sum = 0;
+              p = head;
+              while (p != null) {
+                sum = sum + p.young.val + p.data[0];
+                p = p.next;
+              }
+              print(sum);
+            }
+          }
+          """;
+
+  private String run(String input, Interpreter.Engine engine, boolean collect, int heapSize, int stackSize,
+                     int[] collections) {
+    Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+    Interpreter vm = newInterpreter(io, engine, collect, heapSize, stackSize);
+    vm.run();
+    if (collect) {
+      Matcher m = STATS.matcher(vm.gcStatistics());
+      assertTrue(m.find(), vm.gcStatistics());
+      collections[0] = Integer.parseInt(m.group(1));
+      collections[1] = Integer.parseInt(m.group(2));
+    }
+    return io.getOutput();
+  }
+
+  @Test
+  public void nurseryWithOldToYoungReferences() {
+    initCode(OLD_TO_YOUNG);
+    parseVerifyVisualize();
+    int[] collections = new int[2];
+    String expected = String.valueOf(1225 + 100 * 199);
+    assertEquals(expected, run("200", Interpreter.Engine.SWITCH, false, LARGE, Interpreter.DEFAULT_STACK_SIZE,
+            collections));
+    for (Interpreter.Engine engine : COLLECTING) {
+      // 120000 words are allocated in blocks of 6 and 7 words, 3000 are available
+      assertEquals(expected, run("200", engine, true, 3000, Interpreter.DEFAULT_STACK_SIZE, collections),
+              engine + " with a collected heap");
+      assertTrue(collections[0] > 0, engine + " did no minor collection");
+    }
+  }
+
+  @Test
+  public void heapAndStackGrowth() {
+    initCode("""
+            program Test
+              class Cell { int val; Cell next; }
+            {
+              int depth(int n) {
+                if (n == 0) return 0;
+                return depth(n - 1) + 1;
+              }
+
+              void main() int i, sum; int[] big; Cell c, list; {
+                big = new int[20000];
+                i = 0;
+                while (i < 20000) { big[i] = i % 7; i++; }
+                i = 0;
+                while (i < 3000) {
+                  c = new Cell; c.val = i; c.next = list; list = c;
+                  c = new Cell; c.val = -i;
+                  i++;
+                }
+                sum = 0;
+                i = 0;
+                while (i < 20000) { sum = sum + big[i]; i++; }
+                while (list != null) { sum = sum + list.val; list = list.next; }
+                print(sum); print(' '); print(depth(900));
+              }
+            }
+            """);
+    parseVerifyVisualize();
+    int[] collections = new int[2];
+    String expected = (59997 + 4498500) + " 900";
+    // the heap and the stack start small and grow up to the limit
+    assertEquals(expected, run("", Interpreter.Engine.SWITCH, false, LARGE, Interpreter.DEFAULT_STACK_SIZE,
+            collections));
+    for (Interpreter.Engine engine : COLLECTING) {
+      assertEquals(expected, run("", engine, true, LARGE, Interpreter.DEFAULT_STACK_SIZE, collections),
+              engine + " with a growing collected heap");
+      // a heap that holds the live data only after collecting the dead cells
+      assertEquals(expected, run("", engine, true, 20000 + 3 * 3000 + 1000, Interpreter.DEFAULT_STACK_SIZE,
+              collections), engine + " with a full collected heap");
+      assertTrue(collections[0] + collections[1] > 0, engine + " did not collect");
+    }
+  }
+}
@@ -1,10 +1,12 @@
 package ssw.mj.test.support;
 
 import org.junit.jupiter.api.BeforeEach;
+import ssw.mj.Engines;
 import ssw.mj.Errors;
 import ssw.mj.Interpreter;
 import ssw.mj.Visualizer;
 import ssw.mj.codegen.Decoder;
+import ssw.mj.codegen.TypeDescriptors;
 import ssw.mj.impl.Parser;
 import ssw.mj.impl.Scanner;
 import ssw.mj.scanner.Token;
@@ -58,6 +60,14 @@ public abstract class BaseCompilerTestCase {
     parser = new Parser(scanner);
   }
 
+  /**
+   * Compiles with the optimizations of <code>Compiler -O</code>. Must be called after initCode or initFile.
+   */
+  protected void enableOptimizations() {
+    parser.scalarReplacement = true;
+    parser.tailCalls = true;
+  }
+
   protected void initFile(String filename) {
     initScannerFile(filename);
     parser = new Parser(scanner);
@@ -196,19 +206,49 @@ public abstract class BaseCompilerTestCase {
   }
 
   private void run(int i) {
+    String output = run(i, Interpreter.Engine.SWITCH);
+    verifyOutput(i, output);
+    // a garbage collected heap, with the type descriptors straight from the code generator
+    assertEquals(output, run(i, Interpreter.Engine.SWITCH, parser.code.types),
+            "garbage collected heap differs when input is \"" + runInputs.get(i) + "\": ");
+    // the other engines run translated code and must behave like the stack interpreter
+    for (Engines.Variant variant : Engines.Variant.values()) {
+      assertEquals(output, Engines.run(variant, parser.code.buf, parser.code.mainpc, parser.code.dataSize, null,
+                      runInputs.get(i), Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT),
+              variant + " engine differs from stack interpreter when input is \"" + runInputs.get(i) + "\": ");
+    }
+  }
+
+  private String run(int i, Interpreter.Engine engine) {
+    return run(i, engine, null);
+  }
+
+  private String run(int i, Interpreter.Engine engine, TypeDescriptors types) {
     Interpreter.BufferIO io = new Interpreter.BufferIO(runInputs.get(i));
     Interpreter interpreter = new Interpreter(
             parser.code.buf,
             parser.code.mainpc,
             parser.code.dataSize,
+            types,
             io,
-            Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT);
+            Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT,
+            engine);
     interpreter.run();
-    String output = io.getOutput();
-    verifyOutput(i, output);
+    return io.getOutput();
   }
 
 
+  /**
+   * Creates an interpreter for the compiled program with a heap and a method stack of at most the given sizes in
+   * words. With <code>collect</code>, the heap is garbage collected with the type descriptors of the code generator.
+   */
+  protected Interpreter newInterpreter(Interpreter.IO io, Interpreter.Engine engine, boolean collect,
+                                       int heapSize, int stackSize) {
+    return new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+            collect ? parser.code.types : null, io, Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT, engine,
+            heapSize, stackSize);
+  }
+
   private void printErrors() {
     print("Errors", expectedErrors, getActualErrors());
   }